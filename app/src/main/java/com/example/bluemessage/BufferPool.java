@@ -0,0 +1,110 @@
+package com.example.bluemessage;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles the receive buffers of the chat sessions so reading messages does not allocate an array per frame.
+ * Buffers come in power of two sizes from MIN_BUFFER_SIZE up, a few of each size are kept once released.
+ * Buffers larger than the largest pooled size are handed out as well but left to the garbage collector
+ */
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_MAX_POOLED_SIZE = 64 * 1024;
+    public static final int DEFAULT_BUFFERS_PER_SIZE = 8;
+
+    private final int maxPooledSize;
+    private final int buffersPerSize;
+    //free buffers by size class, class i holds buffers of MIN_BUFFER_SIZE << i bytes
+    private final ArrayDeque<PooledBuffer>[] free;
+    private int created;
+    private int reused;
+
+    /**
+     * Constructor for a pool with the default sizes
+     */
+    public BufferPool(){
+        this(DEFAULT_MAX_POOLED_SIZE, DEFAULT_BUFFERS_PER_SIZE);
+    }
+
+    /**
+     * Constructor for a pool that keeps up to buffersPerSize released buffers of each size up to maxPooledSize
+     * @param maxPooledSize
+     * @param buffersPerSize
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPooledSize, int buffersPerSize){
+        if(maxPooledSize < MIN_BUFFER_SIZE || buffersPerSize < 0){
+            throw new IllegalArgumentException("Invalid pool size");
+        }
+        this.maxPooledSize = maxPooledSize;
+        this.buffersPerSize = buffersPerSize;
+        free = new ArrayDeque[sizeClass(maxPooledSize) + 1];
+        for(int i = 0; i < free.length; i++){
+            free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * returns a buffer of at least minSize bytes that the caller holds the only reference to.
+     * Its contents are whatever the last user left in it
+     * @param minSize
+     * @return
+     */
+    public PooledBuffer acquire(int minSize){
+        if(minSize > maxPooledSize){
+            synchronized (this){
+                created++;
+            }
+            return new PooledBuffer(null, new byte[minSize]);
+        }
+        int sizeClass = sizeClass(minSize);
+        synchronized (this){
+            PooledBuffer buffer = free[sizeClass].pollFirst();
+            if(buffer != null){
+                reused++;
+                buffer.reset();
+                return buffer;
+            }
+            created++;
+        }
+        return new PooledBuffer(this, new byte[MIN_BUFFER_SIZE << sizeClass]);
+    }
+
+    /**
+     * takes back a buffer whose last reference was released
+     */
+    void recycle(PooledBuffer buffer){
+        ArrayDeque<PooledBuffer> queue = free[sizeClass(buffer.array().length)];
+        synchronized (this){
+            if(queue.size() < buffersPerSize){
+                queue.addFirst(buffer);
+            }
+        }
+    }
+
+    /**
+     * returns how many buffers had to be allocated so far
+     */
+    public synchronized int getCreatedCount(){
+        return created;
+    }
+
+    /**
+     * returns how many buffers were handed out again after being released
+     */
+    public synchronized int getReusedCount(){
+        return reused;
+    }
+
+    /**
+     * returns the index of the smallest size class holding size bytes
+     */
+    private static int sizeClass(int size){
+        int sizeClass = 0;
+        while((MIN_BUFFER_SIZE << sizeClass) < size){
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+}
@@ -0,0 +1,186 @@
+package com.example.bluemessage;
+
+import android.view.ContextMenu;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+
+/**
+ * Adapter of the chat list on the main chat page.
+ * Messages from other devices and the user's own messages have their own layouts, the user's on the right
+ * with their status underneath, reactions of either side are shown under the text. New lists are diffed on a background thread by ListAdapter,
+ * so only the rows that changed are bound again
+ */
+public class ChatAdapter extends ListAdapter<ChatMessage, ChatAdapter.MessageHolder> {
+
+    public static final int VIEW_TYPE_INCOMING = 0;
+    public static final int VIEW_TYPE_OUTGOING = 1;
+
+    //payloads for a row of which only the status or the reactions changed
+    private static final Object STATUS_CHANGED = new Object();
+    private static final Object REACTIONS_CHANGED = new Object();
+
+    /**
+     * Receives clicks on the messages
+     */
+    public interface Listener {
+        void onMessageClicked(ChatMessage message);
+    }
+
+    private static final DiffUtil.ItemCallback<ChatMessage> DIFF = new DiffUtil.ItemCallback<ChatMessage>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return oldItem.getKey() == newItem.getKey();
+        }
+
+        /**
+         * the same message is the same object in both lists, status changes are reported with statusChanged()
+         */
+        @Override
+        public boolean areContentsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return oldItem == newItem;
+        }
+    };
+
+    private final Listener listener;
+    private final View.OnCreateContextMenuListener contextMenuListener;
+    private ChatMessage contextMessage;
+
+    /**
+     * Constructor for the adapter
+     * @param listener
+     * @param contextMenuListener shows the menu for a long pressed message
+     */
+    public ChatAdapter(Listener listener, View.OnCreateContextMenuListener contextMenuListener){
+        super(DIFF);
+        this.listener = listener;
+        this.contextMenuListener = contextMenuListener;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return getItem(position).getKey();
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return getItem(position).isOutgoing() ? VIEW_TYPE_OUTGOING : VIEW_TYPE_INCOMING;
+    }
+
+    @NonNull
+    @Override
+    public MessageHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        int layout = viewType == VIEW_TYPE_OUTGOING ? R.layout.message_outgoing : R.layout.message_incoming;
+        View view = LayoutInflater.from(parent.getContext()).inflate(layout, parent, false);
+        return new MessageHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull MessageHolder holder, int position) {
+        ChatMessage message = getItem(position);
+        holder.text.setText(message.toString());
+        holder.bindStatus(message);
+        holder.bindReactions(message);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull MessageHolder holder, int position, @NonNull List<Object> payloads) {
+        if(payloads.isEmpty()){
+            onBindViewHolder(holder, position);
+            return;
+        }
+        if(payloads.contains(STATUS_CHANGED)){
+            holder.bindStatus(getItem(position));
+        }
+        if(payloads.contains(REACTIONS_CHANGED)){
+            holder.bindReactions(getItem(position));
+        }
+    }
+
+    /**
+     * rebinds only the status of a message that is shown
+     * @param message
+     */
+    public void statusChanged(ChatMessage message){
+        notifyMessageChanged(message, STATUS_CHANGED);
+    }
+
+    /**
+     * rebinds only the reactions of a message that is shown
+     * @param message
+     */
+    public void reactionsChanged(ChatMessage message){
+        notifyMessageChanged(message, REACTIONS_CHANGED);
+    }
+
+    /**
+     * returns the message whose context menu was opened last, null if it is no longer shown
+     */
+    public ChatMessage getContextMessage(){
+        return getCurrentList().contains(contextMessage) ? contextMessage : null;
+    }
+
+    private void notifyMessageChanged(ChatMessage message, Object payload){
+        List<ChatMessage> current = getCurrentList();
+        for(int i = current.size() - 1; i >= 0; i--){
+            if(current.get(i) == message){
+                notifyItemChanged(i, payload);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Views of one row, status is null for messages from other devices
+     */
+    class MessageHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+        final TextView reactions;
+        final TextView status;
+
+        MessageHolder(View itemView){
+            super(itemView);
+            text = (TextView) itemView.findViewById(R.id.message_text);
+            reactions = (TextView) itemView.findViewById(R.id.message_reactions);
+            status = (TextView) itemView.findViewById(R.id.message_status);
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    int position = getBindingAdapterPosition();
+                    if(position != RecyclerView.NO_POSITION){
+                        listener.onMessageClicked(getItem(position));
+                    }
+                }
+            });
+            itemView.setOnCreateContextMenuListener(new View.OnCreateContextMenuListener() {
+                @Override
+                public void onCreateContextMenu(ContextMenu menu, View view, ContextMenu.ContextMenuInfo menuInfo) {
+                    int position = getBindingAdapterPosition();
+                    contextMessage = position != RecyclerView.NO_POSITION ? getItem(position) : null;
+                    contextMenuListener.onCreateContextMenu(menu, view, menuInfo);
+                }
+            });
+        }
+
+        void bindStatus(ChatMessage message){
+            if(status != null){
+                status.setText(message.getStatusLabel());
+            }
+        }
+
+        void bindReactions(ChatMessage message){
+            String label = message.getReactionLabel();
+            reactions.setText(label);
+            reactions.setVisibility(label.isEmpty() ? View.GONE : View.VISIBLE);
+        }
+    }
+}
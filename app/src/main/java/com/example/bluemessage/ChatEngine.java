@@ -0,0 +1,1595 @@
+package com.example.bluemessage;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection manager behind ChatUtils.
+ * Keeps one session per peer address over a ChatTransport and reports everything that happens to a Listener,
+ * so the same code can be driven by Bluetooth on the phone or by an in memory transport in tests.
+ * Accepting, dialing, reading and writing for every peer run as tasks on one shared I/O executor,
+ * so a peer only holds a thread while it is blocked reading or has messages to write.
+ * Reading blocks on the link, so every connected peer still holds one thread for its reader and the pool
+ * grows by one thread per peer. Writers, dials and the acceptor only borrow a thread while they have work,
+ * and idle threads are let go after a minute. The pool is not bounded because a reader that holds the last thread
+ * would leave the writers waiting on it.
+ * Messages to a peer go through a ReliableChannel that outlives the connection: when a peer we dialed is lost
+ * it is dialed again with backoff and the messages it never acknowledged are sent again once the session resumes.
+ * A peer that dialed us gets as long to dial back as the reconnect policy would keep dialing, then its messages fail.
+ * The channel's window caps how many message bytes are on their way to a peer before it acknowledges them.
+ * Files go through the peer's FileTransfers in chunks that take turns with the messages on the same link.
+ * Peers that both answer PINGs probe each other every ping interval, and the batching delay, window and chunk size
+ * of the session follow what its LinkQuality makes of the link.
+ * Each session moves through its states with compare-and-set, so the write path reads them without a lock,
+ * and the listener is never called while the engine's monitor is held.
+ */
+public class ChatEngine {
+
+    public static final int STATE_NONE = 0;
+    public static final int STATE_LISTEN = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3;
+
+    public static final long DEFAULT_PING_INTERVAL_MS = 5000;
+
+    /**
+     * Receives the events of the engine, called from the engine threads
+     */
+    public interface Listener {
+        /**
+         * state of the engine as a whole, CONNECTED while at least one peer is connected
+         */
+        void onStateChanged(int state);
+
+        void onConnected(String address, String name);
+
+        /**
+         * called for every new message, the message is the body of the DATA frame.
+         * The frame points into a pooled receive buffer that is reused once this returns,
+         * retain() the frame to keep it for longer and release() it when done
+         */
+        void onMessageRead(String address, ChatFrame frame);
+
+        /**
+         * called once per write() when the message has been written to the link of at least one of its peers
+         */
+        void onMessageWritten(byte[] payload);
+
+        /**
+         * called once per write() when every peer it went to has reported and at least one of them acknowledged it
+         */
+        void onMessageDelivered(byte[] payload);
+
+        /**
+         * called once per write() when no peer it went to acknowledged it before being given up on
+         */
+        void onMessageFailed(byte[] payload);
+
+        /**
+         * called after a peer acknowledged messages, its channel has room for more than before
+         */
+        void onSendRoom(String address);
+
+        void onConnectionLost(String address);
+
+        void onConnectionFailed(String address);
+
+        /**
+         * called when a file to or from a peer has moved on by at least a percent, finished or failed
+         */
+        void onFileProgress(FileTransfer transfer);
+
+        /**
+         * called when the quality of the link to a peer changes
+         * @param quality one of the LinkQuality QUALITY constants
+         * @param rttMs smoothed round trip time, -1 if not known
+         */
+        void onLinkQuality(String address, int quality, long rttMs);
+    }
+
+    /**
+     * Decides where the files peers send are written to
+     */
+    public interface IncomingFiles {
+        /**
+         * returns the channel to write the offered file to, or null to refuse it
+         */
+        FileChannel open(String address, String name, long size) throws IOException;
+    }
+
+    private final ChatTransport transport;
+    private final Listener listener;
+    private final ExecutorService ioExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    //sequence numbers and unacknowledged messages per peer address, kept across reconnects
+    private final ConcurrentMap<String, ReliableChannel> channels = new ConcurrentHashMap<>();
+    //file transfers per peer address, kept across reconnects like the channels
+    private final ConcurrentMap<String, FileTransfers> fileTransfers = new ConcurrentHashMap<>();
+    //receive buffers shared by every session
+    private final BufferPool bufferPool = new BufferPool();
+    private final ChatMetrics metrics = new ChatMetrics();
+    //passes on messages for nodes out of reach, only to and from peers that offered FEATURE_RELAY
+    private final MeshRelay mesh = new MeshRelay(new RelayLinks(), metrics);
+    //outcome of each write() until every peer it was queued for has reported, keyed by the payload array itself
+    private final Map<byte[], Delivery> deliveries = new IdentityHashMap<>();
+    //peers that dialed us and were lost, their channel goes once the deadline passes without them dialing back
+    private final Map<String, ResumeDeadline> resumeDeadlines = new HashMap<>();
+
+    private volatile AcceptTask acceptTask;
+    private volatile int state;
+    //updateState() calls not worked off yet, the caller that raises it from 0 reports the changes for all of them
+    private final AtomicInteger stateUpdates = new AtomicInteger();
+    private volatile ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private volatile boolean compression = true;
+    private volatile boolean encryption = true;
+    private volatile boolean relay;
+    private volatile String displayName = "";
+    private volatile int windowBytes = ReliableChannel.DEFAULT_WINDOW_BYTES;
+    private volatile int maxBufferedBytes = ReliableChannel.DEFAULT_MAX_BUFFERED_BYTES;
+    private volatile long pingIntervalMs = DEFAULT_PING_INTERVAL_MS;
+    private volatile IncomingFiles incomingFiles;
+
+    /**
+     * Constructor to handle the connections and messages between devices over the given transport.
+     * The I/O pool grows with the connected peers, one reader thread each, see the class comment
+     * @param transport
+     * @param listener
+     */
+    public ChatEngine(ChatTransport transport, Listener listener){
+        this(transport, listener, Executors.newCachedThreadPool(threadFactory("ChatEngine-io-")));
+    }
+
+    /**
+     * Constructor that runs all connection work on the given executor
+     * @param transport
+     * @param listener
+     * @param ioExecutor
+     */
+    public ChatEngine(ChatTransport transport, Listener listener, ExecutorService ioExecutor){
+        this.transport = transport;
+        this.listener = listener;
+        this.ioExecutor = ioExecutor;
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("ChatEngine-timer-"));
+
+        state = STATE_NONE;
+    }
+
+    private static ThreadFactory threadFactory(final String prefix){
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * sets how peers we dialed are dialed again after the connection is lost,
+     * and how long a peer that dialed us has to dial back before its unacknowledged messages fail
+     * @param reconnectPolicy
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy){
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * sets the name of the user sent to peers in the handshake of connections made from now on
+     * @param displayName
+     */
+    public void setDisplayName(String displayName){
+        this.displayName = displayName != null ? displayName : "";
+    }
+
+    /**
+     * turns offering compression to peers on or off for connections made from now on.
+     * Frames are only compressed on connections where both sides offered it
+     * @param compression
+     */
+    public void setCompression(boolean compression){
+        this.compression = compression;
+    }
+
+    /**
+     * turns offering encryption to peers on or off for connections made from now on.
+     * While it is on, peers that do not offer it are refused, while it is off frames are sent as they are
+     * @param encryption
+     */
+    public void setEncryption(boolean encryption){
+        this.encryption = encryption;
+    }
+
+    /**
+     * turns relaying messages for other nodes on or off for connections made from now on.
+     * Messages are only relayed over connections where both sides offered it
+     * @param relay
+     */
+    public void setRelay(boolean relay){
+        this.relay = relay;
+    }
+
+    /**
+     * sets the id this node is reached by through the relay, see MeshRelay.setNodeId()
+     * @param nodeId
+     */
+    public void setNodeId(long nodeId){
+        mesh.setNodeId(nodeId);
+    }
+
+    /**
+     * returns the id of this node in the relay
+     */
+    public long getNodeId(){
+        return mesh.getNodeId();
+    }
+
+    /**
+     * returns the address other nodes write to for messages to reach this one through the relay
+     */
+    public String getNodeAddress(){
+        return MeshRelay.nodeAddress(getNodeId());
+    }
+
+    /**
+     * sets how often the link of connections made from now on is probed, the tuning follows the probes
+     * @param pingIntervalMs
+     */
+    public void setPingInterval(long pingIntervalMs){
+        if(pingIntervalMs <= 0){
+            throw new IllegalArgumentException("Invalid ping interval");
+        }
+        this.pingIntervalMs = pingIntervalMs;
+    }
+
+    /**
+     * returns how healthy the link to the peer is, null if there is no session for it
+     * @param address
+     * @return
+     */
+    public LinkQuality getLinkQuality(String address){
+        PeerSession session = sessions.get(address);
+        return session == null ? null : session.quality;
+    }
+
+    /**
+     * sets the send window of peers that connect from now on
+     * @param windowBytes message bytes that may be sent to a peer before it acknowledges them
+     * @param maxBufferedBytes message bytes that may wait for a peer before write() refuses more
+     */
+    public void setWindow(int windowBytes, int maxBufferedBytes){
+        if(windowBytes <= 0 || maxBufferedBytes < windowBytes){
+            throw new IllegalArgumentException("Invalid window");
+        }
+        this.windowBytes = windowBytes;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * sets where files sent by peers are written to, without it every offered file is refused
+     * @param incomingFiles
+     */
+    public void setIncomingFiles(IncomingFiles incomingFiles){
+        this.incomingFiles = incomingFiles;
+    }
+
+    /**
+     * returns the counters and timings of every connection the engine has made since it was created
+     */
+    public ChatMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * returns state of the engine as a whole
+     */
+    public int getState(){
+        return state;
+    }
+
+    /**
+     * returns state of the connection with the given peer, STATE_NONE if there is no session for it
+     * @param address
+     * @return
+     */
+    public int getState(String address){
+        PeerSession session = sessions.get(address);
+        return session == null ? STATE_NONE : session.getState();
+    }
+
+    /**
+     * returns the addresses of every connected peer
+     */
+    public List<String> getConnectedPeers(){
+        List<String> peers = new ArrayList<>();
+        for(PeerSession session : sessions.values()){
+            if(session.getState() == STATE_CONNECTED){
+                peers.add(session.address);
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * works out the state of the engine from its sessions and reflects any change back to the listener.
+     * Must be called without holding the engine's monitor. Only one thread reports at a time, a call made
+     * while another thread is reporting makes that thread work the state out once more,
+     * so the last state the listener hears is always the current one
+     */
+    private void updateState(){
+        if(stateUpdates.getAndIncrement() != 0){
+            return;
+        }
+        int missed = 1;
+        do{
+            int newState = acceptTask != null ? STATE_LISTEN : STATE_NONE;
+            for(PeerSession session : sessions.values()){
+                newState = Math.max(newState, session.getState());
+            }
+            if(newState != state){
+                state = newState;
+                listener.onStateChanged(newState);
+            }
+            missed = stateUpdates.addAndGet(-missed);
+        }while(missed != 0);
+    }
+
+    /**
+     * Starts accepting connections from other devices, existing sessions are kept.
+     * The server is opened straight away so a failure shows up as the engine not listening
+     */
+    public void start(){
+        synchronized (this){
+            if(acceptTask == null){
+                try{
+                    acceptTask = new AcceptTask(transport.listen());
+                    ioExecutor.execute(acceptTask);
+                } catch (IOException e) {
+                    Log.e("Accept to Constructor", e.toString());
+                }
+            }
+        }
+        updateState();
+    }
+
+    /**
+     * Stops accepting, closes every session and sets state to none.
+     * Messages that were never acknowledged are reported as failed
+     */
+    public void stop(){
+        synchronized (this){
+            if(acceptTask != null){
+                acceptTask.cancel();
+                acceptTask = null;
+            }
+            for(PeerSession session : sessions.values()){
+                session.cancel();
+            }
+            sessions.clear();
+            for(ResumeDeadline deadline : resumeDeadlines.values()){
+                deadline.future.cancel(false);
+            }
+            resumeDeadlines.clear();
+        }
+        updateState();
+        for(String address : channels.keySet()){
+            dropChannel(address);
+        }
+    }
+
+    /**
+     * stops everything like stop() and then the I/O pool and the timer thread, the engine can not be started again.
+     * Called when the engine is thrown away so its threads do not outlive it
+     */
+    public void shutdown(){
+        stop();
+        scheduler.shutdownNow();
+        ioExecutor.shutdownNow();
+    }
+
+    /**
+     * connects to the given device unless it is already connected, replacing any attempt to it that is still running.
+     * Sessions with other devices are not touched
+     * @param address
+     */
+    public void connect(String address){
+        synchronized (this){
+            PeerSession existing = sessions.get(address);
+            //checked and cancelled in one step, a session that connects in the meantime is kept
+            if(existing != null && !existing.cancelAttempt()){
+                return;
+            }
+
+            final PeerSession session = new PeerSession(address, true, 0);
+            sessions.put(address, session);
+            cancelResumeDeadline(address);
+            ioExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    session.dial();
+                }
+            });
+        }
+        updateState();
+    }
+
+    /**
+     * dials all the given devices at once and keeps the first one that connects, the attempts to the others are
+     * cancelled as soon as it does. Devices that already have a session are left as they are, and nothing is dialed
+     * if one of them is connected. The failure is only reported once every device dialed has failed.
+     * Returns the number of devices dialed
+     * @param addresses
+     * @return
+     */
+    public int connectFirst(List<String> addresses){
+        final Race race = new Race();
+        synchronized (this){
+            for(String address : addresses){
+                PeerSession existing = sessions.get(address);
+                if(existing != null && existing.getState() == STATE_CONNECTED){
+                    return 0;
+                }
+            }
+            for(String address : addresses){
+                if(!sessions.containsKey(address)){
+                    PeerSession session = new PeerSession(address, true, 0);
+                    session.race = race;
+                    race.sessions.add(session);
+                    sessions.put(address, session);
+                    cancelResumeDeadline(address);
+                }
+            }
+            race.remaining.set(race.sessions.size());
+            for(final PeerSession session : race.sessions){
+                ioExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.dial();
+                    }
+                });
+            }
+        }
+        updateState();
+        return race.sessions.size();
+    }
+
+    /**
+     * cancels the attempts of a race that have not connected yet, once the first of them has
+     */
+    private void raceWon(PeerSession winner){
+        if(!winner.race.won.compareAndSet(false, true)){
+            return;
+        }
+        synchronized (this){
+            for(PeerSession session : winner.race.sessions){
+                if(session != winner && session.cancelAttempt()){
+                    sessions.remove(session.address, session);
+                }
+            }
+        }
+        updateState();
+    }
+
+    /**
+     * closes the session with the given device without dialing it again.
+     * Messages it never acknowledged are reported as failed
+     * @param address
+     */
+    public void disconnect(String address){
+        synchronized (this){
+            PeerSession session = sessions.remove(address);
+            if(session != null){
+                session.cancel();
+            }
+        }
+        updateState();
+        dropChannel(address);
+    }
+
+    /**
+     * queues the message for every connected peer without blocking the caller.
+     * Returns false if no peer could take it. The array must not be reused until the listener has reported it
+     * delivered or failed
+     * @param buffer
+     * @return
+     */
+    public boolean write(byte[] buffer){
+        List<PeerSession> targets = new ArrayList<>();
+        for(PeerSession session : sessions.values()){
+            if(session.getState() == STATE_CONNECTED){
+                targets.add(session);
+            }
+        }
+        return send(buffer, targets);
+    }
+
+    /**
+     * queues the message for one peer without blocking the caller.
+     * Returns false if the peer is not connected or too many messages are already waiting for it.
+     * A node address goes through the relay, the message is delivered once the first hop acknowledges it
+     * @param address
+     * @param buffer
+     * @return
+     */
+    public boolean write(String address, byte[] buffer){
+        if(MeshRelay.isNodeAddress(address)){
+            return mesh.send(MeshRelay.nodeId(address), buffer);
+        }
+        List<PeerSession> targets = new ArrayList<>();
+        PeerSession session = sessions.get(address);
+        if(session != null && session.getState() == STATE_CONNECTED){
+            targets.add(session);
+        }
+        return send(buffer, targets);
+    }
+
+    /**
+     * queues the messages for one connected peer in the given order and lets them go out as one burst:
+     * they are all in the channel before the first is handed to the writer, which packs them into as few
+     * socket writes as the window allows. Stops at the first message the peer can not take so none overtakes another.
+     * Returns how many of the leading messages were queued, each of them is reported like a write()
+     * @param address a device address, not a node address
+     * @param buffers
+     * @return
+     */
+    public int writeAll(String address, List<byte[]> buffers){
+        PeerSession session = sessions.get(address);
+        if(session == null || session.getState() != STATE_CONNECTED){
+            return 0;
+        }
+        int queued = 0;
+        for(byte[] buffer : buffers){
+            synchronized (deliveries){
+                deliveries.put(buffer, new Delivery(1, buffer));
+            }
+            if(!session.queue(buffer)){
+                settle(buffer, false, false);
+                break;
+            }
+            queued++;
+        }
+        if(queued > 0){
+            session.pump(false);
+        }
+        return queued;
+    }
+
+    /**
+     * starts sending the file to a connected peer, progress is reported to the listener.
+     * Returns null if the peer is not connected, the caller still owns the source then.
+     * Otherwise the source is closed once the transfer is done or failed
+     * @param address
+     * @param source
+     * @param name
+     * @return
+     * @throws IOException if the size of the file can not be read
+     */
+    public FileTransfer sendFile(String address, FileChannel source, String name) throws IOException {
+        final PeerSession session = sessions.get(address);
+        if(session == null || session.getState() != STATE_CONNECTED){
+            return null;
+        }
+        FileTransfer transfer = filesFor(address).add(source, name);
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                session.pump(true);
+            }
+        });
+        return transfer;
+    }
+
+    /**
+     * fans the message out to the channels of the given sessions
+     */
+    private boolean send(byte[] buffer, List<PeerSession> targets){
+        return send(buffer, targets, buffer);
+    }
+
+    /**
+     * fans the message out to the channels of the given sessions, the outcome is reported for reportAs
+     * or not at all if it is null
+     */
+    private boolean send(byte[] buffer, List<PeerSession> targets, byte[] reportAs){
+        if(targets.isEmpty()){
+            return false;
+        }
+        synchronized (deliveries){
+            deliveries.put(buffer, new Delivery(targets.size(), reportAs));
+        }
+
+        boolean queued = false;
+        for(PeerSession session : targets){
+            if(session.send(buffer)){
+                queued = true;
+            }else{
+                settle(buffer, false, false);
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * tells the listener the first time a message has been written to one of its peers
+     */
+    private void written(byte[] buffer){
+        Delivery delivery;
+        synchronized (deliveries){
+            delivery = deliveries.get(buffer);
+            if(delivery == null || delivery.written){
+                return;
+            }
+            delivery.written = true;
+        }
+        if(delivery.reportAs != null){
+            listener.onMessageWritten(delivery.reportAs);
+        }
+    }
+
+    /**
+     * records the outcome of a message for one peer and tells the listener once every peer has reported
+     * @param buffer
+     * @param delivered true when the peer acknowledged the message
+     * @param queued false when the message never made it into the peer's channel
+     */
+    private void settle(byte[] buffer, boolean delivered, boolean queued){
+        Delivery delivery;
+        boolean reportWritten;
+        synchronized (deliveries){
+            delivery = deliveries.get(buffer);
+            if(delivery == null){
+                return;
+            }
+            delivery.delivered |= delivered;
+            delivery.queued |= queued;
+            if(--delivery.remaining > 0){
+                return;
+            }
+            deliveries.remove(buffer);
+            //the ACK can overtake the writer thread reporting the write
+            reportWritten = delivery.delivered && !delivery.written;
+        }
+
+        //nothing to report if no peer took the message, write() has already returned false
+        if(!delivery.queued || delivery.reportAs == null){
+            return;
+        }
+        if(delivery.delivered){
+            if(reportWritten){
+                listener.onMessageWritten(delivery.reportAs);
+            }
+            listener.onMessageDelivered(delivery.reportAs);
+        }else{
+            listener.onMessageFailed(delivery.reportAs);
+        }
+    }
+
+    /**
+     * reports messages the peer has acknowledged, then that the peer's channel has room again
+     */
+    private void delivered(String address, List<ChatFrame> frames){
+        for(ChatFrame frame : frames){
+            settle(frame.body, true, true);
+        }
+        if(!frames.isEmpty()){
+            listener.onSendRoom(address);
+        }
+    }
+
+    /**
+     * returns the channel for the peer, creating it the first time the peer connects
+     */
+    private ReliableChannel channelFor(String address){
+        ReliableChannel channel = channels.get(address);
+        if(channel == null){
+            ReliableChannel created = new ReliableChannel(windowBytes, maxBufferedBytes);
+            channel = channels.putIfAbsent(address, created);
+            if(channel == null){
+                channel = created;
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * returns the file transfers with the peer, creating them the first time they are needed
+     */
+    private FileTransfers filesFor(String address){
+        FileTransfers files = fileTransfers.get(address);
+        if(files == null){
+            FileTransfers created = new FileTransfers(address, listener);
+            files = fileTransfers.putIfAbsent(address, created);
+            if(files == null){
+                files = created;
+            }
+        }
+        return files;
+    }
+
+    /**
+     * forgets the peer's channel and file transfers and reports the messages it never acknowledged
+     * and the files it never finished as failed
+     */
+    private void dropChannel(String address){
+        FileTransfers files = fileTransfers.remove(address);
+        if(files != null){
+            files.failAll();
+        }
+        ReliableChannel channel = channels.remove(address);
+        if(channel == null){
+            return;
+        }
+        for(ChatFrame frame : channel.clear()){
+            settle(frame.body, false, true);
+        }
+    }
+
+    /**
+     * removes a session that has ended and makes sure the engine is listening for the next request.
+     * A peer we dialed is dialed again after a backoff delay until the reconnect policy gives up on it
+     */
+    private void sessionEnded(PeerSession session, boolean wasConnected){
+        final PeerSession retry;
+        synchronized (this){
+            if(!sessions.remove(session.address, session)){
+                return;
+            }
+            long delay = -1;
+            int attempt = wasConnected ? 1 : session.attempt + 1;
+            //a peer that refused the handshake will refuse it again
+            if(session.dialer && !session.incompatible && (wasConnected || session.attempt > 0)){
+                delay = reconnectPolicy.delayMs(attempt);
+            }
+            if(delay >= 0){
+                retry = new PeerSession(session.address, true, attempt);
+                sessions.put(session.address, retry);
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        ioExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                retry.dial();
+                            }
+                        });
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }else{
+                retry = null;
+            }
+        }
+
+        if(wasConnected){
+            mesh.peerLost(session.address);
+            metrics.increment(ChatMetrics.CONNECTIONS_LOST);
+            listener.onConnectionLost(session.address);
+        }else{
+            metrics.increment(ChatMetrics.CONNECT_FAILURES);
+        }
+        //a peer that dialed us keeps its channel so it can resume when it dials back, for as long as
+        //our reconnect policy would keep dialing it
+        if(retry == null && (session.dialer || !wasConnected)){
+            dropChannel(session.address);
+            //a race has only failed once its last attempt has
+            if(!wasConnected && (session.race == null || session.race.lost())){
+                listener.onConnectionFailed(session.address);
+            }
+        }else if(retry == null){
+            startResumeDeadline(session.address);
+        }
+
+        start();
+    }
+
+    /**
+     * drops the channel of a peer that dialed us if no new session with it has started
+     * by the time the reconnect policy would have given up on it
+     */
+    private void startResumeDeadline(String address){
+        ResumeDeadline deadline = new ResumeDeadline(address);
+        synchronized (this){
+            if(sessions.containsKey(address)){
+                return;
+            }
+            cancelResumeDeadline(address);
+            deadline.future = scheduler.schedule(deadline, reconnectPolicy.maxTotalDelayMs(), TimeUnit.MILLISECONDS);
+            resumeDeadlines.put(address, deadline);
+        }
+    }
+
+    /**
+     * called with the engine locked when a session with the peer starts, it can resume the channel
+     */
+    private void cancelResumeDeadline(String address){
+        ResumeDeadline deadline = resumeDeadlines.remove(address);
+        if(deadline != null){
+            deadline.future.cancel(false);
+        }
+    }
+
+    /**
+     * Drops the channel of a lost peer that has not dialed back in time
+     */
+    private class ResumeDeadline implements Runnable {
+        private final String address;
+        private ScheduledFuture<?> future;
+
+        ResumeDeadline(String address){
+            this.address = address;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ChatEngine.this){
+                //a session has started since or a later deadline took over
+                if(resumeDeadlines.get(address) != this){
+                    return;
+                }
+                resumeDeadlines.remove(address);
+            }
+            dropChannel(address);
+        }
+    }
+
+    /**
+     * takes over a link accepted from another device. A peer that is already connected keeps its session
+     * and the new link is closed, a connection attempt to the same peer is replaced by the accepted link.
+     * The attempt is only replaced if it is cancelled before it connects, so a peer never ends up with two sessions
+     */
+    private void accepted(AcceptTask task, ChatTransport.Link link){
+        final PeerSession session;
+        synchronized (this){
+            String address = link.getRemoteAddress();
+            PeerSession existing = sessions.get(address);
+            if(task.cancelled || (existing != null && !existing.cancelAttempt())){
+                try {
+                    link.close();
+                } catch (IOException e){
+                    Log.e("Accept to CloseSocket", e.toString());
+                }
+                return;
+            }
+            session = new PeerSession(address, false, 0);
+            sessions.put(address, session);
+            cancelResumeDeadline(address);
+        }
+        metrics.increment(ChatMetrics.ACCEPTS);
+
+        //set up the session on its own task so the acceptor can go straight back to accepting
+        final ChatTransport.Link acceptedLink = link;
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if(session.connected(acceptedLink)){
+                    session.read();
+                }
+            }
+        });
+    }
+
+    /**
+     * How one write() is doing across the peers it was sent to
+     */
+    private static class Delivery {
+        int remaining;
+        boolean written;
+        boolean delivered;
+        boolean queued;
+        //the array the listener knows the message by, the packet a relayed message was wrapped in is not
+        final byte[] reportAs;
+
+        Delivery(int remaining, byte[] reportAs){
+            this.remaining = remaining;
+            this.reportAs = reportAs;
+        }
+    }
+
+    /**
+     * Connects the relay to the sessions that negotiated FEATURE_RELAY and to the listener
+     */
+    private class RelayLinks implements MeshRelay.Links {
+        @Override
+        public List<String> relayPeers() {
+            List<String> peers = new ArrayList<>();
+            for(PeerSession session : sessions.values()){
+                if(session.relays()){
+                    peers.add(session.address);
+                }
+            }
+            return peers;
+        }
+
+        @Override
+        public boolean send(List<String> addresses, byte[] packet, byte[] reportAs) {
+            List<PeerSession> targets = new ArrayList<>(addresses.size());
+            for(String address : addresses){
+                PeerSession session = sessions.get(address);
+                if(session != null && session.relays()){
+                    targets.add(session);
+                }
+            }
+            return ChatEngine.this.send(packet, targets, reportAs);
+        }
+
+        @Override
+        public void deliver(String from, ChatFrame frame) {
+            listener.onMessageRead(from, frame);
+        }
+
+        @Override
+        public void failed(byte[] reportAs) {
+            listener.onMessageFailed(reportAs);
+        }
+    }
+
+    /**
+     * Attempts started together by connectFirst()
+     */
+    private static class Race {
+        final List<PeerSession> sessions = new ArrayList<>();
+        final AtomicBoolean won = new AtomicBoolean();
+        //attempts that have neither failed nor been cancelled
+        final AtomicInteger remaining = new AtomicInteger();
+
+        /**
+         * counts one failed attempt, returns true if it was the last and none connected
+         */
+        boolean lost(){
+            return remaining.decrementAndGet() == 0 && !won.get();
+        }
+    }
+
+    /**
+     * Long lived acceptor. The server, and with it the service record, stays open across sessions
+     * and every accepted link is handed to the session layer until the task is cancelled.
+     * If accepting fails the server is reopened, after MAX_ACCEPT_FAILURES failures in a row the engine stops listening
+     */
+    private class AcceptTask implements Runnable {
+
+        private static final int MAX_ACCEPT_FAILURES = 3;
+
+        private ChatTransport.Server server;
+        private boolean cancelled;
+
+        AcceptTask(ChatTransport.Server server){
+            this.server = server;
+        }
+
+        public void run() {
+            int failures = 0;
+            while(true){
+                ChatTransport.Server current;
+                synchronized (ChatEngine.this){
+                    if(cancelled){
+                        return;
+                    }
+                    if(server == null){
+                        try{
+                            server = transport.listen();
+                        } catch (IOException e) {
+                            Log.e("Accept to Constructor", e.toString());
+                        }
+                    }
+                    current = server;
+                }
+                if(current == null){
+                    stopListening();
+                    return;
+                }
+
+                ChatTransport.Link link;
+                try{
+                    link = current.accept();
+                }catch (IOException e){
+                    Log.e("Accept to Run", e.toString());
+                    synchronized (ChatEngine.this){
+                        if(cancelled){
+                            return;
+                        }
+                        metrics.increment(ChatMetrics.ACCEPT_ERRORS);
+                        close(current);
+                        server = null;
+                    }
+                    if(++failures >= MAX_ACCEPT_FAILURES){
+                        stopListening();
+                        return;
+                    }
+                    continue;
+                }
+                failures = 0;
+                accepted(this, link);
+            }
+        }
+
+        /**
+         * the server could not be opened or keeps failing, so the engine is no longer listening
+         */
+        private void stopListening(){
+            synchronized (ChatEngine.this){
+                if(acceptTask == this){
+                    acceptTask = null;
+                }
+            }
+            updateState();
+        }
+
+        private void close(ChatTransport.Server server){
+            try {
+                server.close();
+            }catch (IOException e){
+                Log.e("Accept to CancelServer", e.toString());
+            }
+        }
+
+        /**
+         * Cancel the task and closes the server
+         */
+        public void cancel() {
+            cancelled = true;
+            if(server != null){
+                close(server);
+            }
+        }
+    }
+
+    /**
+     * One connection to a peer: dials or takes over a link, then reads frames from it and writes the frames queued for it.
+     * The session only counts as connected once the peer's HELLO has been negotiated against ours,
+     * which sets the window, frame size, compression and encryption of the connection.
+     * The RESUME only follows once the HELLOs are negotiated, so with encryption it is the first encrypted frame,
+     * and nothing but the HELLO and RESUME frames is written until the peer's RESUME has arrived,
+     * after that pump() moves frames from the channel to the writer whenever the window or the writer queue has room.
+     * Only one file chunk is queued in the writer at a time so messages never wait behind more than one chunk.
+     * A session goes from CONNECTING to CONNECTED once the handshake is done and from either to NONE when it is
+     * cancelled or its link closes, NONE is final. Every move is a compare-and-set, so when the read loop ending and
+     * the engine cancelling race, only one of them gets to report the end of the session
+     */
+    private class PeerSession implements FrameWriter.Listener {
+        final String address;
+        //true if this side dialed the peer and should dial it again when the connection is lost
+        final boolean dialer;
+        //reconnect attempt this session is, 0 for a connection that was asked for
+        final int attempt;
+        //the connectFirst() this session is one of the attempts of, set before the session starts
+        Race race;
+        private final AtomicInteger state = new AtomicInteger(STATE_CONNECTING);
+        volatile FrameWriter writer;
+        private volatile ReliableChannel channel;
+        private volatile FileTransfers files;
+        private volatile FrameCompressor compressor;
+        //key pair offered in the HELLO and the cipher frames from the peer are opened with, null without encryption
+        private volatile KeyPair keyPair;
+        private volatile FrameCipher cipher;
+        //the HELLO this side sent and the result of negotiating it with the peer's, null until the peer's arrives
+        private volatile Handshake local;
+        private volatile Handshake negotiated;
+        //true if the peer's HELLO was refused
+        volatile boolean incompatible;
+        //true while a file chunk is waiting in the writer
+        private volatile boolean chunkQueued;
+        private volatile boolean ready;
+        private volatile ChatTransport.Link link;
+        private volatile InputStream inputStream;
+        //when the link was accepted or dialing started, for the connect and accept times
+        private volatile long startedNanos = System.nanoTime();
+        //set once the first message went over the link either way
+        private final AtomicBoolean messaged = new AtomicBoolean();
+        final LinkQuality quality = new LinkQuality(System.nanoTime());
+        private volatile ScheduledFuture<?> probeTask;
+        //number of the last PING sent, and of the one still waiting for its PONG or -1. Written by the timer
+        private long lastPing;
+        private volatile long pendingPing = -1;
+        private int reportedQuality = LinkQuality.QUALITY_UNKNOWN;
+
+        PeerSession(String address, boolean dialer, int attempt){
+            this.address = address;
+            this.dialer = dialer;
+            this.attempt = attempt;
+        }
+
+        int getState(){
+            return state.get();
+        }
+
+        /**
+         * moves the session from one state to another, returns false if it is no longer in the from state
+         * @throws IllegalStateException if the session may never make that move
+         */
+        private boolean transition(int from, int to){
+            boolean legal = (from == STATE_CONNECTING && to == STATE_CONNECTED)
+                    || ((from == STATE_CONNECTING || from == STATE_CONNECTED) && to == STATE_NONE);
+            if(!legal){
+                throw new IllegalStateException("Session can not go from state " + from + " to " + to);
+            }
+            return state.compareAndSet(from, to);
+        }
+
+        /**
+         * returns true if the session is connected and both sides relay
+         */
+        boolean relays(){
+            Handshake result = negotiated;
+            return result != null && result.supports(Handshake.FEATURE_RELAY) && getState() == STATE_CONNECTED;
+        }
+
+        private boolean isClosed(){
+            return state.get() == STATE_NONE;
+        }
+
+        /**
+         * tries to create connection to the peer and then keeps reading from it on the same thread
+         */
+        void dial(){
+            if(isClosed()){
+                return;
+            }
+            startedNanos = System.nanoTime();
+            metrics.increment(ChatMetrics.CONNECT_ATTEMPTS);
+            if(attempt > 0){
+                metrics.increment(ChatMetrics.RECONNECTS);
+            }
+            try {
+                link = transport.createLink(address);
+                if(isClosed()){
+                    throw new IOException("Cancelled");
+                }
+                link.connect();
+            }catch (IOException e){
+                Log.e("Connect to Run", e.toString());
+                if(cancel() != STATE_NONE){
+                    sessionEnded(this, false);
+                }
+                return;
+            }
+
+            if(connected(link)){
+                read();
+            }
+        }
+
+        /**
+         * sets up the streams and writer for a connected link and starts the handshake.
+         * Returns false if the session was cancelled in the meantime
+         */
+        boolean connected(ChatTransport.Link link){
+            try{
+                this.link = link;
+                inputStream = link.getInputStream();
+                channel = channelFor(address);
+                files = filesFor(address);
+                compressor = new FrameCompressor(bufferPool, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+                int features = Handshake.FEATURE_LINK_PROBE | (compression ? Handshake.FEATURE_COMPRESSION : 0)
+                        | (relay ? Handshake.FEATURE_RELAY : 0);
+                if(encryption){
+                    keyPair = FrameCipher.generateKeyPair();
+                    local = new Handshake(features, FrameCodec.DEFAULT_MAX_FRAME_SIZE, windowBytes, displayName,
+                            keyPair.getPublic().getEncoded());
+                }else{
+                    local = new Handshake(features, FrameCodec.DEFAULT_MAX_FRAME_SIZE, windowBytes, displayName);
+                }
+                writer = new FrameWriter(link.getOutputStream(), this, ioExecutor);
+                writer.setMetrics(metrics);
+                writer.offer(local.toFrame());
+            }catch (IOException | GeneralSecurityException e){
+                Log.e("Connect to in/outstream", e.toString());
+                if(cancel() != STATE_NONE){
+                    sessionEnded(this, false);
+                }
+                return false;
+            }
+
+            //a cancel() that came before the link and writer were set could not close them
+            if(isClosed()){
+                cancel();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * configures the connection with what both sides support and tells the listener it is connected,
+         * under the name the peer gave or the name of its device if it gave none
+         * @throws IOException if the peer can not be talked to or the session was cancelled
+         */
+        private void handshake(Handshake peer) throws IOException {
+            Handshake result;
+            try{
+                result = local.negotiate(peer);
+            }catch (IOException e){
+                incompatible = true;
+                metrics.increment(ChatMetrics.INCOMPATIBLE_PEERS);
+                throw e;
+            }
+            channel.setSendWindow(result.getWindowBytes());
+            if(result.supports(Handshake.FEATURE_COMPRESSION)){
+                writer.setCompressor(compressor);
+            }
+            if(result.supports(Handshake.FEATURE_ENCRYPTION)){
+                //both HELLOs go into the keys in the same order on both sides
+                byte[] dialerHello = dialer ? local.getEncoded() : peer.getEncoded();
+                byte[] acceptorHello = dialer ? peer.getEncoded() : local.getEncoded();
+                FrameCipher sessionCipher = FrameCipher.create(keyPair, result.getPublicKey(), dialerHello,
+                        acceptorHello, dialer);
+                writer.setCipher(sessionCipher);
+                cipher = sessionCipher;
+            }
+            keyPair = null;
+            writer.offer(channel.resumeFrame());
+            negotiated = result;
+            if(!transition(STATE_CONNECTING, STATE_CONNECTED)){
+                throw new IOException("Cancelled");
+            }
+            metrics.increment(ChatMetrics.CONNECTS);
+            metrics.record(dialer ? ChatMetrics.CONNECT_TIME : ChatMetrics.ACCEPT_TIME,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos));
+            if(result.supports(Handshake.FEATURE_LINK_PROBE)){
+                long interval = pingIntervalMs;
+                probeTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        probe();
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
+                //a cancel() that came before the task was set could not stop it
+                if(isClosed()){
+                    probeTask.cancel(false);
+                }
+            }
+            listener.onConnected(address, result.getName().isEmpty() ? link.getRemoteName() : result.getName());
+            updateState();
+            if(race != null){
+                raceWon(this);
+            }
+            //messages kept for a relaying peer can go out now
+            if(result.supports(Handshake.FEATURE_RELAY)){
+                mesh.flush(System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * reads frames for as long as the connection is open and sends each new message to the listener.
+         * Every DATA frame is acknowledged, duplicates too so the peer can let go of them,
+         * and DATA frames that arrive together share one ACK.
+         * Frames are decoded where they lie in the pooled receive buffer, nothing is copied on the way to the listener
+         * except for compressed frames, which are inflated into a pooled buffer of their own.
+         * Encrypted frames are decrypted in place before they are decoded.
+         * The connection only counts as lost if the session was not cancelled on purpose,
+         * a link that closes before the handshake is done counts as a failed connection
+         */
+        void read(){
+            FrameCodec codec = new FrameCodec(inputStream, FrameCodec.DEFAULT_MAX_FRAME_SIZE, bufferPool);
+            //false while waiting on the link, true while a frame that arrived is taken apart
+            boolean decoding = false;
+
+            try{
+                while(codec.nextFrame()){
+                    decoding = true;
+                    metrics.increment(ChatMetrics.FRAMES_IN);
+                    metrics.add(ChatMetrics.BYTES_IN, FrameCodec.varintSize(codec.getFrameLength()) + codec.getFrameLength());
+                    FrameCipher current = cipher;
+                    ChatFrame frame = current != null ? current.open(codec) : ChatFrame.decode(codec);
+                    if(frame.compressed){
+                        frame = compressor.inflate(frame);
+                        try{
+                            dispatch(frame);
+                        }finally {
+                            frame.release();
+                        }
+                    }else{
+                        dispatch(frame);
+                    }
+                    decoding = false;
+                }
+            }catch (IOException e){
+                Log.e("Input to Run", e.toString());
+                //a link closed on purpose is not an error
+                if(!isClosed()){
+                    metrics.increment(decoding ? ChatMetrics.DECODE_ERRORS : ChatMetrics.READ_ERRORS);
+                }
+            }
+            codec.release();
+            compressor.close();
+            int last = cancel();
+            if(last != STATE_NONE){
+                sessionEnded(this, last == STATE_CONNECTED);
+            }
+        }
+
+        /**
+         * handles one frame from the peer, the first one has to be its HELLO
+         */
+        private void dispatch(ChatFrame frame) throws IOException {
+            if(negotiated == null && frame.type != ChatFrame.TYPE_HELLO){
+                incompatible = true;
+                metrics.increment(ChatMetrics.INCOMPATIBLE_PEERS);
+                throw new IOException("Expected HELLO, got frame type " + frame.type);
+            }
+            switch (frame.type){
+                case ChatFrame.TYPE_DATA:
+                    firstMessage();
+                    if(channel.receive(frame.seq)){
+                        if(negotiated.supports(Handshake.FEATURE_RELAY) && MeshRelay.isPacket(frame)){
+                            mesh.receive(address, frame);
+                        }else{
+                            listener.onMessageRead(address, frame);
+                        }
+                    }
+                    pump(true);
+                    break;
+                case ChatFrame.TYPE_ACK:
+                    delivered(address, channel.acknowledge(frame.seq));
+                    pump(true);
+                    break;
+                case ChatFrame.TYPE_HELLO:
+                    if(negotiated != null){
+                        throw new IOException("Second HELLO");
+                    }
+                    //the HELLO arrives before the RESUME that lets us send, so nothing goes out unconfigured
+                    handshake(Handshake.fromFrame(frame));
+                    break;
+                case ChatFrame.TYPE_RESUME:
+                    delivered(address, channel.resume(frame));
+                    files.resume();
+                    chunkQueued = false;
+                    ready = true;
+                    pump(true);
+                    break;
+                case ChatFrame.TYPE_FILE_OFFER:
+                    files.offered(frame, incomingFiles);
+                    pump(true);
+                    break;
+                case ChatFrame.TYPE_FILE_CHUNK:
+                    files.chunk(frame);
+                    pump(true);
+                    break;
+                case ChatFrame.TYPE_FILE_ACK:
+                    files.acknowledged(frame);
+                    pump(true);
+                    break;
+                case ChatFrame.TYPE_FILE_CANCEL:
+                    files.cancelled(frame);
+                    pump(true);
+                    break;
+                case ChatFrame.TYPE_PING:
+                    writer.offer(ChatFrame.pong(frame));
+                    break;
+                case ChatFrame.TYPE_PONG:
+                    ponged(frame);
+                    break;
+                default:
+                    Log.e("Input to Run", "Unknown frame type " + frame.type);
+            }
+        }
+
+        /**
+         * runs on the timer every ping interval: closes the throughput period, counts a PING that got no answer,
+         * retunes the session and sends the next PING
+         */
+        private void probe(){
+            if(isClosed()){
+                return;
+            }
+            if(pendingPing >= 0){
+                quality.onProbeMissed();
+            }
+            quality.endPeriod(System.nanoTime());
+            tune();
+            long seq = ++lastPing;
+            pendingPing = seq;
+            if(!writer.offer(ChatFrame.ping(seq, System.nanoTime()))){
+                //the queue is full, the link is busy rather than lost
+                pendingPing = -1;
+            }
+        }
+
+        /**
+         * takes the round trip of the PING the PONG answers, a PONG for an older PING has already been counted missed
+         */
+        private void ponged(ChatFrame pong){
+            if(pong.seq != pendingPing){
+                return;
+            }
+            pendingPing = -1;
+            long rttUs = (System.nanoTime() - pong.longAt(0)) / 1000;
+            quality.onRoundTrip(rttUs);
+            metrics.record(ChatMetrics.ROUND_TRIP, rttUs);
+            tune();
+        }
+
+        /**
+         * sets the batching delay, window and chunk size from what is known about the link
+         * and tells the listener if the quality changed
+         */
+        private void tune(){
+            Handshake current = negotiated;
+            if(current == null){
+                return;
+            }
+            writer.setFlushDelay(quality.flushDelayMs(FrameWriter.DEFAULT_FLUSH_DELAY_MS));
+            channel.setSendWindow(quality.windowBytes(current.getWindowBytes()));
+            files.setChunkSize(quality.chunkSize(FileTransfers.CHUNK_SIZE));
+            int level = quality.getQuality();
+            boolean changed;
+            synchronized (quality){
+                changed = level != reportedQuality;
+                reportedQuality = level;
+            }
+            if(changed){
+                long rttUs = quality.getSmoothedRttUs();
+                listener.onLinkQuality(address, level, rttUs < 0 ? -1 : rttUs / 1000);
+            }
+            //a bigger window may let waiting messages go
+            pump(true);
+        }
+
+        /**
+         * adds the message to the channel and sends it as soon as the window allows.
+         * Returns false if the channel is already holding as much as it may or the message does not fit in a frame
+         * the peer reads
+         */
+        boolean send(byte[] payload){
+            if(!queue(payload)){
+                return false;
+            }
+            pump(false);
+            return true;
+        }
+
+        /**
+         * adds the message to the channel without sending anything yet, see send()
+         */
+        boolean queue(byte[] payload){
+            Handshake current = negotiated;
+            if(current != null && payload.length > current.getMaxPayloadSize()){
+                return false;
+            }
+            return channel.add(payload) != null;
+        }
+
+        /**
+         * queues the ACK owed to the peer, the file control frames and then as many DATA frames as the window
+         * and the writer queue take, followed by one file chunk if asked for and none is queued yet.
+         * Never blocks, whatever is left is picked up by the next ACK or the next frame the writer finishes
+         */
+        void pump(boolean withChunks){
+            ReliableChannel current = channel;
+            FileTransfers currentFiles = files;
+            FrameWriter out = writer;
+            if(!ready || isClosed()){
+                return;
+            }
+            synchronized (current){
+                ChatFrame ack = current.pendingAck();
+                if(ack != null){
+                    if(!out.offer(ack)){
+                        return;
+                    }
+                    current.ackSent();
+                }
+                //read the chunk first, a file that can not be read queues a cancel for the peer
+                ChatFrame chunk = withChunks && !chunkQueued ? currentFiles.nextChunk() : null;
+                ChatFrame frame;
+                while((frame = currentFiles.peekControl()) != null){
+                    if(!out.offer(frame)){
+                        return;
+                    }
+                    currentFiles.controlSent();
+                }
+                while((frame = current.nextToSend()) != null && out.offer(frame)){
+                    current.markSent(frame);
+                }
+                if(chunk != null){
+                    //set before the offer, the writer can finish the chunk before offer() returns
+                    chunkQueued = true;
+                    if(out.offer(chunk)){
+                        currentFiles.chunkSent(chunk);
+                    }else{
+                        chunkQueued = false;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onFrameWritten(ChatFrame frame){
+            quality.onBytesWritten(frame.encodedSize());
+            if(frame.type == ChatFrame.TYPE_DATA){
+                firstMessage();
+                written(frame.body);
+            }else if(frame.type == ChatFrame.TYPE_FILE_CHUNK){
+                chunkQueued = false;
+            }
+            pump(true);
+        }
+
+        /**
+         * records how long the session took from dialing or accepting to its first message
+         */
+        private void firstMessage(){
+            if(!messaged.get() && messaged.compareAndSet(false, true)){
+                metrics.record(ChatMetrics.FIRST_MESSAGE_TIME,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos));
+            }
+        }
+
+        /**
+         * DATA frames stay in the channel to be sent again after a reconnect,
+         * they only count as failed once the channel is dropped. File chunks are sent again from the offset
+         * the peer reports when the files are offered again
+         */
+        @Override
+        public void onFrameFailed(ChatFrame frame, IOException e){
+            Log.e("Output to Write", e.toString());
+            if(frame.type == ChatFrame.TYPE_FILE_CHUNK){
+                chunkQueued = false;
+            }
+        }
+
+        /**
+         * closes the session, stops the writer and closes the link, queued messages stay in the channel.
+         * Returns the state the session was in, STATE_NONE if it had been closed already
+         */
+        int cancel(){
+            int last;
+            do{
+                last = state.get();
+            }while(last != STATE_NONE && !transition(last, STATE_NONE));
+            FrameWriter current = writer;
+            if(current != null){
+                current.cancel();
+            }
+            ScheduledFuture<?> probe = probeTask;
+            if(probe != null){
+                probe.cancel(false);
+            }
+            closeLink();
+            return last;
+        }
+
+        /**
+         * cancels the session unless it has connected, returns false if it is connected and was left alone
+         */
+        boolean cancelAttempt(){
+            if(transition(STATE_CONNECTING, STATE_NONE)){
+                cancel();
+                return true;
+            }
+            return getState() != STATE_CONNECTED;
+        }
+
+        private void closeLink(){
+            ChatTransport.Link current = link;
+            if(current == null){
+                return;
+            }
+            try{
+                current.close();
+            }catch(IOException e){
+                Log.e("Connect to Cancel", e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+
+/**
+ * One frame of the chat protocol, carried inside a FrameCodec length prefix.
+ * On the wire a frame is a type byte, a varint sequence number and the body.
+ * DATA frames carry a message, ACK frames acknowledge every DATA frame up to their sequence number
+ * A HELLO frame with the Handshake of each side is the first thing each side sends on a new connection,
+ * followed by a RESUME frame.
+ * The FILE frames belong to a file transfer and carry its id in place of the sequence number.
+ * PING frames carry the time they were sent and are answered by a PONG with the same sequence number and body,
+ * which gives the sender the round trip time of the link.
+ * A frame decoded straight from a FrameCodec receive buffer points into that buffer,
+ * retain() it to keep the frame past the call that handed it over and release() it when done.
+ * A frame with FLAG_COMPRESSED set in its type byte has a deflated body, see FrameCompressor.
+ */
+public class ChatFrame {
+
+    public static final int TYPE_DATA = 0;
+    public static final int TYPE_ACK = 1;
+    public static final int TYPE_RESUME = 2;
+    public static final int TYPE_FILE_OFFER = 3;
+    public static final int TYPE_FILE_CHUNK = 4;
+    public static final int TYPE_FILE_ACK = 5;
+    public static final int TYPE_FILE_CANCEL = 6;
+    public static final int TYPE_HELLO = 7;
+    public static final int TYPE_PING = 8;
+    public static final int TYPE_PONG = 9;
+
+    //set in the type byte of a frame whose body is compressed
+    public static final int FLAG_COMPRESSED = 0x80;
+
+    private static final int RESUME_BODY_SIZE = 24;
+    //four varints, the name can be empty
+    private static final int HELLO_MIN_BODY_SIZE = 4;
+    private static final int PING_BODY_SIZE = 8;
+
+    public final int type;
+    public final long seq;
+    public final byte[] body;
+    public final int offset;
+    public final int length;
+    //true if the body is still deflated
+    public final boolean compressed;
+    //pooled buffer the body lives in, null when the body is an array of its own
+    private final PooledBuffer buffer;
+
+    private ChatFrame(int type, long seq, byte[] body, int offset, int length){
+        this(type, false, seq, body, offset, length, null);
+    }
+
+    private ChatFrame(int type, boolean compressed, long seq, byte[] body, int offset, int length, PooledBuffer buffer){
+        this.type = type;
+        this.compressed = compressed;
+        this.seq = seq;
+        this.body = body;
+        this.offset = offset;
+        this.length = length;
+        this.buffer = buffer;
+    }
+
+    /**
+     * returns a DATA frame for the message, the payload array is used as it is and not copied
+     * @param seq
+     * @param payload
+     * @return
+     */
+    public static ChatFrame data(long seq, byte[] payload){
+        return new ChatFrame(TYPE_DATA, seq, payload, 0, payload.length);
+    }
+
+    /**
+     * returns an ACK frame acknowledging every DATA frame up to and including seq
+     * @param seq
+     * @return
+     */
+    public static ChatFrame ack(long seq){
+        return new ChatFrame(TYPE_ACK, seq, null, 0, 0);
+    }
+
+    /**
+     * returns a RESUME frame telling the peer which stream we send on and how far we got on theirs
+     * @param streamId id of the stream this side sends on
+     * @param peerStreamId id of the peer stream this side last received from, 0 if none
+     * @param lastReceived highest sequence number received on the peer stream
+     * @return
+     */
+    public static ChatFrame resume(long streamId, long peerStreamId, long lastReceived){
+        byte[] body = new byte[RESUME_BODY_SIZE];
+        putLong(body, 0, streamId);
+        putLong(body, 8, peerStreamId);
+        putLong(body, 16, lastReceived);
+        return new ChatFrame(TYPE_RESUME, 0, body, 0, body.length);
+    }
+
+    /**
+     * returns a PING frame
+     * @param seq number of the probe, echoed in the PONG
+     * @param sentNanos System.nanoTime() when it was sent
+     * @return
+     */
+    public static ChatFrame ping(long seq, long sentNanos){
+        byte[] body = new byte[PING_BODY_SIZE];
+        putLong(body, 0, sentNanos);
+        return new ChatFrame(TYPE_PING, seq, body, 0, body.length);
+    }
+
+    /**
+     * returns the PONG answering a PING, with a copy of its body since the PING may live in a receive buffer
+     * @param ping
+     * @return
+     */
+    public static ChatFrame pong(ChatFrame ping){
+        byte[] body = new byte[PING_BODY_SIZE];
+        System.arraycopy(ping.body, ping.offset, body, 0, PING_BODY_SIZE);
+        return new ChatFrame(TYPE_PONG, ping.seq, body, 0, body.length);
+    }
+
+    /**
+     * returns a frame whose body was inflated into the given buffer, the frame holds the buffer's reference
+     * @throws IOException if the body is too short for the type
+     */
+    static ChatFrame inflated(int type, long seq, PooledBuffer buffer, int length) throws IOException {
+        checkBody(type, length);
+        return new ChatFrame(type, false, seq, buffer.array(), 0, length, buffer);
+    }
+
+    /**
+     * returns a frame of the given type with the body as it is, for frames that build their own body
+     * @param type
+     * @param seq
+     * @param body
+     * @return
+     */
+    public static ChatFrame create(int type, long seq, byte[] body){
+        return new ChatFrame(type, seq, body, 0, body.length);
+    }
+
+    /**
+     * returns a frame of the same type and sequence number whose body starts skip bytes further in.
+     * It shares the body and buffer of this frame, retain() and release() on either count for both
+     * @param skip
+     * @return
+     */
+    ChatFrame slice(int skip){
+        return new ChatFrame(type, compressed, seq, body, offset + skip, length - skip, buffer);
+    }
+
+    /**
+     * keeps the buffer the frame was decoded into from being reused until release() is called
+     * @return the frame itself
+     */
+    public ChatFrame retain(){
+        if(buffer != null){
+            buffer.retain();
+        }
+        return this;
+    }
+
+    /**
+     * gives back a reference taken with retain()
+     */
+    public void release(){
+        if(buffer != null){
+            buffer.release();
+        }
+    }
+
+    /**
+     * returns the body as its own array, the payload array itself when the frame covers all of it
+     */
+    public byte[] payload(){
+        if(offset == 0 && body != null && length == body.length){
+            return body;
+        }
+        byte[] copy = new byte[length];
+        if(length > 0){
+            System.arraycopy(body, offset, copy, 0, length);
+        }
+        return copy;
+    }
+
+    /**
+     * RESUME only, the stream the peer sends on
+     */
+    public long resumeStreamId(){
+        return longAt(0);
+    }
+
+    /**
+     * RESUME only, the stream of ours the peer last received from
+     */
+    public long resumePeerStreamId(){
+        return longAt(8);
+    }
+
+    /**
+     * RESUME only, the highest sequence number the peer received from us
+     */
+    public long resumeLastReceived(){
+        return longAt(16);
+    }
+
+    /**
+     * reads the big endian long at the given index of the body
+     */
+    public long longAt(int index){
+        return getLong(body, offset + index);
+    }
+
+    /**
+     * reads the big endian int at the given index of the body
+     */
+    public int intAt(int index){
+        int pos = offset + index;
+        return ((body[pos] & 0xff) << 24) | ((body[pos + 1] & 0xff) << 16) | ((body[pos + 2] & 0xff) << 8) | (body[pos + 3] & 0xff);
+    }
+
+    /**
+     * returns the number of bytes encode() writes
+     */
+    public int encodedSize(){
+        return 1 + FrameCodec.varlongSize(seq) + length;
+    }
+
+    /**
+     * writes the frame into dest at pos and returns the position after it
+     * @param dest
+     * @param pos
+     * @return
+     */
+    public int encode(byte[] dest, int pos){
+        dest[pos++] = (byte) type;
+        pos += FrameCodec.writeVarlong(dest, pos, seq);
+        if(length > 0){
+            System.arraycopy(body, offset, dest, pos, length);
+        }
+        return pos + length;
+    }
+
+    /**
+     * reads a frame without its length prefix, the body refers to the given array and is not copied
+     * @param frame
+     * @return
+     * @throws IOException if the frame is malformed
+     */
+    public static ChatFrame decode(byte[] frame) throws IOException {
+        return decode(frame, 0, frame.length, null);
+    }
+
+    /**
+     * reads the frame the last FrameCodec.nextFrame() call left in the codec's receive buffer, without copying it
+     * @param codec
+     * @return
+     * @throws IOException if the frame is malformed
+     */
+    public static ChatFrame decode(FrameCodec codec) throws IOException {
+        PooledBuffer buffer = codec.getFrameBuffer();
+        return decode(buffer.array(), codec.getFrameOffset(), codec.getFrameLength(), buffer);
+    }
+
+    /**
+     * reads a frame that lies in the given part of a pooled buffer, like decode(codec) does
+     */
+    static ChatFrame decode(PooledBuffer buffer, int offset, int length) throws IOException {
+        return decode(buffer.array(), offset, length, buffer);
+    }
+
+    private static ChatFrame decode(byte[] frame, int start, int frameLength, PooledBuffer buffer) throws IOException {
+        int limit = start + frameLength;
+        if(frameLength < 2){
+            throw new IOException("Frame too short");
+        }
+        int type = frame[start] & 0xff & ~FLAG_COMPRESSED;
+        boolean compressed = (frame[start] & FLAG_COMPRESSED) != 0;
+        long seq = 0;
+        int pos = start + 1;
+        for(int shift = 0; ; shift += 7){
+            if(pos >= limit || shift > 63){
+                throw new IOException("Malformed sequence number");
+            }
+            byte b = frame[pos++];
+            seq |= (long) (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                break;
+            }
+        }
+        int length = limit - pos;
+        //a compressed body is checked once it is inflated
+        if(!compressed){
+            checkBody(type, length);
+        }
+        return new ChatFrame(type, compressed, seq, frame, pos, length, buffer);
+    }
+
+    private static void checkBody(int type, int length) throws IOException {
+        if(length < minBodySize(type) || (type == TYPE_RESUME && length != RESUME_BODY_SIZE)){
+            throw new IOException("Malformed frame of type " + type);
+        }
+    }
+
+    private static int minBodySize(int type){
+        switch (type){
+            case TYPE_RESUME:
+                return RESUME_BODY_SIZE;
+            case TYPE_HELLO:
+                return HELLO_MIN_BODY_SIZE;
+            case TYPE_FILE_OFFER:
+            case TYPE_FILE_ACK:
+                return 8;
+            case TYPE_FILE_CHUNK:
+                return 12;
+            case TYPE_PING:
+            case TYPE_PONG:
+                return PING_BODY_SIZE;
+            default:
+                return 0;
+        }
+    }
+
+    static void putLong(byte[] dest, int pos, long value){
+        for(int i = 7; i >= 0; i--){
+            dest[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static void putInt(byte[] dest, int pos, int value){
+        for(int i = 3; i >= 0; i--){
+            dest[pos + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    static long getLong(byte[] src, int pos){
+        long value = 0;
+        for(int i = 0; i < 8; i++){
+            value = (value << 8) | (src[pos + i] & 0xff);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.bluemessage;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One line of the conversation on the main chat page.
+ * Messages of the user also carry how far they got, from queued to delivered.
+ * Every message belongs to the conversation with one peer address and is kept in the MessageStore,
+ * id is 0 until the store has written it, key tells messages apart in the chat list from the start.
+ * uid is the id the sender gave the message, it travels in the MessageEnvelope so reactions from either side
+ * can name the message they belong to
+ */
+public class ChatMessage {
+
+    public static final int STATUS_SENDING = 0;
+    public static final int STATUS_SENT = 1;
+    public static final int STATUS_DELIVERED = 2;
+    public static final int STATUS_FAILED = 3;
+
+    private static final AtomicLong keys = new AtomicLong();
+    private static final Random uids = new Random();
+
+    private final long key = keys.incrementAndGet();
+    private volatile long id;
+    private final long uid;
+    private final String peer;
+    private final long timestamp;
+    private final String sender;
+    private final String text;
+    private final boolean outgoing;
+    private volatile int status;
+    private volatile int localReaction;
+    private volatile int remoteReaction;
+
+    /**
+     * Constructor for a new message
+     * @param peer address of the device the conversation is with
+     * @param sender name shown in front of the text
+     * @param text
+     * @param outgoing true for messages written by the user
+     */
+    public ChatMessage(String peer, String sender, String text, boolean outgoing){
+        this(newUid(), peer, sender, text, outgoing);
+    }
+
+    /**
+     * Constructor for a new message whose uid was given by the sender
+     * @param uid
+     * @param peer
+     * @param sender
+     * @param text
+     * @param outgoing
+     */
+    public ChatMessage(long uid, String peer, String sender, String text, boolean outgoing){
+        this(0, uid, peer, System.currentTimeMillis(), sender, text, outgoing,
+                outgoing ? STATUS_SENDING : STATUS_DELIVERED, MessageEnvelope.REACTION_NONE, MessageEnvelope.REACTION_NONE);
+    }
+
+    /**
+     * Constructor for a message loaded from the store
+     * @param id
+     * @param uid
+     * @param peer
+     * @param timestamp
+     * @param sender
+     * @param text
+     * @param outgoing
+     * @param status
+     * @param localReaction
+     * @param remoteReaction
+     */
+    public ChatMessage(long id, long uid, String peer, long timestamp, String sender, String text, boolean outgoing,
+                       int status, int localReaction, int remoteReaction){
+        this.id = id;
+        this.uid = uid;
+        this.peer = peer;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.text = text;
+        this.outgoing = outgoing;
+        this.status = status;
+        this.localReaction = localReaction;
+        this.remoteReaction = remoteReaction;
+    }
+
+    /**
+     * returns a random uid, never 0 since 0 stands for no message in the envelope
+     */
+    public static long newUid(){
+        long uid;
+        do{
+            uid = uids.nextLong();
+        }while(uid == 0);
+        return uid;
+    }
+
+    /**
+     * returns a number no other message in this process has, used as the stable id in the chat list
+     */
+    public long getKey(){
+        return key;
+    }
+
+    public long getId(){
+        return id;
+    }
+
+    void setId(long id){
+        this.id = id;
+    }
+
+    public long getUid(){
+        return uid;
+    }
+
+    public String getPeer(){
+        return peer;
+    }
+
+    /**
+     * time the message was written or received, in milliseconds since the epoch
+     */
+    public long getTimestamp(){
+        return timestamp;
+    }
+
+    public String getSender(){
+        return sender;
+    }
+
+    public String getText(){
+        return text;
+    }
+
+    public boolean isOutgoing(){
+        return outgoing;
+    }
+
+    public int getStatus(){
+        return status;
+    }
+
+    /**
+     * moves the message to a later status, a late sent report does not undo delivered or failed
+     * @param status
+     */
+    public void setStatus(int status){
+        if(status > this.status){
+            this.status = status;
+        }
+    }
+
+    /**
+     * reaction of the user to the message, one of the MessageEnvelope REACTION codes
+     */
+    public int getLocalReaction(){
+        return localReaction;
+    }
+
+    public void setLocalReaction(int reaction){
+        localReaction = reaction;
+    }
+
+    /**
+     * reaction of the other device to the message
+     */
+    public int getRemoteReaction(){
+        return remoteReaction;
+    }
+
+    public void setRemoteReaction(int reaction){
+        remoteReaction = reaction;
+    }
+
+    /**
+     * returns the reactions as shown under the message, empty if there are none
+     */
+    public String getReactionLabel(){
+        String remote = reactionLabel(remoteReaction);
+        String local = reactionLabel(localReaction);
+        if(remote.isEmpty() || local.isEmpty()){
+            return remote + local;
+        }
+        return remote + " " + local;
+    }
+
+    private static String reactionLabel(int reaction){
+        switch (reaction){
+            case MessageEnvelope.REACTION_LOL:
+                return "\ud83d\ude02";
+            case MessageEnvelope.REACTION_THUMBS_UP:
+                return "\ud83d\udc4d";
+            case MessageEnvelope.REACTION_THUMBS_DOWN:
+                return "\ud83d\udc4e";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * returns the status as shown under the user's own messages
+     */
+    public String getStatusLabel(){
+        switch (status){
+            case STATUS_SENDING:
+                return "Sending";
+            case STATUS_SENT:
+                return "Sent";
+            case STATUS_DELIVERED:
+                return "Delivered";
+            default:
+                return "Not sent";
+        }
+    }
+
+    /**
+     * text shown in the chat list, the status of the user's messages is shown on its own line
+     */
+    @Override
+    public String toString(){
+        return sender + ": " + text;
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.bluemessage;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of what the engine's connections do, for diagnosing slow or flaky links.
+ * Recording is lock free, every value is an atomic add so the I/O threads never wait on each other to count,
+ * and reading takes a snapshot of each value on its own, so a dump taken while traffic flows can be off
+ * by the few frames that were recorded in between.
+ * dump() gives everything as text for the debug screen or to be shared from the device
+ */
+public class ChatMetrics {
+
+    public static final int CONNECT_ATTEMPTS = 0;
+    public static final int CONNECTS = 1;
+    public static final int CONNECT_FAILURES = 2;
+    public static final int ACCEPTS = 3;
+    public static final int RECONNECTS = 4;
+    public static final int CONNECTIONS_LOST = 5;
+    public static final int INCOMPATIBLE_PEERS = 6;
+    public static final int BYTES_IN = 7;
+    public static final int BYTES_OUT = 8;
+    public static final int FRAMES_IN = 9;
+    public static final int FRAMES_OUT = 10;
+    public static final int DECODE_ERRORS = 11;
+    public static final int READ_ERRORS = 12;
+    public static final int WRITE_ERRORS = 13;
+    public static final int ACCEPT_ERRORS = 14;
+    //relay packets passed on, dropped as copies, kept for later and given up on, see MeshRelay
+    public static final int RELAY_FORWARDED = 15;
+    public static final int RELAY_DUPLICATES = 16;
+    public static final int RELAY_STORED = 17;
+    public static final int RELAY_DROPPED = 18;
+    private static final int COUNTERS = 19;
+
+    private static final String[] COUNTER_NAMES = {"connect_attempts", "connects", "connect_failures", "accepts",
+            "reconnects", "connections_lost", "incompatible_peers", "bytes_in", "bytes_out", "frames_in", "frames_out",
+            "decode_errors", "read_errors", "write_errors", "accept_errors", "relay_forwarded", "relay_duplicates",
+            "relay_stored", "relay_dropped"};
+
+    //dial to handshake done, in milliseconds
+    public static final int CONNECT_TIME = 0;
+    //accepted link to handshake done, in milliseconds
+    public static final int ACCEPT_TIME = 1;
+    //one batch written and flushed to the link, in microseconds
+    public static final int WRITE_LATENCY = 2;
+    //frames waiting in a writer when it starts a batch
+    public static final int QUEUE_DEPTH = 3;
+    //bytes in one batch
+    public static final int BATCH_SIZE = 4;
+    //PING to PONG, in microseconds
+    public static final int ROUND_TRIP = 5;
+    //dial or accept to the first message sent or received on the link, in milliseconds
+    public static final int FIRST_MESSAGE_TIME = 6;
+    private static final int HISTOGRAMS = 7;
+
+    private static final String[] HISTOGRAM_NAMES = {"connect_time_ms", "accept_time_ms", "write_latency_us",
+            "queue_depth", "batch_bytes", "round_trip_us", "first_message_ms"};
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+    private final Histogram[] histograms = new Histogram[HISTOGRAMS];
+    private volatile long since = System.currentTimeMillis();
+
+    /**
+     * Constructor for a set of metrics that starts at zero
+     */
+    public ChatMetrics(){
+        for(int i = 0; i < HISTOGRAMS; i++){
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * adds one to the counter
+     * @param counter one of the counter constants
+     */
+    public void increment(int counter){
+        counters.incrementAndGet(counter);
+    }
+
+    /**
+     * adds the amount to the counter
+     * @param counter one of the counter constants
+     * @param amount
+     */
+    public void add(int counter, long amount){
+        counters.addAndGet(counter, amount);
+    }
+
+    public long get(int counter){
+        return counters.get(counter);
+    }
+
+    /**
+     * records one value in the histogram
+     * @param histogram one of the histogram constants
+     * @param value
+     */
+    public void record(int histogram, long value){
+        histograms[histogram].record(value);
+    }
+
+    public Histogram getHistogram(int histogram){
+        return histograms[histogram];
+    }
+
+    /**
+     * sets everything back to zero, values recorded at the same time may survive the reset
+     */
+    public void reset(){
+        for(int i = 0; i < COUNTERS; i++){
+            counters.set(i, 0);
+        }
+        for(Histogram histogram : histograms){
+            histogram.reset();
+        }
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * returns every counter and histogram as one line each, name first, in a form that is easy to read and to parse
+     * @return
+     */
+    public String dump(){
+        StringBuilder out = new StringBuilder();
+        out.append("since ").append(since).append(" uptime_s ")
+                .append((System.currentTimeMillis() - since) / 1000).append('\n');
+        for(int i = 0; i < COUNTERS; i++){
+            out.append(COUNTER_NAMES[i]).append(' ').append(counters.get(i)).append('\n');
+        }
+        for(int i = 0; i < HISTOGRAMS; i++){
+            Histogram histogram = histograms[i];
+            out.append(HISTOGRAM_NAMES[i])
+                    .append(" count ").append(histogram.getCount())
+                    .append(" mean ").append(String.format(Locale.US, "%.1f", histogram.getMean()))
+                    .append(" p50 ").append(histogram.getPercentile(50))
+                    .append(" p90 ").append(histogram.getPercentile(90))
+                    .append(" p99 ").append(histogram.getPercentile(99))
+                    .append(" max ").append(histogram.getMax())
+                    .append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Distribution of non negative values in power of two buckets: bucket 0 counts 0, bucket n counts values
+     * from 2^(n-1) up to 2^n - 1. Percentiles are the upper end of the bucket they fall into,
+     * so they are never more than twice the real value, which is plenty to tell a slow link from a fast one
+     */
+    public static class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * records the value, negative values count as 0
+         * @param value
+         */
+        public void record(long value){
+            if(value < 0){
+                value = 0;
+            }
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while(value > (current = max.get()) && !max.compareAndSet(current, value)){
+                //another thread raised the maximum in the meantime, try again against its value
+            }
+        }
+
+        public long getCount(){
+            return count.get();
+        }
+
+        public long getMax(){
+            return max.get();
+        }
+
+        public double getMean(){
+            long total = count.get();
+            return total == 0 ? 0 : (double) sum.get() / total;
+        }
+
+        /**
+         * returns the value the given percent of the recorded values are at or below, 0 if nothing was recorded
+         * @param percent between 0 and 100
+         * @return
+         */
+        public long getPercentile(double percent){
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++){
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if(total == 0){
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percent / 100);
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++){
+                seen += snapshot[i];
+                if(seen >= rank && snapshot[i] > 0){
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        void reset(){
+            for(int i = 0; i < BUCKETS; i++){
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.bluemessage;
+
+import android.app.Notification;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+
+import androidx.annotation.NonNull;
+import androidx.core.app.NotificationChannelCompat;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+
+import java.util.ArrayDeque;
+
+/**
+ * Foreground service that owns the ChatUtils and with it the connections, so they outlive the activity:
+ * a rotation or the app going to the background no longer closes the links and forces a reconnect.
+ * The activity binds to the service and subscribes its handler to the events of ChatUtils.
+ * Events that come while no activity is subscribed are kept, up to MAX_PENDING_EVENTS, and handed to the next
+ * subscriber, which also gets the current state and connected device first so it can show them straight away.
+ * The service runs until it is stopped, DiscoverDevice does that when the user leaves the chat.
+ * Everything but the connections themselves runs on the main thread
+ */
+public class ChatService extends Service {
+
+    private static final int NOTIFICATION_ID = 1;
+    private static final String CHANNEL_ID = "chat_session";
+    //oldest events are dropped past this while nobody is subscribed
+    private static final int MAX_PENDING_EVENTS = 256;
+
+    private final IBinder binder = new LocalBinder();
+    private ChatUtils chatUtils;
+    private Handler subscriber;
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    //latest state and connected device, replayed to every new subscriber
+    private Message lastState;
+    private Message lastDevice;
+
+    /**
+     * Binder handing the service to activities in the same process
+     */
+    public class LocalBinder extends Binder {
+        public ChatService getService(){
+            return ChatService.this;
+        }
+    }
+
+    //receives the events of ChatUtils on the main thread and passes them on
+    private final Handler events = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(@NonNull Message message) {
+            dispatch(message);
+            return true;
+        }
+    });
+
+    @Override
+    public void onCreate(){
+        super.onCreate();
+        NotificationManagerCompat.from(this).createNotificationChannel(
+                new NotificationChannelCompat.Builder(CHANNEL_ID, NotificationManagerCompat.IMPORTANCE_LOW)
+                        .setName(getString(R.string.str_chat_session))
+                        .build());
+        startForeground(NOTIFICATION_ID, notification("Not Connected"));
+        chatUtils = new ChatUtils(this, events);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId){
+        //without the activity that started it there is nobody to chat with after the process is killed
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent){
+        return binder;
+    }
+
+    /**
+     * closes every connection, stops the engine's threads and drops the events nobody picked up
+     */
+    @Override
+    public void onDestroy(){
+        chatUtils.shutdown();
+        events.removeCallbacksAndMessages(null);
+        while(!pending.isEmpty()){
+            discard(pending.poll());
+        }
+        if(lastState != null){
+            lastState.recycle();
+            lastState = null;
+        }
+        if(lastDevice != null){
+            lastDevice.recycle();
+            lastDevice = null;
+        }
+        super.onDestroy();
+    }
+
+    public ChatUtils getChatUtils(){
+        return chatUtils;
+    }
+
+    /**
+     * makes the handler the one the events go to, replacing the previous subscriber.
+     * It gets the current state and connected device first, then the events that came while nobody was subscribed.
+     * The device comes as MESSAGE_DEVICE_SYNC so a recreated activity does not announce the connection again
+     * @param handler
+     */
+    public void subscribe(Handler handler){
+        subscriber = handler;
+        if(lastDevice != null){
+            Message sync = Message.obtain(lastDevice);
+            sync.what = DiscoverDevice.MESSAGE_DEVICE_SYNC;
+            sync.setTarget(subscriber);
+            sync.sendToTarget();
+        }
+        if(lastState != null){
+            forward(lastState);
+        }
+        while(!pending.isEmpty()){
+            Message message = pending.poll();
+            message.setTarget(handler);
+            message.sendToTarget();
+        }
+    }
+
+    /**
+     * stops sending events to the handler, events are kept for the next subscriber from now on
+     * @param handler
+     */
+    public void unsubscribe(Handler handler){
+        if(subscriber == handler){
+            subscriber = null;
+        }
+    }
+
+    /**
+     * passes an event on to the subscriber or keeps it until there is one.
+     * The state and connected device are also remembered for later subscribers and shown in the notification
+     */
+    private void dispatch(Message message){
+        switch (message.what){
+            case DiscoverDevice.MESSAGE_STATE_CHANGE:
+                if(lastState != null){
+                    lastState.recycle();
+                }
+                lastState = Message.obtain(message);
+                if(message.arg1 != ChatUtils.STATE_CONNECTED && lastDevice != null){
+                    lastDevice.recycle();
+                    lastDevice = null;
+                }
+                updateNotification();
+                break;
+            case DiscoverDevice.MESSAGE_DEVICE_NAME:
+                if(lastDevice != null){
+                    lastDevice.recycle();
+                }
+                lastDevice = Message.obtain(message);
+                updateNotification();
+                break;
+        }
+
+        if(subscriber != null){
+            forward(message);
+        }else if(message.what != DiscoverDevice.MESSAGE_STATE_CHANGE && message.what != DiscoverDevice.MESSAGE_DEVICE_NAME){
+            if(pending.size() >= MAX_PENDING_EVENTS){
+                discard(pending.poll());
+            }
+            pending.add(Message.obtain(message));
+        }
+    }
+
+    /**
+     * sends a copy of the message to the subscriber, the original stays with its owner
+     */
+    private void forward(Message message){
+        Message copy = Message.obtain(message);
+        copy.setTarget(subscriber);
+        copy.sendToTarget();
+    }
+
+    /**
+     * lets go of an event nobody will see, a message read holds a receive buffer until it is released
+     */
+    private static void discard(Message message){
+        if(message.what == DiscoverDevice.MESSAGE_READ){
+            ((ChatFrame) message.obj).release();
+        }
+        message.recycle();
+    }
+
+    private void updateNotification(){
+        String text;
+        if(lastDevice != null){
+            text = "Connected " + lastDevice.getData().getString(DiscoverDevice.DEVICE_NAME);
+        }else if(lastState != null && lastState.arg1 == ChatUtils.STATE_CONNECTING){
+            text = "Connecting...";
+        }else if(lastState != null && lastState.arg1 == ChatUtils.STATE_LISTEN){
+            text = "Listening";
+        }else{
+            text = "Not Connected";
+        }
+        NotificationManagerCompat.from(this).notify(NOTIFICATION_ID, notification(text));
+    }
+
+    private Notification notification(String text){
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_baseline_bluetooth_searching_24)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setOngoing(true)
+                .build();
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.bluemessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The socket layer used by ChatEngine.
+ * RfcommTransport is used on the phone, LoopbackTransport and TcpTransport let the same connection code run on a plain JVM.
+ */
+public interface ChatTransport {
+
+    /**
+     * opens a server that other devices can connect to
+     * @return
+     * @throws IOException
+     */
+    Server listen() throws IOException;
+
+    /**
+     * creates a link to the device with the given address, the link is not connected until connect() is called
+     * @param address
+     * @return
+     * @throws IOException
+     */
+    Link createLink(String address) throws IOException;
+
+    /**
+     * Listening side of a transport, close() makes a blocked accept() throw
+     */
+    interface Server extends Closeable {
+        Link accept() throws IOException;
+    }
+
+    /**
+     * One connection between two devices, close() makes blocked reads and a blocked connect() throw
+     */
+    interface Link extends Closeable {
+        void connect() throws IOException;
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getRemoteAddress();
+
+        String getRemoteName();
+    }
+}
@@ -2,39 +2,72 @@ package com.example.bluemessage;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.util.Log;
 
+import androidx.core.util.AtomicFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * constructor that handles the state changes of the messages
+ * The connection itself is run by a ChatEngine over Bluetooth RFCOMM, this class passes its events on to the handler
  */
-public class ChatUtils {
+public class ChatUtils implements ChatEngine.Listener {
     private Context context;
     private final Handler handler;
     private BluetoothAdapter bluetoothAdapter;
 //    private final UUID APP_UUID = UUID.fromString("fa87c0d0-afac-11de-8a39-0800200c9a66");
     private final UUID APP_UUID = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
     private final String APP_NAME = "BlueMessage";
-    private ConnectThread connectionThread;
-    private AcceptThread acceptThread;
-    private MessageThread messageThread;
-
-    public static final int STATE_NONE = 0;
-    public static final int STATE_LISTEN = 1;
-    public static final int STATE_CONNECTING = 2;
-    public static final int STATE_CONNECTED = 3;
-
-    private int state;
+    private final ChatEngine engine;
+    private final Map<String, String> peerNames = new ConcurrentHashMap<>();
+    //devices connected to lately, raced by connectRecent()
+    private final RecentPeers recentPeers = new RecentPeers();
+    //replaced in one rename like the outbox's file
+    private final AtomicFile recentPeersFile;
+    private final AtomicBoolean recentPeersSaveScheduled = new AtomicBoolean();
+    //how many of the recent devices connectRecent() dials at once
+    private static final int RECENT_RACE_SIZE = 3;
+    //messages written to devices that are not connected, sent as one burst when they connect
+    private final Outbox outbox = new Outbox();
+    //replaced in one rename, a crash while saving leaves the previous outbox
+    private final AtomicFile outboxFile;
+    //reads and saves the outbox and saves the recent devices off the caller's thread,
+    //one save covers every change made before it starts
+    private final ExecutorService outboxExecutor;
+    private final AtomicBoolean outboxSaveScheduled = new AtomicBoolean();
+    private volatile boolean relay;
+
+    public static final int STATE_NONE = ChatEngine.STATE_NONE;
+    public static final int STATE_LISTEN = ChatEngine.STATE_LISTEN;
+    public static final int STATE_CONNECTING = ChatEngine.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ChatEngine.STATE_CONNECTED;
 
     /**
      * Constructor to handle the connection and messages between devices
@@ -45,349 +78,483 @@ public class ChatUtils {
         this.context = context;
         this.handler = handler;
 
-        state = STATE_NONE;
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        engine = new ChatEngine(new RfcommTransport(bluetoothAdapter, APP_NAME, APP_UUID), this);
+        final File received = new File(context.getFilesDir(), "received");
+        engine.setIncomingFiles(new ChatEngine.IncomingFiles() {
+            /**
+             * saves received files in the app's own storage under the name the sender gave, without any path in it
+             */
+            @Override
+            public FileChannel open(String address, String name, long size) throws IOException {
+                if(!received.isDirectory() && !received.mkdirs()){
+                    throw new IOException("Unable to create " + received);
+                }
+                String safeName = name.replaceAll("[/\\\\]", "_");
+                if(safeName.isEmpty() || safeName.startsWith(".")){
+                    safeName = "file" + safeName;
+                }
+                RandomAccessFile file = new RandomAccessFile(new File(received, safeName), "rw");
+                file.setLength(0);
+                return file.getChannel();
+            }
+        });
+        //the node id stays the same across restarts so other nodes can keep writing to this one
+        SharedPreferences preferences = context.getSharedPreferences("chat", Context.MODE_PRIVATE);
+        long nodeId = preferences.getLong("nodeId", MeshRelay.BROADCAST);
+        if(nodeId == MeshRelay.BROADCAST){
+            preferences.edit().putLong("nodeId", engine.getNodeId()).apply();
+        }else{
+            engine.setNodeId(nodeId);
+        }
+        recentPeersFile = new AtomicFile(new File(context.getFilesDir(), "recent_peers"));
+        try(FileInputStream in = recentPeersFile.openRead()){
+            recentPeers.read(in);
+        }catch (FileNotFoundException e){
+            //nothing was connected to yet
+        }catch (IOException e){
+            Log.e("Recent to Read", e.toString());
+        }
+        outboxFile = new AtomicFile(new File(context.getFilesDir(), "outbox"));
+        outboxExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Outbox");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        //read before any save, the messages read go in front of anything written in the meantime
+        outboxExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadOutbox();
+            }
+        });
     }
 
     /**
-     * returns state of connection between selected device.
+     * sets the name peers see for the user from the next connection on
+     * @param name
      */
-    public int getState(){
-        return state;
+    public void setDisplayName(String name){
+        engine.setDisplayName(name);
     }
 
     /**
-     * sets the state value and reflects the state back to the Message activity
-     * @param state
+     * turns relaying messages for devices out of reach on or off, for connections made from now on
+     * @param relay
      */
-    public synchronized void setState(int state){
-        this.state = state;
-        handler.obtainMessage(DiscoverDevice.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+    public void setRelay(boolean relay){
+        this.relay = relay;
+        engine.setRelay(relay);
+    }
+
+    public boolean isRelay(){
+        return relay;
     }
 
     /**
-     * Starts accept thread for communication and will cancel any other thread if a thread is currently active
+     * returns the counters and timings of the connections, for the debug screen
      */
-    private synchronized void start(){
-        if(connectionThread != null){
-            connectionThread.cancel();
-            connectionThread = null;
-        }
-        if(acceptThread == null){
-            acceptThread = new AcceptThread();
-            acceptThread.start();
-        }
-
-        if(messageThread != null){
-            messageThread.cancel();
-            messageThread = null;
-        }
+    public ChatMetrics getMetrics(){
+        return engine.getMetrics();
+    }
 
-        setState(STATE_LISTEN);
+    /**
+     * returns state of connection between selected device.
+     */
+    public int getState(){
+        return engine.getState();
     }
 
     /**
-     * Stops all threads and sets state to none
+     * returns the state of the connection to one device
+     * @param address
+     * @return
      */
-    public synchronized void stop(){
-        if(connectionThread != null){
-            connectionThread.cancel();
-            connectionThread = null;
-        }
-        if(acceptThread != null){
-            acceptThread.cancel();
-            acceptThread = null;
-        }
-        if(messageThread != null){
-            messageThread.cancel();
-            messageThread = null;
-        }
+    public int getState(String address){
+        return engine.getState(address);
+    }
 
-        setState(STATE_NONE);
+    /**
+     * Starts listening for other devices, the server stays open until stop() is called
+     */
+    public void start(){
+        engine.start();
     }
 
     /**
-     * method for when connection is lost between send and receiving messages.
-     * Will send a message to the handler saying the the connection is lost then it will restart ChatUtils for next request
+     * Stops all threads and sets state to none
      */
-    private void connectionLost(){
-        Message message = handler.obtainMessage(DiscoverDevice.MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        bundle.putString(DiscoverDevice.TOAST, "Connection Lost");
-        message.setData(bundle);
-        handler.sendMessage(message);
+    public void stop(){
+        engine.stop();
+    }
 
-        ChatUtils.this.start();
+    /**
+     * stops all threads for good, called when the service that owns this is destroyed
+     */
+    public void shutdown(){
+        engine.shutdown();
+        //a save that is queued still runs
+        outboxExecutor.shutdown();
     }
 
     /**
-     * checks if the given device is currently connecting if so it will cancel the thread and start a new one
-     * The method will also set the State of the connection to CONNECTING
+     * connects to the given device, other connected devices stay connected
      * @param device
      */
     public void connect(BluetoothDevice device){
-        if(state == STATE_CONNECTING){
-            connectionThread.cancel();
-            connectionThread = null;
-        }
-
-        connectionThread = new ConnectThread(device);
-        connectionThread.start();
+        engine.connect(device.getAddress());
+    }
 
-        if(messageThread != null){
-            messageThread.cancel();
-            messageThread = null;
-        }
+    /**
+     * dials the devices connected to most recently all at once and keeps the first that answers, without a scan.
+     * Returns the number of devices dialed, 0 if there are none or one of them is connected already
+     */
+    public int connectRecent(){
+        return engine.connectFirst(recentPeers.addresses(RECENT_RACE_SIZE));
+    }
 
-        setState(STATE_CONNECTING);
+    /**
+     * queues the message of the user to be sent to every connected device without blocking the caller.
+     * Returns false if there is no connection or too many messages are already waiting to be sent.
+     * The handler is told when the message is sent, delivered or failed with the same array as obj
+     * @param buffer
+     * @return
+     */
+    public boolean write(byte[] buffer){
+        return engine.write(buffer);
     }
 
     /**
-     * Use the thread to connect to a given device first checks if a device is already connected and if so disconnects from it
-     * then it send a message back to handler that the device is connected and change the state to DEVICE_CONNECTED
-     * @param device
+     * queues the message for one device, a node address sends it through the relay
+     * and MeshRelay.BROADCAST_ADDRESS to every node in reach.
+     * A device that is not connected gets it from the outbox once it connects, behind everything written to it before,
+     * and a message already waiting there is not queued twice.
+     * Returns false if it could not be queued, the handler is told about it like for write(buffer)
+     * @param address
+     * @param buffer
+     * @return
      */
-    private synchronized void connected(BluetoothDevice device, BluetoothSocket socket){
-        if(connectionThread != null){
-            connectionThread.cancel();
-            connectionThread = null;
+    public boolean write(String address, byte[] buffer){
+        if(MeshRelay.isNodeAddress(address)){
+            return engine.write(address, buffer);
         }
-
-        if(messageThread != null){
-            messageThread.cancel();
-            messageThread = null;
+        //under the outbox lock so a new message can not overtake the ones being flushed
+        synchronized (outbox){
+            if(outbox.size(address) == 0 && engine.getState(address) == STATE_CONNECTED){
+                return engine.write(address, buffer);
+            }
+            if(!outbox.add(address, MessageEnvelope.messageId(buffer, 0, buffer.length), buffer)){
+                return false;
+            }
+            scheduleOutboxSave();
+            if(engine.getState(address) == STATE_CONNECTED){
+                flush(address);
+            }
+            return true;
         }
-
-        messageThread = new MessageThread(socket);
-        messageThread.start();
-
-        Message msg = handler.obtainMessage(DiscoverDevice.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(DiscoverDevice.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        handler.sendMessage(msg);
-
-        setState(STATE_CONNECTED);
     }
 
     /**
-     * writes the message of the user into a buffer to be sent over through the socket
-     * @param buffer
+     * hands everything waiting for the device to the engine in one go, in the order it was written.
+     * Whatever the device's channel can not hold yet stays in the outbox for the next flush
      */
-    public void write(byte[] buffer){
-        MessageThread mThread;
-        synchronized(this){
-            if(state != STATE_CONNECTED){
+    private void flush(String address){
+        synchronized (outbox){
+            List<Outbox.Entry> entries = outbox.take(address);
+            if(entries.isEmpty()){
                 return;
             }
-            mThread = messageThread;
+            List<byte[]> buffers = new ArrayList<>(entries.size());
+            for(Outbox.Entry entry : entries){
+                buffers.add(entry.getPayload());
+            }
+            int queued = engine.writeAll(address, buffers);
+            outbox.putBack(address, entries.subList(queued, entries.size()));
+            if(queued > 0){
+                scheduleOutboxSave();
+            }
         }
-
-        mThread.write(buffer);
     }
 
     /**
-     * Creates accepting Thread that creates a Bluetooth Server Socket to allow the device to connect to the client
+     * reads the messages that were waiting when the app stopped and sends those of devices already connected
      */
-    private class AcceptThread extends Thread{
-
-        private BluetoothServerSocket serverSocket;
-
-        public AcceptThread(){
-            BluetoothServerSocket temp = null;
-            try{
-                temp = bluetoothAdapter.listenUsingRfcommWithServiceRecord(APP_NAME, APP_UUID);
-            } catch (IOException e) {
-                Log.e("Accept to Constructor", e.toString());
+    private void loadOutbox(){
+        try(FileInputStream in = outboxFile.openRead()){
+            outbox.read(in);
+        }catch (FileNotFoundException e){
+            return;
+        }catch (IOException e){
+            Log.e("Outbox to Read", e.toString());
+        }
+        for(String address : outbox.addresses()){
+            if(engine.getState(address) == STATE_CONNECTED){
+                flush(address);
             }
-
-            serverSocket = temp;
         }
+    }
 
-        /**
-         * tries to create a connection with the server socket. if it fails or cancels then the socket is close.
-         * On success the method is ***** run
-         */
-        public void run() {
-            BluetoothSocket socket = null;
-            try{
-                socket = serverSocket.accept();
-            }catch (IOException e){
-                Log.e("Accept to Run", e.toString());
-                try {
-                    serverSocket.close();
-                } catch (IOException e1){
-                    Log.e("Accept to Close", e.toString());
-                }
-            }
-            if (socket!= null){
-                switch (state){
-                    case STATE_LISTEN:
-                    case STATE_CONNECTING:
-                        connected(socket.getRemoteDevice(), socket);
-                        break;
-                    case STATE_NONE:
-                    case STATE_CONNECTED:
-                        try {
-                            socket.close();
-                        } catch (IOException e){
-                            Log.e("Accept to CloseSocket", e.toString());
-                        }
-                        break;
-                }
-            }
+    /**
+     * saves the outbox on its own thread unless a save that has not started yet is queued already
+     */
+    private void scheduleOutboxSave(){
+        if(!outboxSaveScheduled.compareAndSet(false, true)){
+            return;
         }
-        /**
-         * Cancel the thread and closes the socket
-         */
-        public void cancel() {
-            try {
-                serverSocket.close();
-            }catch (IOException e){
-                Log.e("Accept to CancelServer", e.toString());
+        outboxExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                outboxSaveScheduled.set(false);
+                saveOutbox();
             }
-        }
+        });
     }
 
     /**
-     * Thread class used to set up input and out put streams to allow the app to send and received messages
+     * writes the outbox to a new file that replaces the old one once it is complete.
+     * The outbox is copied out first so writes are not held up while the file is written
      */
-    private class MessageThread extends Thread {
-        private final BluetoothSocket socket;
-        private final InputStream inputStream;
-        private final OutputStream outputStream;
-
-        /**
-         * constructor to set up input and output streams
-         * @param socket
-         */
-        public MessageThread(BluetoothSocket socket){
-            this.socket = socket;
-            InputStream in = null;
-            OutputStream out = null;
+    private void saveOutbox(){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try{
+            outbox.write(bytes);
+            replaceFile(outboxFile, bytes);
+        }catch (IOException e){
+            Log.e("Outbox to Write", e.toString());
+        }
+    }
 
-            try{
-                in = socket.getInputStream();
-                out = socket.getOutputStream();
-            }catch (IOException e){
-                Log.e("Connect to in/outstream", e.toString());
-            }
-            inputStream = in;
-            outputStream = out;
+    /**
+     * saves the recent devices on the outbox's thread unless a save that has not started yet is queued already,
+     * so a connect does not wait for the file on the engine thread that reports it
+     */
+    private void scheduleRecentPeersSave(){
+        if(!recentPeersSaveScheduled.compareAndSet(false, true)){
+            return;
         }
+        outboxExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recentPeersSaveScheduled.set(false);
+                saveRecentPeers();
+            }
+        });
+    }
 
-        /**
-         * gets the buffer message and sends it to the main chat page to be displayed
-         */
-        public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
+    /**
+     * writes the recent devices to a new file that replaces the old one once it is complete
+     */
+    private void saveRecentPeers(){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try{
+            recentPeers.write(bytes);
+            replaceFile(recentPeersFile, bytes);
+        }catch (IOException e){
+            Log.e("Recent to Write", e.toString());
+        }
+    }
 
-            try{
-                bytes = inputStream.read(buffer);
-                handler.obtainMessage(DiscoverDevice.MESSAGE_READ, bytes, -1, buffer).sendToTarget();
-            }catch (IOException e){
-                connectionLost();
-                Log.e("Input to Run", e.toString());
-            }
+    /**
+     * writes the bytes to a new file that replaces the old one, the old one stays if writing fails
+     */
+    private static void replaceFile(AtomicFile file, ByteArrayOutputStream bytes) throws IOException {
+        FileOutputStream out = file.startWrite();
+        try{
+            bytes.writeTo(out);
+        }catch (IOException e){
+            file.failWrite(out);
+            throw e;
         }
+        file.finishWrite(out);
+    }
 
-        /**
-         * writes the buffer message and sends it to the main chat page to be displayed
-         * @param buffer
-         */
-        public void write(byte[] buffer){
+    /**
+     * sends the file behind the uri to every connected device, each gets its own transfer.
+     * Returns the number of devices it is being sent to, progress goes to the handler as MESSAGE_FILE_PROGRESS
+     * @param uri
+     * @return
+     */
+    public int sendFile(Uri uri){
+        ContentResolver resolver = context.getContentResolver();
+        String name = displayName(resolver, uri);
+        int sending = 0;
+        for(String address : engine.getConnectedPeers()){
+            FileChannel source = null;
             try{
-                outputStream.write(buffer);
-                handler.obtainMessage(DiscoverDevice.MESSAGE_Write, -1, -1, buffer).sendToTarget();
-            }catch(IOException e){
-
+                ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+                if(descriptor == null){
+                    throw new FileNotFoundException(uri.toString());
+                }
+                source = new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+                if(engine.sendFile(address, source, name) != null){
+                    sending++;
+                    source = null;
+                }
+            }catch (IOException e){
+                Log.e("File to Send", e.toString());
+            }finally {
+                if(source != null){
+                    try{
+                        source.close();
+                    }catch (IOException e){
+                        Log.e("File to Close", e.toString());
+                    }
+                }
             }
         }
+        return sending;
+    }
 
-        /**
-         * fail safe to close the socket if a error occurs
-         */
-        public void cancel(){
+    /**
+     * returns the name the document provider shows for the uri, or the last part of the uri if it has none
+     */
+    private static String displayName(ContentResolver resolver, Uri uri){
+        Cursor cursor = resolver.query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null);
+        if(cursor != null){
             try{
-                socket.close();
-            }catch(IOException e){
-
+                if(cursor.moveToFirst() && !cursor.isNull(0)){
+                    return cursor.getString(0);
+                }
+            }finally {
+                cursor.close();
             }
         }
+        String name = uri.getLastPathSegment();
+        return name != null ? name : "file";
+    }
 
+    /**
+     * reflects the state back to the Message activity
+     * @param state
+     */
+    @Override
+    public void onStateChanged(int state){
+        handler.obtainMessage(DiscoverDevice.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
     }
 
     /**
-     * Creates Connecting Thread that creates a Bluetooth client Socket to allow the device to connect to the another device
+     * sends the name and address of the connected device to the Message activity, then sends whatever
+     * waited in the outbox for it
+     * @param address
+     * @param name
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket socket;
-        private final BluetoothDevice device;
+    @Override
+    public void onConnected(String address, String name){
+        peerNames.put(address, name != null ? name : address);
+        recentPeers.connected(address, name, System.currentTimeMillis());
+        scheduleRecentPeersSave();
+        Message msg = handler.obtainMessage(DiscoverDevice.MESSAGE_DEVICE_NAME);
+        Bundle bundle = new Bundle();
+        bundle.putString(DiscoverDevice.DEVICE_NAME, name);
+        bundle.putString(DiscoverDevice.DEVICE_ADDRESS, address);
+        msg.setData(bundle);
+        handler.sendMessage(msg);
+        flush(address);
+    }
 
+    /**
+     * sends the received message with the name and address of the device it came from to the main chat page to be displayed
+     * The frame is retained until the main chat page has read the text out of it
+     * @param address
+     * @param frame
+     */
+    @Override
+    public void onMessageRead(String address, ChatFrame frame){
+        Message msg = handler.obtainMessage(DiscoverDevice.MESSAGE_READ, frame.length, -1, frame.retain());
+        Bundle bundle = new Bundle();
+        bundle.putString(DiscoverDevice.DEVICE_NAME, peerNames.get(address));
+        bundle.putString(DiscoverDevice.DEVICE_ADDRESS, address);
+        msg.setData(bundle);
+        handler.sendMessage(msg);
+    }
 
-        public ConnectThread(BluetoothDevice device){
-            this.device = device;
+    /**
+     * tells the main chat page that the message has been sent
+     * @param payload
+     */
+    @Override
+    public void onMessageWritten(byte[] payload){
+        handler.obtainMessage(DiscoverDevice.MESSAGE_Write, -1, -1, payload).sendToTarget();
+    }
 
-            BluetoothSocket temp = null;
-            try{
-                temp = device.createRfcommSocketToServiceRecord(APP_UUID);
-            }catch (IOException e){
-                Log.e("Connect to Constructor", e.toString());
-            }
+    /**
+     * tells the main chat page that the message was acknowledged by the other device
+     * @param payload
+     */
+    @Override
+    public void onMessageDelivered(byte[] payload){
+        handler.obtainMessage(DiscoverDevice.MESSAGE_DELIVERED, -1, -1, payload).sendToTarget();
+    }
 
-            socket = temp;
+    /**
+     * sends what is still waiting in the outbox for the device now that its channel can take more
+     * @param address
+     */
+    @Override
+    public void onSendRoom(String address){
+        if(outbox.size(address) > 0){
+            flush(address);
         }
+    }
 
-        /**
-         * tries to create connection between devices and closes the socket if it fails or runs the method connect(device)
-         */
-        public void run(){
-            try {
-                socket.connect();
-            }catch (IOException e){
-                Log.e("Connect to Run", e.toString());
-                try {
-                    socket.close();
-                }catch (IOException e1){
-                    Log.e("Connect to CloseSocket", e.toString());
-                }
-                connectionFailed();
-                return;
-            }
-
-            synchronized (ChatUtils.this){
-                connectionThread = null;
-            }
+    /**
+     * tells the main chat page that the message could not be sent
+     * @param payload
+     */
+    @Override
+    public void onMessageFailed(byte[] payload){
+        handler.obtainMessage(DiscoverDevice.MESSAGE_WRITE_FAILED, -1, -1, payload).sendToTarget();
+    }
 
-            connected(device, socket);
+    /**
+     * Will send a message to the handler saying the the connection is lost
+     */
+    @Override
+    public void onConnectionLost(String address){
+        peerNames.remove(address);
+        toast("Connection Lost");
+    }
 
-        }
+    /**
+     * notify the handler that the connection failed
+     */
+    @Override
+    public void onConnectionFailed(String address){
+        toast("Unable to Connect to device");
+    }
 
-        /**
-         * Cancel the thread and closes the socket
-         */
-        public void cancel(){
-            try {
-                socket.close();
-            } catch (IOException e){
-                Log.e("Connect to Cancel", e.toString());
-            }
-        }
+    /**
+     * passes the progress of a file on to the main chat page, with the percent as arg1
+     * @param transfer
+     */
+    @Override
+    public void onFileProgress(FileTransfer transfer){
+        handler.obtainMessage(DiscoverDevice.MESSAGE_FILE_PROGRESS, transfer.getPercent(), -1, transfer).sendToTarget();
+    }
 
-        /**
-         * notify the handler that the connection failed
-         */
-        private synchronized void connectionFailed(){
-            Message msg = handler.obtainMessage(DiscoverDevice.MESSAGE_TOAST);
-            Bundle bundle = new Bundle();
-            bundle.putString(DiscoverDevice.TOAST, "Unable to Connect to device");
-            msg.setData(bundle);
-            handler.sendMessage(msg);
-
-            //restart ChatUtil to listen again
-            ChatUtils.this.start();
-        }
+    /**
+     * passes the link quality of a device on to the main chat page, quality as arg1 and round trip in ms as arg2
+     * @param address
+     * @param quality
+     * @param rttMs
+     */
+    @Override
+    public void onLinkQuality(String address, int quality, long rttMs){
+        Message msg = handler.obtainMessage(DiscoverDevice.MESSAGE_LINK_QUALITY, quality, (int) Math.min(rttMs, Integer.MAX_VALUE));
+        Bundle bundle = new Bundle();
+        bundle.putString(DiscoverDevice.DEVICE_ADDRESS, address);
+        msg.setData(bundle);
+        handler.sendMessage(msg);
+    }
 
+    private void toast(String text){
+        Message message = handler.obtainMessage(DiscoverDevice.MESSAGE_TOAST);
+        Bundle bundle = new Bundle();
+        bundle.putString(DiscoverDevice.TOAST, text);
+        message.setData(bundle);
+        handler.sendMessage(message);
     }
 }
@@ -9,6 +9,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -16,9 +17,15 @@ import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 import android.widget.ProgressBar;
-import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 public class DeviceListActivity extends AppCompatActivity {
@@ -28,6 +35,11 @@ public class DeviceListActivity extends AppCompatActivity {
     private ArrayAdapter<String> adapterPairedDevices, adapterAvailableDevices;
     private Context context;
     private BluetoothAdapter bluetoothAdapter;
+    //devices discovery found, merged by address and kept across openings of the picker for a short while
+    private final DiscoveryCache discoveryCache = new DiscoveryCache();
+    //addresses of the rows, in the order the adapters show them
+    private final List<String> pairedAddresses = new ArrayList<>();
+    private final List<String> availableAddresses = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -50,13 +62,7 @@ public class DeviceListActivity extends AppCompatActivity {
             //Send device info to the message page
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-                String info = ((TextView) view).getText().toString();
-                String address = info.substring(info.length() - 17);
-
-                Intent intent = new Intent();
-                intent.putExtra("deviceAddress", address);
-                setResult(RESULT_OK, intent);
-                finish();
+                selectDevice(availableAddresses.get(i));
             }
         });
 
@@ -64,13 +70,7 @@ public class DeviceListActivity extends AppCompatActivity {
             //Send device info to the message page
             @Override
             public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-                String info = ((TextView) view).getText().toString();
-                String address = info.substring(info.length() - 17);
-
-                Intent intent = new Intent();
-                intent.putExtra("deviceAddress", address);
-                setResult(RESULT_OK, intent);
-                finish();
+                selectDevice(pairedAddresses.get(i));
             }
         });
 
@@ -81,14 +81,28 @@ public class DeviceListActivity extends AppCompatActivity {
         if(pairedDevices != null && pairedDevices.size()>0){
             for(BluetoothDevice b : pairedDevices){
                 adapterPairedDevices.add(b.getName() + "\n" + b.getAddress());
+                pairedAddresses.add(b.getAddress());
             }
         }
 
+        //show what the last scan found straight away, a new scan refreshes it
+        loadDiscoveryCache();
+        showAvailableDevices();
+
         //set up intent filters
-        IntentFilter filterFound = new IntentFilter(BluetoothDevice.ACTION_FOUND);
-        registerReceiver(bluetoothDeviceListener, filterFound);
-        IntentFilter filterEndScan = new IntentFilter(BluetoothAdapter. ACTION_DISCOVERY_FINISHED);
-        registerReceiver(bluetoothDeviceListener, filterEndScan);
+        IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        registerReceiver(bluetoothDeviceListener, filter);
+    }
+
+    @Override
+    protected void onDestroy(){
+        unregisterReceiver(bluetoothDeviceListener);
+        if(bluetoothAdapter.isDiscovering()){
+            bluetoothAdapter.cancelDiscovery();
+        }
+        saveDiscoveryCache();
+        super.onDestroy();
     }
 
     private BroadcastReceiver bluetoothDeviceListener = new BroadcastReceiver(){
@@ -100,22 +114,78 @@ public class DeviceListActivity extends AppCompatActivity {
             if(BluetoothDevice.ACTION_FOUND.equals(action)){
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 if(device.getBondState() != BluetoothDevice.BOND_BONDED){
-                    //if not a paired device add to availableDevices
-                    adapterAvailableDevices.add(device.getName() + "\n" + device.getAddress());
+                    //if not a paired device add to availableDevices, a device seen again only updates its row
+                    int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                    discoveryCache.found(device.getAddress(), device.getName(), rssi, System.currentTimeMillis());
+                    showAvailableDevices();
                 }
-                //else time expires on the scan
-                else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)){
-                    progressScan.setVisibility(View.GONE);
-                    if(adapterAvailableDevices.getCount() == 0){
-                        Toast.makeText(context, "No device found", Toast.LENGTH_SHORT).show();
-                    }else{
-                        Toast.makeText(context, "click device to chat", Toast.LENGTH_SHORT).show();
-                    }
+            }
+            //else time expires on the scan
+            else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)){
+                progressScan.setVisibility(View.GONE);
+                saveDiscoveryCache();
+                if(adapterAvailableDevices.getCount() == 0){
+                    Toast.makeText(context, "No device found", Toast.LENGTH_SHORT).show();
+                }else{
+                    Toast.makeText(context, "click device to chat", Toast.LENGTH_SHORT).show();
                 }
             }
         }
     };
 
+    /**
+     * sends the address of the chosen device back to the message page
+     * @param address
+     */
+    private void selectDevice(String address){
+        Intent intent = new Intent();
+        intent.putExtra("deviceAddress", address);
+        setResult(RESULT_OK, intent);
+        finish();
+    }
+
+    /**
+     * fills the available list from the discovery cache, strongest signal first
+     */
+    private void showAvailableDevices(){
+        adapterAvailableDevices.setNotifyOnChange(false);
+        adapterAvailableDevices.clear();
+        availableAddresses.clear();
+        for(DiscoveryCache.Sighting sighting : discoveryCache.ranked(System.currentTimeMillis())){
+            //a device paired since the last scan is in the paired list already
+            if(pairedAddresses.contains(sighting.getAddress())){
+                continue;
+            }
+            String name = sighting.getName() != null ? sighting.getName() : "Unknown device";
+            String signal = sighting.getRssi() != DiscoveryCache.RSSI_UNKNOWN ? "  " + sighting.getRssi() + " dBm" : "";
+            adapterAvailableDevices.add(name + signal + "\n" + sighting.getAddress());
+            availableAddresses.add(sighting.getAddress());
+        }
+        adapterAvailableDevices.notifyDataSetChanged();
+    }
+
+    private File discoveryCacheFile(){
+        return new File(getCacheDir(), "discovery_cache");
+    }
+
+    private void loadDiscoveryCache(){
+        try(FileInputStream in = new FileInputStream(discoveryCacheFile())){
+            discoveryCache.read(in, System.currentTimeMillis());
+        }catch (FileNotFoundException e){
+            //nothing was scanned yet
+        }catch (IOException e){
+            Log.e("Discovery Cache", e.toString());
+        }
+    }
+
+    private void saveDiscoveryCache(){
+        try(FileOutputStream out = new FileOutputStream(discoveryCacheFile())){
+            discoveryCache.write(out, System.currentTimeMillis());
+        }catch (IOException e){
+            Log.e("Discovery Cache", e.toString());
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu){
         getMenuInflater().inflate(R.menu.menu_device_list, menu);
@@ -137,7 +207,6 @@ public class DeviceListActivity extends AppCompatActivity {
 
     private void scanDevices(){
         progressScan.setVisibility(View.VISIBLE);
-        adapterAvailableDevices.clear();
         Toast.makeText(context,"Scan started", Toast.LENGTH_SHORT).show();
         //if currently discovering cancel process
         if(bluetoothAdapter.isDiscovering()){
@@ -5,58 +5,105 @@ import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import android.Manifest;
 import android.bluetooth.BluetoothAdapter;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
+import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class DiscoverDevice extends AppCompatActivity {
 
     private BluetoothAdapter bluetoothAdapter;
 
+    //the connections live in the service, chatUtils is null until it is bound
+    private ChatService chatService;
     private ChatUtils chatUtils;
+    //work that needs the connections and came before the service was bound
+    private final List<Runnable> whenBound = new ArrayList<>();
     private EditText editText;
     private Button clearButton;
     private Button sendButton;
-    private ListView listMainChat;
-    private ArrayAdapter<String> adapterChat;
+    private RecyclerView listMainChat;
+    private LinearLayoutManager layoutManager;
+    private ChatAdapter adapterChat;
+    //messages shown in the chat, oldest first. The adapter gets a copy of it after every change
+    private final List<ChatMessage> messages = new ArrayList<>();
+    //messages of the user still waiting for their final status, keyed by the array given to write()
+    private final Map<byte[], ChatMessage> outgoing = new IdentityHashMap<>();
+    private MessageStore messageStore;
+    //only used on the main thread
+    private final TextCodec textCodec = new TextCodec();
+    private final MessageEnvelope envelope = new MessageEnvelope(textCodec);
+    //address of the device whose conversation is shown, only that much of the history is loaded
+    private String conversationPeer;
+    //conversations that got messages while another one was shown, how many and who from, the oldest first
+    private final LinkedHashMap<String, Integer> unread = new LinkedHashMap<>();
+    private final Map<String, String> unreadNames = new LinkedHashMap<>();
+    private boolean loadingPage;
+    private boolean morePages;
     private String userName;
     private Context context;
     private final int LOCATION_REQUEST = 101;
     private final int SELECT_DEVICE = 102;
+    private final int SELECT_FILE = 103;
 
     public static final int MESSAGE_STATE_CHANGE = 0;
     public static final int MESSAGE_READ = 1;
     public static final int MESSAGE_Write = 2;
     public static final int MESSAGE_DEVICE_NAME = 3;
     public static final int MESSAGE_TOAST = 4;
+    public static final int MESSAGE_WRITE_FAILED = 5;
+    public static final int MESSAGE_DELIVERED = 6;
+    public static final int MESSAGE_FILE_PROGRESS = 7;
+    public static final int MESSAGE_LINK_QUALITY = 8;
+    public static final int MESSAGE_DEVICE_SYNC = 9;
 
     public static final String DEVICE_NAME = "deviceName";
+    public static final String DEVICE_ADDRESS = "deviceAddress";
     public static final String TOAST = "toast";
+    private static final String STATE_CONVERSATION = "conversationPeer";
     private String connectedDevice;
+    private String connectedAddress;
+    //shown after the name of the connected device, empty until the link has been probed
+    private String linkQuality = "";
     /**
      * Handler is used to track what state the device is in during the connection process
      * The STATE_CHANGE case updates the message that is displayed on the main chat page
-     * Write uploads the users message and displays on screen
-     * Read gets the message from the users device and displays it
-     * Device_name gets connected devices name
+     * Write, Delivered and Write_failed update the status shown next to the users message
+     * Read gets the message from the sending device and displays it with that device's name in its conversation
+     * Device_name gets connected devices name and shows the conversation with it
+     * Device_sync gets the device that was already connected when the page was opened again, without switching
      * Toast tells the user which if the user is connected or if an error occurs
+     * File_progress shows how far a file got in the subtitle and adds it to the chat once it is done
+     * Link_quality shows how good the link to the connected device is next to its name
      */
     private Handler handler = new Handler(new Handler.Callback(){
 
@@ -75,32 +122,370 @@ public class DiscoverDevice extends AppCompatActivity {
                             setState("Connecting...");
                             break;
                         case ChatUtils.STATE_CONNECTED:
-                            setState("Connected " + connectedDevice);
+                            setState("Connected " + connectedDevice + linkQuality);
                             break;
                     }
                     break;
                 case MESSAGE_Write:
-                    byte[] bufferW = (byte[])message.obj;
-                    String outputBuffer = new String(bufferW);
-                    adapterChat.add("\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t\t"+ userName+": " + outputBuffer);
+                    updateStatus((byte[]) message.obj, ChatMessage.STATUS_SENT);
+                    break;
+                case MESSAGE_DELIVERED:
+                    updateStatus((byte[]) message.obj, ChatMessage.STATUS_DELIVERED);
                     break;
                 case MESSAGE_READ:
-                    byte[] bufferR = (byte[]) message.obj;
-                    String inputBuffer = new String(bufferR, 0, message.arg1);
-                    adapterChat.add(connectedDevice + ": " + inputBuffer);
+                    ChatFrame frame = (ChatFrame) message.obj;
+                    String sender = message.getData().getString(DEVICE_NAME);
+                    String from = message.getData().getString(DEVICE_ADDRESS);
+                    receive(from, sender != null ? sender : connectedDevice, frame);
+                    frame.release();
                     break;
                 case MESSAGE_DEVICE_NAME:
                     connectedDevice = message.getData().getString(DEVICE_NAME);
+                    connectedAddress = message.getData().getString(DEVICE_ADDRESS);
+                    linkQuality = "";
                     Toast.makeText(context, connectedDevice, Toast.LENGTH_LONG).show();
+                    showConversation(connectedAddress);
+                    break;
+                case MESSAGE_DEVICE_SYNC:
+                    connectedDevice = message.getData().getString(DEVICE_NAME);
+                    connectedAddress = message.getData().getString(DEVICE_ADDRESS);
                     break;
                 case MESSAGE_TOAST:
                     Toast.makeText(context, message.getData().getString(TOAST), Toast.LENGTH_SHORT).show();
                     break;
+                case MESSAGE_WRITE_FAILED:
+                    updateStatus((byte[]) message.obj, ChatMessage.STATUS_FAILED);
+                    Toast.makeText(context, "Message not sent", Toast.LENGTH_SHORT).show();
+                    break;
+                case MESSAGE_FILE_PROGRESS:
+                    showFileProgress((FileTransfer) message.obj, message.arg1);
+                    break;
+                case MESSAGE_LINK_QUALITY:
+                    String address = message.getData().getString(DEVICE_ADDRESS);
+                    if(address != null && address.equals(connectedAddress)){
+                        linkQuality = linkQualityLabel(message.arg1, message.arg2);
+                        if(chatUtils != null && chatUtils.getState() == ChatUtils.STATE_CONNECTED){
+                            setState("Connected " + connectedDevice + linkQuality);
+                        }
+                    }
+                    break;
             }
             return false;
         }
     });
 
+    /**
+     * queues the text for the device of the conversation shown and shows it as sending.
+     * Only that device gets it: a device out of reach is answered through the relay, a device that is not connected
+     * gets it from the outbox once it connects, and every node in reach only in the broadcast conversation.
+     * Returns false if there is no conversation or it could not be queued, nothing is shown then
+     * @param text
+     * @return
+     */
+    private boolean send(String text){
+        String peer = conversationPeer != null ? conversationPeer : connectedAddress;
+        if(chatUtils == null || peer == null){
+            return false;
+        }
+        ChatMessage chatMessage = new ChatMessage(peer, userName, text, true);
+        byte[] buffer = envelope.encodeText(chatMessage.getUid(), chatMessage.getTimestamp(), userName, text);
+        outgoing.put(buffer, chatMessage);
+        if(!chatUtils.write(peer, buffer)){
+            outgoing.remove(buffer);
+            return false;
+        }
+        addMessage(chatMessage);
+        return true;
+    }
+
+    /**
+     * sends the user's reaction to the device the message came from or went to and shows it under the message,
+     * picking the same reaction again takes it back. Other devices never saw the message, so they do not get it
+     * @param target
+     * @param reaction
+     */
+    private void react(ChatMessage target, int reaction){
+        if(target == null || target.getUid() == 0 || target.getPeer() == null){
+            return;
+        }
+        if(target.getLocalReaction() == reaction){
+            reaction = MessageEnvelope.REACTION_NONE;
+        }
+        byte[] buffer = envelope.encodeReaction(ChatMessage.newUid(), System.currentTimeMillis(), userName,
+                target.getUid(), reaction);
+        if(chatUtils == null || !chatUtils.write(target.getPeer(), buffer)){
+            Toast.makeText(context, "Reaction not sent", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        target.setLocalReaction(reaction);
+        adapterChat.reactionsChanged(target);
+        messageStore.react(target.getPeer(), target.getUid(), true, reaction);
+    }
+
+    /**
+     * shows a message or reaction from another device, the text of a peer that does not send envelopes yet
+     * is shown as it is
+     * @param from address of the device
+     * @param deviceName name to show if the envelope carries none
+     * @param frame
+     */
+    private void receive(String from, String deviceName, ChatFrame frame){
+        if(!MessageEnvelope.isEnvelope(frame.body, frame.offset, frame.length)){
+            receiveMessage(new ChatMessage(from, deviceName, textCodec.decode(frame.body, frame.offset, frame.length),
+                    false));
+            return;
+        }
+        try{
+            envelope.decode(frame.body, frame.offset, frame.length);
+        }catch (IOException e){
+            Log.e("Read Envelope", e.toString());
+            return;
+        }
+        switch (envelope.getType()){
+            case MessageEnvelope.TYPE_TEXT:
+                //a message relayed from a device out of reach opens its conversation, so the reply goes back to it
+                if(MeshRelay.isNodeAddress(from)){
+                    showConversation(from);
+                }
+                String sender = envelope.getSender();
+                receiveMessage(new ChatMessage(envelope.getMessageId(), from, sender.isEmpty() ? deviceName : sender,
+                        envelope.getText(), false));
+                break;
+            case MessageEnvelope.TYPE_REACTION:
+                for(int i = messages.size() - 1; i >= 0; i--){
+                    ChatMessage target = messages.get(i);
+                    if(target.getUid() == envelope.getTargetId() && from != null && from.equals(target.getPeer())){
+                        target.setRemoteReaction(envelope.getReaction());
+                        adapterChat.reactionsChanged(target);
+                        break;
+                    }
+                }
+                if(from != null){
+                    messageStore.react(from, envelope.getTargetId(), false, envelope.getReaction());
+                }
+                break;
+            default:
+                Log.e("Read Envelope", "Unknown message type " + envelope.getType());
+        }
+    }
+
+    /**
+     * shows a message from another device if its conversation is shown or none is. A message for another
+     * conversation is only kept in the store and counted as unread, the user opens it from the menu
+     * @param chatMessage
+     */
+    private void receiveMessage(ChatMessage chatMessage){
+        String peer = chatMessage.getPeer();
+        if(conversationPeer == null){
+            showConversation(peer);
+        }
+        if(peer == null || peer.equals(conversationPeer)){
+            addMessage(chatMessage);
+            return;
+        }
+        messageStore.add(chatMessage);
+        Integer count = unread.get(peer);
+        unread.put(peer, count == null ? 1 : count + 1);
+        unreadNames.put(peer, chatMessage.getSender());
+        invalidateOptionsMenu();
+        Toast.makeText(context, "New message from " + chatMessage.getSender(), Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * lets the user pick one of the conversations with unread messages and shows it
+     */
+    private void showUnread(){
+        final List<String> peers = new ArrayList<>(unread.keySet());
+        String[] items = new String[peers.size()];
+        for(int i = 0; i < items.length; i++){
+            items[i] = unreadNames.get(peers.get(i)) + " (" + unread.get(peers.get(i)) + ")";
+        }
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.str_unread)
+                .setItems(items, new DialogInterface.OnClickListener(){
+                    @Override
+                    public void onClick(DialogInterface dialog, int which){
+                        showConversation(peers.get(which));
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * shows a new message at the bottom of the chat and keeps it in the store
+     * @param chatMessage
+     */
+    private void addMessage(ChatMessage chatMessage){
+        //follow new messages only if the user is looking at the newest ones
+        final boolean atBottom = messages.isEmpty() || layoutManager.findLastVisibleItemPosition() >= messages.size() - 1;
+        messages.add(chatMessage);
+        adapterChat.submitList(new ArrayList<>(messages), new Runnable() {
+            @Override
+            public void run() {
+                if(atBottom){
+                    listMainChat.scrollToPosition(adapterChat.getItemCount() - 1);
+                }
+            }
+        });
+        if(chatMessage.getPeer() != null){
+            messageStore.add(chatMessage);
+        }
+    }
+
+    /**
+     * switches the chat to the conversation with the given device and loads its most recent page
+     * @param peer
+     */
+    private void showConversation(String peer){
+        if(peer == null || peer.equals(conversationPeer)){
+            return;
+        }
+        conversationPeer = peer;
+        if(unread.remove(peer) != null){
+            unreadNames.remove(peer);
+            invalidateOptionsMenu();
+        }
+        messages.clear();
+        adapterChat.submitList(new ArrayList<>(messages));
+        loadingPage = true;
+        morePages = false;
+        messageStore.loadRecent(peer, MessageStore.DEFAULT_PAGE_SIZE, pageCallback);
+    }
+
+    /**
+     * loads the page before the oldest message shown, once the user scrolls to the top
+     */
+    private void loadOlderMessages(){
+        if(loadingPage || !morePages || messages.isEmpty()){
+            return;
+        }
+        loadingPage = true;
+        messageStore.loadBefore(conversationPeer, messages.get(0), MessageStore.DEFAULT_PAGE_SIZE, pageCallback);
+    }
+
+    /**
+     * puts a page loaded by the store above the messages shown, the list keeps the message the user was looking at
+     * in place since the rows have stable ids. Pages of a conversation that is no longer shown are dropped
+     */
+    private final MessageStore.PageCallback pageCallback = new MessageStore.PageCallback() {
+        @Override
+        public void onPage(final String peer, final List<ChatMessage> page, final boolean more) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(conversationPeer == null && peer != null){
+                        conversationPeer = peer;
+                    }else if(peer == null || !peer.equals(conversationPeer)){
+                        loadingPage = false;
+                        return;
+                    }
+                    //messages shown while the page loaded can already be in it
+                    Set<Long> shown = new HashSet<>();
+                    for(ChatMessage chatMessage : messages){
+                        shown.add(chatMessage.getId());
+                    }
+                    List<ChatMessage> older = new ArrayList<>();
+                    for(ChatMessage chatMessage : page){
+                        if(!shown.contains(chatMessage.getId())){
+                            older.add(chatMessage);
+                        }
+                    }
+                    final boolean first = messages.isEmpty();
+                    messages.addAll(0, older);
+                    adapterChat.submitList(new ArrayList<>(messages), new Runnable() {
+                        @Override
+                        public void run() {
+                            //the first page opens at the newest message
+                            if(first && adapterChat.getItemCount() > 0){
+                                listMainChat.scrollToPosition(adapterChat.getItemCount() - 1);
+                            }
+                        }
+                    });
+                    morePages = more;
+                    loadingPage = false;
+                }
+            });
+        }
+    };
+
+    /**
+     * moves one of the users messages to the given status, it is forgotten once delivered or failed.
+     * A message the outbox kept across a restart comes back in an array of its own and is found by its id
+     * among the messages shown
+     * @param buffer the array that was passed to write()
+     * @param status
+     */
+    private void updateStatus(byte[] buffer, int status){
+        ChatMessage chatMessage = status == ChatMessage.STATUS_SENT ? outgoing.get(buffer) : outgoing.remove(buffer);
+        if(chatMessage == null){
+            long uid = MessageEnvelope.messageId(buffer, 0, buffer.length);
+            for(int i = messages.size() - 1; i >= 0 && uid != 0; i--){
+                ChatMessage shown = messages.get(i);
+                if(shown.isOutgoing() && shown.getUid() == uid){
+                    chatMessage = shown;
+                    break;
+                }
+            }
+        }
+        if(chatMessage != null){
+            chatMessage.setStatus(status);
+            adapterChat.statusChanged(chatMessage);
+            if(chatMessage.getPeer() != null){
+                messageStore.update(chatMessage);
+            }
+        }
+    }
+
+    /**
+     * shows the progress of a file in the subtitle, a finished file is added to the chat
+     * and the subtitle goes back to the connection state
+     * @param transfer
+     * @param percent
+     */
+    private void showFileProgress(FileTransfer transfer, int percent){
+        switch (transfer.getState()){
+            case FileTransfer.STATE_DONE:
+                String text = (transfer.isOutgoing() ? "Sent file " : "Received file ") + transfer.getName();
+                ChatMessage chatMessage = new ChatMessage(transfer.getAddress(),
+                        transfer.isOutgoing() ? userName : connectedDevice, text, transfer.isOutgoing());
+                chatMessage.setStatus(ChatMessage.STATUS_DELIVERED);
+                addMessage(chatMessage);
+                showState();
+                break;
+            case FileTransfer.STATE_FAILED:
+                Toast.makeText(context, "File not sent: " + transfer.getName(), Toast.LENGTH_SHORT).show();
+                showState();
+                break;
+            default:
+                setState((transfer.isOutgoing() ? "Sending " : "Receiving ") + transfer.getName() + " " + percent + "%");
+        }
+    }
+
+    /**
+     * shows the connection state again in the subtitle, nothing changes while the service is not bound
+     */
+    private void showState(){
+        if(chatUtils != null){
+            handler.obtainMessage(MESSAGE_STATE_CHANGE, chatUtils.getState(), -1).sendToTarget();
+        }
+    }
+
+    /**
+     * returns the link quality as it is shown after the device name, bars and the round trip
+     */
+    private static String linkQualityLabel(int quality, int rttMs){
+        switch (quality){
+            case LinkQuality.QUALITY_GOOD:
+                return " \u2582\u2584\u2586 " + rttMs + " ms";
+            case LinkQuality.QUALITY_FAIR:
+                return " \u2582\u2584 " + rttMs + " ms";
+            case LinkQuality.QUALITY_POOR:
+                return rttMs >= 0 ? " \u2582 " + rttMs + " ms" : " \u2582";
+            default:
+                return "";
+        }
+    }
+
     /**
      * Reflect ChatUtils states in Message_State_Change Handler given subTitle
      * @param subTitle
@@ -114,13 +499,63 @@ public class DiscoverDevice extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_discover_device);
         context = this;
-        chatUtils = new ChatUtils(context, handler);
+        messageStore = new MessageStore(new SqliteMessageStorage(context));
         //get username from first activity
         userName = getIntent().getExtras().getString("userName");
 
         initMessage();
+        String conversation = savedInstanceState != null ? savedInstanceState.getString(STATE_CONVERSATION) : null;
+        if(conversation != null){
+            showConversation(conversation);
+        }else{
+            //show where the last conversation left off until a device connects
+            loadingPage = true;
+            messageStore.loadLastConversation(MessageStore.DEFAULT_PAGE_SIZE, pageCallback);
+        }
 
         initBluetooth();
+        //the service keeps the connections open across rotations, it is started so unbinding does not end it
+        Intent serviceIntent = new Intent(context, ChatService.class);
+        ContextCompat.startForegroundService(context, serviceIntent);
+        bindService(serviceIntent, serviceConnection, BIND_AUTO_CREATE);
+    }
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        /**
+         * takes over the connections of the service and subscribes to its events,
+         * which start with the current state and connected device
+         */
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            chatService = ((ChatService.LocalBinder) binder).getService();
+            chatUtils = chatService.getChatUtils();
+            chatUtils.setDisplayName(userName);
+            //listen for incoming chats straight away instead of only after the first failed connection
+            chatUtils.start();
+            chatService.subscribe(handler);
+            for(Runnable runnable : whenBound){
+                runnable.run();
+            }
+            whenBound.clear();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            chatService = null;
+            chatUtils = null;
+        }
+    };
+
+    /**
+     * runs the work now if the service is bound, otherwise as soon as it is
+     * @param runnable
+     */
+    private void runWhenBound(Runnable runnable){
+        if(chatUtils != null){
+            runnable.run();
+        }else{
+            whenBound.add(runnable);
+        }
     }
 
     /**
@@ -129,22 +564,31 @@ public class DiscoverDevice extends AppCompatActivity {
     private void initMessage(){
         //main list
         listMainChat = findViewById(R.id.list_conversation);
-        listMainChat.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        layoutManager = new LinearLayoutManager(context);
+        layoutManager.setStackFromEnd(true);
+        listMainChat.setLayoutManager(layoutManager);
+        //set up the adapter, a click removes the message and a long press shows the popup menu
+        adapterChat = new ChatAdapter(new ChatAdapter.Listener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int i, long l) {
-                final int selected_item = i;
-                adapterChat.remove(adapterChat.getItem(selected_item));
-                adapterChat.notifyDataSetChanged();
+            public void onMessageClicked(ChatMessage chatMessage) {
+                messages.remove(chatMessage);
+                adapterChat.submitList(new ArrayList<>(messages));
+                messageStore.delete(chatMessage);
+            }
+        }, this);
+        listMainChat.setAdapter(adapterChat);
+        //older messages are loaded a page at a time when the user scrolls up to the first one
+        listMainChat.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if(layoutManager.findFirstVisibleItemPosition() == 0){
+                    loadOlderMessages();
+                }
             }
         });
 
-        //popup menu
-        registerForContextMenu(listMainChat);
         //text view
         editText = findViewById(R.id.message_body);
-        //set up array adapter
-        adapterChat = new ArrayAdapter<String>(context, R.layout.message_layout);
-        listMainChat.setAdapter(adapterChat);
         //clear button
         clearButton = findViewById(R.id.clearButton);
         clearButton.setOnClickListener(new View.OnClickListener(){
@@ -163,8 +607,8 @@ public class DiscoverDevice extends AppCompatActivity {
             @Override
             public void onClick(View v){
                 String message = editText.getText().toString();
-                if(!message.isEmpty()){
-                    chatUtils.write(message.getBytes());
+                //keep the text if the message could not be queued so the user can try again
+                if(!message.isEmpty() && send(message)){
                     editText.setText("");
                 }
             }
@@ -184,7 +628,7 @@ public class DiscoverDevice extends AppCompatActivity {
     }
 
     /**
-     * displays react options and once the user select on a message will be sent with that reaction.
+     * displays react options and once the user selects one it is sent as a reaction to the pressed message.
      * @param item
      * @return
      */
@@ -192,13 +636,13 @@ public class DiscoverDevice extends AppCompatActivity {
     public boolean onContextItemSelected(@NonNull MenuItem item) {
         switch (item.getItemId()){
             case R.id.lol:
-                chatUtils.write("LOL".getBytes());
+                react(adapterChat.getContextMessage(), MessageEnvelope.REACTION_LOL);
                 return true;
             case R.id.thumbsup:
-                chatUtils.write("Thumbs Up".getBytes());
+                react(adapterChat.getContextMessage(), MessageEnvelope.REACTION_THUMBS_UP);
                 return true;
             case R.id.thumbsdown:
-                chatUtils.write("Thumbs Down".getBytes());
+                react(adapterChat.getContextMessage(), MessageEnvelope.REACTION_THUMBS_DOWN);
                 return true;
                 default:
                     return super.onContextItemSelected(item);
@@ -217,6 +661,28 @@ public class DiscoverDevice extends AppCompatActivity {
         return super.onCreateOptionsMenu(menu);
     }
 
+    /**
+     * ticks Relay Mode if the service relays and counts the unread messages of other conversations,
+     * the menu is made again when the activity is recreated
+     * @param menu
+     * @return
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu){
+        boolean relay = chatUtils != null && chatUtils.isRelay();
+        menu.findItem(R.id.menu_relay).setChecked(relay);
+        menu.findItem(R.id.menu_nearby_nodes).setEnabled(relay);
+        int unreadCount = 0;
+        for(int count : unread.values()){
+            unreadCount += count;
+        }
+        MenuItem unreadItem = menu.findItem(R.id.menu_unread);
+        unreadItem.setTitle(unreadCount == 0 ? getString(R.string.str_unread)
+                : getString(R.string.str_unread) + " (" + unreadCount + ")");
+        unreadItem.setEnabled(unreadCount > 0);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     /**
      * Method used when the user clicks on the menu button to allow the user
      * to go to the Device list activity and select a device to connect to.
@@ -229,12 +695,87 @@ public class DiscoverDevice extends AppCompatActivity {
             case R.id.menu_search_device:
                 checkPermissions();
                 return true;
+            case R.id.menu_unread:
+                showUnread();
+                return true;
+            case R.id.menu_reconnect_recent:
+                runWhenBound(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(chatUtils.connectRecent() == 0){
+                            Toast.makeText(context, "No recent device to reconnect to", Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+                return true;
+            case R.id.menu_relay:
+                final boolean relay = !item.isChecked();
+                item.setChecked(relay);
+                runWhenBound(new Runnable() {
+                    @Override
+                    public void run() {
+                        chatUtils.setRelay(relay);
+                        Toast.makeText(context, relay ? "Relaying for devices connected from now on"
+                                : "Relaying stopped for new connections", Toast.LENGTH_SHORT).show();
+                    }
+                });
+                return true;
+            case R.id.menu_nearby_nodes:
+                //what is written in this conversation goes to every node in reach, answers open their own
+                showConversation(MeshRelay.BROADCAST_ADDRESS);
+                Toast.makeText(context, "Messages go to every device in reach", Toast.LENGTH_SHORT).show();
+                return true;
+            case R.id.menu_send_file:
+                Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(intent, SELECT_FILE);
+                return true;
+            case R.id.menu_connection_stats:
+                runWhenBound(new Runnable() {
+                    @Override
+                    public void run() {
+                        showConnectionStats();
+                    }
+                });
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
 
     }
 
+    /**
+     * shows the connection metrics, which can be shared as text to send them off the device or reset
+     */
+    private void showConnectionStats(){
+        final ChatMetrics metrics = chatUtils.getMetrics();
+        final String dump = metrics.dump();
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.str_connection_stats)
+                .setMessage(dump)
+                .setPositiveButton("Share", new DialogInterface.OnClickListener(){
+
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        Intent intent = new Intent(Intent.ACTION_SEND);
+                        intent.setType("text/plain");
+                        intent.putExtra(Intent.EXTRA_SUBJECT, "BlueMessage connection stats");
+                        intent.putExtra(Intent.EXTRA_TEXT, dump);
+                        startActivity(Intent.createChooser(intent, "Share stats"));
+                    }
+                })
+                .setNeutralButton("Reset", new DialogInterface.OnClickListener(){
+
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        metrics.reset();
+                    }
+                })
+                .setNegativeButton("Close", null)
+                .show();
+    }
+
     /**
      * initialise Bluetooth
      */
@@ -267,9 +808,25 @@ public class DiscoverDevice extends AppCompatActivity {
      */
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data){
+        //a rotation while picking brings the result to a new activity, which may not be bound yet
         if(requestCode == SELECT_DEVICE && resultCode == RESULT_OK){
-            String address = data.getStringExtra("deviceAddress");
-            chatUtils.connect(bluetoothAdapter.getRemoteDevice(address));
+            final String address = data.getStringExtra("deviceAddress");
+            runWhenBound(new Runnable() {
+                @Override
+                public void run() {
+                    chatUtils.connect(bluetoothAdapter.getRemoteDevice(address));
+                }
+            });
+        }else if(requestCode == SELECT_FILE && resultCode == RESULT_OK && data != null && data.getData() != null){
+            final Uri uri = data.getData();
+            runWhenBound(new Runnable() {
+                @Override
+                public void run() {
+                    if(chatUtils.sendFile(uri) == 0){
+                        Toast.makeText(context, "No device to send the file to", Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
         }
         super.onActivityResult(requestCode, resultCode, data);
     }
@@ -313,13 +870,31 @@ public class DiscoverDevice extends AppCompatActivity {
     }
 
     /**
-     * Disconnects device on Destroy
+     * keeps the conversation shown, so the recreated page shows the same one
+     * @param outState
+     */
+    @Override
+    protected void onSaveInstanceState(@NonNull Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_CONVERSATION, conversationPeer);
+    }
+
+    /**
+     * Unsubscribes from the service and closes the message store on Destroy.
+     * The connections are only closed when the user leaves the chat, not when the activity is recreated
      */
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if(chatUtils != null){
-            chatUtils.stop();
+        if(chatService != null){
+            chatService.unsubscribe(handler);
+        }
+        unbindService(serviceConnection);
+        if(isFinishing()){
+            stopService(new Intent(context, ChatService.class));
+        }
+        if(messageStore != null){
+            messageStore.close();
         }
     }
 }
\ No newline at end of file
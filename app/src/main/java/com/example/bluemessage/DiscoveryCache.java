@@ -0,0 +1,213 @@
+package com.example.bluemessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices seen by Bluetooth discovery, one entry per address however often a scan reports it.
+ * Every sighting updates the name, signal strength and time the device was last seen, and the list the picker shows
+ * is ranked by signal strength so the device next to the user comes first.
+ * Entries expire after the max age, the cache is written to a file when the picker closes and read back
+ * when it opens again, so a picker reopened shortly after a scan shows those devices straight away
+ * instead of waiting for a new inquiry. Used from the main thread only
+ */
+public class DiscoveryCache {
+
+    public static final long DEFAULT_MAX_AGE_MS = 2 * 60 * 1000;
+    //reported when a sighting came without a signal strength
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private static final int FILE_VERSION = 1;
+
+    private final long maxAgeMs;
+    private final Map<String, Sighting> devices = new HashMap<>();
+
+    /**
+     * Constructor for a cache that keeps devices for the default max age
+     */
+    public DiscoveryCache(){
+        this(DEFAULT_MAX_AGE_MS);
+    }
+
+    /**
+     * Constructor for a cache
+     * @param maxAgeMs how long after its last sighting a device is dropped
+     */
+    public DiscoveryCache(long maxAgeMs){
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * One device as it was last seen
+     */
+    public static class Sighting {
+        private final String address;
+        private String name;
+        private int rssi;
+        private long lastSeen;
+        private int count;
+
+        Sighting(String address, String name, int rssi, long lastSeen, int count){
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+            this.count = count;
+        }
+
+        public String getAddress(){
+            return address;
+        }
+
+        /**
+         * returns the name the device gave, null if it never gave one
+         */
+        public String getName(){
+            return name;
+        }
+
+        /**
+         * returns the signal strength of the last sighting in dBm, RSSI_UNKNOWN if there was none
+         */
+        public int getRssi(){
+            return rssi;
+        }
+
+        public long getLastSeen(){
+            return lastSeen;
+        }
+
+        /**
+         * returns how often the device was reported since it was first seen
+         */
+        public int getCount(){
+            return count;
+        }
+    }
+
+    /**
+     * merges one discovery report into the cache and returns true if the device was not in it yet
+     * @param address
+     * @param name null if the report had none, the last known name is kept then
+     * @param rssi RSSI_UNKNOWN if the report had none, the last known strength is kept then
+     * @param now
+     * @return
+     */
+    public boolean found(String address, String name, int rssi, long now){
+        Sighting sighting = devices.get(address);
+        if(sighting == null || now - sighting.lastSeen > maxAgeMs){
+            devices.put(address, new Sighting(address, name, rssi, now, 1));
+            return true;
+        }
+        if(name != null){
+            sighting.name = name;
+        }
+        if(rssi != RSSI_UNKNOWN){
+            sighting.rssi = rssi;
+        }
+        sighting.lastSeen = Math.max(sighting.lastSeen, now);
+        sighting.count++;
+        return false;
+    }
+
+    public void remove(String address){
+        devices.remove(address);
+    }
+
+    /**
+     * returns the devices seen within the max age, strongest signal first and the most recently seen first
+     * among equal signals. Expired devices are dropped
+     * @param now
+     * @return
+     */
+    public List<Sighting> ranked(long now){
+        List<Sighting> list = new ArrayList<>();
+        for(Iterator<Sighting> it = devices.values().iterator(); it.hasNext(); ){
+            Sighting sighting = it.next();
+            if(now - sighting.lastSeen > maxAgeMs){
+                it.remove();
+            }else{
+                list.add(sighting);
+            }
+        }
+        Collections.sort(list, new Comparator<Sighting>() {
+            @Override
+            public int compare(Sighting a, Sighting b) {
+                if(a.rssi != b.rssi){
+                    return a.rssi > b.rssi ? -1 : 1;
+                }
+                return Long.compare(b.lastSeen, a.lastSeen);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * writes the devices that have not expired yet
+     * @param out
+     * @param now
+     * @throws IOException
+     */
+    public void write(OutputStream out, long now) throws IOException {
+        List<Sighting> list = ranked(now);
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FILE_VERSION);
+        data.writeInt(list.size());
+        for(Sighting sighting : list){
+            data.writeUTF(sighting.address);
+            data.writeBoolean(sighting.name != null);
+            if(sighting.name != null){
+                data.writeUTF(sighting.name);
+            }
+            data.writeInt(sighting.rssi);
+            data.writeLong(sighting.lastSeen);
+            data.writeInt(sighting.count);
+        }
+        data.flush();
+    }
+
+    /**
+     * adds the devices written by write() that have not expired by now, devices already in the cache are kept
+     * as they are. A file of another version is ignored
+     * @param in
+     * @param now
+     * @throws IOException if the file is cut off or malformed
+     */
+    public void read(InputStream in, long now) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version;
+        try{
+            version = data.readInt();
+        }catch (EOFException e){
+            return;
+        }
+        if(version != FILE_VERSION){
+            return;
+        }
+        int size = data.readInt();
+        if(size < 0){
+            throw new IOException("Malformed discovery cache");
+        }
+        for(int i = 0; i < size; i++){
+            String address = data.readUTF();
+            String name = data.readBoolean() ? data.readUTF() : null;
+            int rssi = data.readInt();
+            long lastSeen = data.readLong();
+            int count = data.readInt();
+            if(now - lastSeen <= maxAgeMs && !devices.containsKey(address)){
+                devices.put(address, new Sighting(address, name, rssi, lastSeen, count));
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.bluemessage;
+
+/**
+ * Progress of one file going to or coming from a peer, as reported to ChatEngine.Listener.onFileProgress()
+ */
+public class FileTransfer {
+
+    public static final int STATE_WAITING = 0;
+    public static final int STATE_ACTIVE = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+
+    private final String address;
+    private final long id;
+    private final String name;
+    private final long size;
+    private final boolean outgoing;
+    private volatile long transferred;
+    private volatile int state = STATE_WAITING;
+    private int reportedPercent = -1;
+
+    FileTransfer(String address, long id, String name, long size, boolean outgoing){
+        this.address = address;
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.outgoing = outgoing;
+    }
+
+    /**
+     * address of the peer the file goes to or comes from
+     */
+    public String getAddress(){
+        return address;
+    }
+
+    public long getId(){
+        return id;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public long getSize(){
+        return size;
+    }
+
+    /**
+     * true for a file this side is sending
+     */
+    public boolean isOutgoing(){
+        return outgoing;
+    }
+
+    /**
+     * bytes the receiving side has written so far
+     */
+    public long getTransferred(){
+        return transferred;
+    }
+
+    public int getState(){
+        return state;
+    }
+
+    public int getPercent(){
+        return size == 0 ? 100 : (int) (transferred * 100 / size);
+    }
+
+    /**
+     * records how far the transfer got and returns true if that is worth a progress report,
+     * which is at most once per percent
+     */
+    synchronized boolean progress(long transferred){
+        this.transferred = transferred;
+        if(state == STATE_WAITING){
+            state = STATE_ACTIVE;
+        }
+        int percent = getPercent();
+        if(percent == reportedPercent){
+            return false;
+        }
+        reportedPercent = percent;
+        return true;
+    }
+
+    /**
+     * records that the transfer finished or failed, returns false if it had already ended
+     */
+    synchronized boolean end(int state){
+        if(this.state == STATE_DONE || this.state == STATE_FAILED){
+            return false;
+        }
+        this.state = state;
+        return true;
+    }
+}
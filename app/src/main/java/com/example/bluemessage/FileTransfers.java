@@ -0,0 +1,448 @@
+package com.example.bluemessage;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * The file transfers with one peer.
+ * An outgoing file is read a chunk at a time straight from its FileChannel and only WINDOW_CHUNKS chunks of it
+ * are on their way before the peer acknowledges them, so a file never has to fit in memory.
+ * Every chunk carries its offset and a CRC32, a chunk that does not check out is asked for again.
+ * Like ReliableChannel this outlives the connection: after a reconnect every unfinished file is offered again
+ * and the peer answers with the offset it had got to.
+ * Frames go out through the session's pump, control frames first and then one chunk at a time,
+ * so text messages are never stuck behind a whole file.
+ */
+public class FileTransfers {
+
+    public static final int CHUNK_SIZE = 8 * 1024;
+    public static final int WINDOW_CHUNKS = 4;
+
+    private static final int CHUNK_HEADER_SIZE = 12;
+    //ids of finished incoming files remembered so an offer repeated after a reconnect is not taken as a new file
+    private static final int MAX_FINISHED = 64;
+    private static final Random ids = new Random();
+
+    private final String address;
+    private final ChatEngine.Listener listener;
+    private final List<Outgoing> outgoing = new ArrayList<>();
+    private int nextOutgoing;
+    private final Map<Long, Incoming> incoming = new HashMap<>();
+    private final Map<Long, Long> finished = new LinkedHashMap<Long, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+            return size() > MAX_FINISHED;
+        }
+    };
+    //offers, ACKs and cancels waiting for room in the writer
+    private final ArrayDeque<ChatFrame> control = new ArrayDeque<>();
+    //chunk read by nextChunk() that has not been taken by the writer yet
+    private ChatFrame heldChunk;
+    private Outgoing heldOwner;
+    private int chunkSize = CHUNK_SIZE;
+
+    /**
+     * Constructor for the transfers with the given peer, progress is reported to the listener
+     * @param address
+     * @param listener
+     */
+    public FileTransfers(String address, ChatEngine.Listener listener){
+        this.address = address;
+        this.listener = listener;
+    }
+
+    /**
+     * sets the size of the chunks read from now on, the window of each file stays WINDOW_CHUNKS full size chunks.
+     * The receiver takes chunks of any size
+     * @param chunkSize between 1 and CHUNK_SIZE
+     */
+    public synchronized void setChunkSize(int chunkSize){
+        this.chunkSize = Math.max(1, Math.min(CHUNK_SIZE, chunkSize));
+    }
+
+    /**
+     * starts sending the file, it is offered to the peer with the next control frame.
+     * The source is closed once the transfer is done or failed
+     * @param source
+     * @param name
+     * @return
+     * @throws IOException if the size of the file can not be read
+     */
+    public synchronized FileTransfer add(FileChannel source, String name) throws IOException {
+        long id;
+        synchronized (ids){
+            id = ids.nextLong();
+        }
+        Outgoing out = new Outgoing(new FileTransfer(address, id, name, source.size(), true), source);
+        outgoing.add(out);
+        control.add(out.offerFrame());
+        return out.transfer;
+    }
+
+    /**
+     * called once the peer's RESUME has arrived on a new connection.
+     * Whatever was queued for the old connection is dropped and every unfinished file is offered again
+     */
+    public synchronized void resume(){
+        control.clear();
+        dropHeldChunk();
+        for(Outgoing out : outgoing){
+            out.accepted = false;
+            out.nextOffset = out.acked;
+            control.add(out.offerFrame());
+        }
+    }
+
+    /**
+     * returns the next control frame without taking it, call controlSent() once the writer took it
+     */
+    public synchronized ChatFrame peekControl(){
+        return control.peekFirst();
+    }
+
+    public synchronized void controlSent(){
+        control.pollFirst();
+    }
+
+    /**
+     * returns the next chunk of the next file in turn that has room in its window, or null if none has.
+     * The same chunk is returned until chunkSent() is called with it
+     */
+    public synchronized ChatFrame nextChunk(){
+        if(heldChunk != null){
+            return heldChunk;
+        }
+        int count = outgoing.size();
+        for(int i = 0; i < count; i++){
+            int index = (nextOutgoing + i) % count;
+            Outgoing out = outgoing.get(index);
+            if(!out.canSend()){
+                continue;
+            }
+            nextOutgoing = index + 1;
+            try{
+                heldChunk = out.readChunk(chunkSize);
+                heldOwner = out;
+                return heldChunk;
+            }catch (IOException e){
+                Log.e("File to Read", e.toString());
+                outgoing.remove(out);
+                control.add(ChatFrame.create(ChatFrame.TYPE_FILE_CANCEL, out.transfer.getId(), new byte[0]));
+                end(out.transfer, out.source, FileTransfer.STATE_FAILED);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * records that the chunk returned by nextChunk() was handed to the writer
+     * @param chunk
+     */
+    public synchronized void chunkSent(ChatFrame chunk){
+        if(heldChunk == chunk){
+            dropHeldChunk();
+        }
+    }
+
+    private void dropHeldChunk(){
+        heldChunk = null;
+        heldOwner = null;
+    }
+
+    /**
+     * the peer wants a file, or wants to know how far it got with it after a reconnect.
+     * Answers with the offset to carry on from, or cancels if there is nowhere to put the file
+     * @param offer
+     * @param incomingFiles
+     * @throws IOException if the size is negative
+     */
+    public synchronized void offered(ChatFrame offer, ChatEngine.IncomingFiles incomingFiles) throws IOException {
+        long id = offer.seq;
+        long size = offer.longAt(0);
+        if(size < 0){
+            throw new IOException("Malformed file offer of " + size + " bytes");
+        }
+        Long done = finished.get(id);
+        if(done != null){
+            control.add(ack(id, done));
+            return;
+        }
+
+        Incoming in = incoming.get(id);
+        if(in == null){
+            String name = new String(offer.body, offer.offset + 8, offer.length - 8, TextCodec.UTF_8);
+            FileChannel sink = null;
+            try{
+                if(incomingFiles != null){
+                    sink = incomingFiles.open(address, name, size);
+                }
+            }catch (IOException e){
+                Log.e("File to Open", e.toString());
+            }
+            if(sink == null){
+                control.add(ChatFrame.create(ChatFrame.TYPE_FILE_CANCEL, id, new byte[0]));
+                return;
+            }
+            in = new Incoming(new FileTransfer(address, id, name, size, false), sink);
+            incoming.put(id, in);
+        }
+        in.awaitingResend = false;
+        control.add(ack(id, in.expected));
+        received(in);
+    }
+
+    /**
+     * writes a chunk of an incoming file at its offset and acknowledges it.
+     * A chunk with a bad checksum or after a gap is asked for again once, chunks already written are skipped
+     * @param chunk
+     * @throws IOException if the chunk lies before the start of the file or past the largest offset
+     */
+    public synchronized void chunk(ChatFrame chunk) throws IOException {
+        long id = chunk.seq;
+        long offset = chunk.longAt(0);
+        int length = chunk.length - CHUNK_HEADER_SIZE;
+        if(offset < 0 || offset > Long.MAX_VALUE - length){
+            throw new IOException("Malformed file chunk at " + offset);
+        }
+        Incoming in = incoming.get(id);
+        if(in == null){
+            if(!finished.containsKey(id)){
+                control.add(ChatFrame.create(ChatFrame.TYPE_FILE_CANCEL, id, new byte[0]));
+            }
+            return;
+        }
+
+        if(offset < in.expected){
+            return;
+        }
+        if(offset > in.expected || offset + length > in.transfer.getSize()
+                || chunk.intAt(8) != checksum(chunk.body, chunk.offset + CHUNK_HEADER_SIZE, length)){
+            if(!in.awaitingResend){
+                in.awaitingResend = true;
+                control.add(ack(id, in.expected));
+            }
+            return;
+        }
+
+        try{
+            ByteBuffer buffer = ByteBuffer.wrap(chunk.body, chunk.offset + CHUNK_HEADER_SIZE, length);
+            long position = offset;
+            while(buffer.hasRemaining()){
+                position += in.sink.write(buffer, position);
+            }
+        }catch (IOException e){
+            Log.e("File to Write", e.toString());
+            incoming.remove(id);
+            control.add(ChatFrame.create(ChatFrame.TYPE_FILE_CANCEL, id, new byte[0]));
+            end(in.transfer, in.sink, FileTransfer.STATE_FAILED);
+            return;
+        }
+        in.expected += length;
+        in.awaitingResend = false;
+        control.add(ack(id, in.expected));
+        received(in);
+    }
+
+    /**
+     * the peer has everything of a file up to the offset in the ACK.
+     * An ACK that does not move the offset while chunks are out means the peer wants them again from there
+     * @param ack
+     * @throws IOException if the offset is negative
+     */
+    public synchronized void acknowledged(ChatFrame ack) throws IOException {
+        long acked = ack.longAt(0);
+        if(acked < 0){
+            throw new IOException("Malformed file ACK at " + acked);
+        }
+        Outgoing out = find(ack.seq);
+        if(out == null){
+            return;
+        }
+        long size = out.transfer.getSize();
+        long offset = Math.min(acked, size);
+        if(!out.accepted){
+            out.accepted = true;
+            out.acked = offset;
+            out.nextOffset = offset;
+        }else if(offset > out.acked){
+            out.acked = offset;
+        }else if(offset == out.acked && out.nextOffset > offset){
+            out.nextOffset = offset;
+            if(heldOwner == out){
+                dropHeldChunk();
+            }
+        }
+
+        if(out.acked >= size){
+            outgoing.remove(out);
+            if(heldOwner == out){
+                dropHeldChunk();
+            }
+            out.transfer.progress(size);
+            end(out.transfer, out.source, FileTransfer.STATE_DONE);
+        }else if(out.transfer.progress(out.acked)){
+            listener.onFileProgress(out.transfer);
+        }
+    }
+
+    /**
+     * the peer gave up on a file, in either direction
+     * @param cancel
+     */
+    public synchronized void cancelled(ChatFrame cancel){
+        Outgoing out = find(cancel.seq);
+        if(out != null){
+            outgoing.remove(out);
+            if(heldOwner == out){
+                dropHeldChunk();
+            }
+            end(out.transfer, out.source, FileTransfer.STATE_FAILED);
+        }
+        Incoming in = incoming.remove(cancel.seq);
+        if(in != null){
+            end(in.transfer, in.sink, FileTransfer.STATE_FAILED);
+        }
+    }
+
+    /**
+     * fails every transfer, for when the peer is given up on
+     */
+    public synchronized void failAll(){
+        for(Outgoing out : outgoing){
+            end(out.transfer, out.source, FileTransfer.STATE_FAILED);
+        }
+        for(Incoming in : incoming.values()){
+            end(in.transfer, in.sink, FileTransfer.STATE_FAILED);
+        }
+        outgoing.clear();
+        incoming.clear();
+        control.clear();
+        dropHeldChunk();
+    }
+
+    /**
+     * reports progress of an incoming file and finishes it once the last byte is written
+     */
+    private void received(Incoming in){
+        if(in.expected >= in.transfer.getSize()){
+            incoming.remove(in.transfer.getId());
+            finished.put(in.transfer.getId(), in.expected);
+            in.transfer.progress(in.expected);
+            end(in.transfer, in.sink, FileTransfer.STATE_DONE);
+        }else if(in.transfer.progress(in.expected)){
+            listener.onFileProgress(in.transfer);
+        }
+    }
+
+    private Outgoing find(long id){
+        for(Iterator<Outgoing> it = outgoing.iterator(); it.hasNext();){
+            Outgoing out = it.next();
+            if(out.transfer.getId() == id){
+                return out;
+            }
+        }
+        return null;
+    }
+
+    private void end(FileTransfer transfer, Closeable file, int state){
+        try{
+            file.close();
+        }catch (IOException e){
+            Log.e("File to Close", e.toString());
+        }
+        if(transfer.end(state)){
+            listener.onFileProgress(transfer);
+        }
+    }
+
+    private static ChatFrame ack(long id, long offset){
+        byte[] body = new byte[8];
+        ChatFrame.putLong(body, 0, offset);
+        return ChatFrame.create(ChatFrame.TYPE_FILE_ACK, id, body);
+    }
+
+    private static int checksum(byte[] data, int offset, int length){
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A file being sent: acked is what the peer has, nextOffset where the next chunk is read from
+     */
+    private static class Outgoing {
+        final FileTransfer transfer;
+        final FileChannel source;
+        boolean accepted;
+        long acked;
+        long nextOffset;
+
+        Outgoing(FileTransfer transfer, FileChannel source){
+            this.transfer = transfer;
+            this.source = source;
+        }
+
+        boolean canSend(){
+            return accepted && nextOffset < transfer.getSize() && nextOffset - acked < (long) WINDOW_CHUNKS * CHUNK_SIZE;
+        }
+
+        ChatFrame offerFrame(){
+            byte[] name = transfer.getName().getBytes(TextCodec.UTF_8);
+            byte[] body = new byte[8 + name.length];
+            ChatFrame.putLong(body, 0, transfer.getSize());
+            System.arraycopy(name, 0, body, 8, name.length);
+            return ChatFrame.create(ChatFrame.TYPE_FILE_OFFER, transfer.getId(), body);
+        }
+
+        /**
+         * reads the chunk at nextOffset straight into the frame body behind its header
+         */
+        ChatFrame readChunk(int chunkSize) throws IOException {
+            int length = (int) Math.min(chunkSize, transfer.getSize() - nextOffset);
+            byte[] body = new byte[CHUNK_HEADER_SIZE + length];
+            ByteBuffer buffer = ByteBuffer.wrap(body, CHUNK_HEADER_SIZE, length);
+            long position = nextOffset;
+            while(buffer.hasRemaining()){
+                int read = source.read(buffer, position);
+                if(read < 0){
+                    throw new EOFException("File got shorter while it was sent");
+                }
+                position += read;
+            }
+            ChatFrame.putLong(body, 0, nextOffset);
+            ChatFrame.putInt(body, 8, checksum(body, CHUNK_HEADER_SIZE, length));
+            nextOffset += length;
+            return ChatFrame.create(ChatFrame.TYPE_FILE_CHUNK, transfer.getId(), body);
+        }
+    }
+
+    /**
+     * A file being received: expected is the offset of the next chunk to write
+     */
+    private static class Incoming {
+        final FileTransfer transfer;
+        final FileChannel sink;
+        long expected;
+        boolean awaitingResend;
+
+        Incoming(FileTransfer transfer, FileChannel sink){
+            this.transfer = transfer;
+            this.sink = sink;
+        }
+    }
+}
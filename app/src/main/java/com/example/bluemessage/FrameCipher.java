@@ -0,0 +1,193 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts every frame of one session with AES-GCM once both sides offered encryption in their HELLO.
+ * Each side puts a new P-256 public key in its HELLO, the ECDH secret of the two is run through HKDF-SHA256
+ * salted with a hash of both HELLOs, so a HELLO changed on the way leaves the two sides with different keys
+ * and the first frame fails to decrypt. There is one key per direction and the nonce is a frame counter
+ * that both sides keep in step, frames arrive in the order they were sent so the counter is never sent.
+ * An encrypted frame is the whole frame, type byte included, followed by the 16 byte tag.
+ * The two Cipher instances are made once per session and only initialised again with the next nonce.
+ * Frames are compressed before they are sealed when both sides also offer compression, so the length of an
+ * encrypted frame tells how well its message compressed. Every frame holds a single message of one user,
+ * there is no secret next to text an attacker chooses for the length to reveal, and the saving on a slow link
+ * is worth more than hiding how repetitive a message is.
+ * seal() is called from the writer thread and open() from the read thread
+ */
+public class FrameCipher {
+
+    public static final int TAG_SIZE = 16;
+
+    private static final int KEY_SIZE = 16;
+    private static final int NONCE_SIZE = 12;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte[] KEY_INFO = "BlueMessage frame keys".getBytes(TextCodec.UTF_8);
+
+    private final Cipher sealer;
+    private final Cipher opener;
+    private final SecretKeySpec sendKey;
+    private final SecretKeySpec receiveKey;
+    private final byte[] sendNonce = new byte[NONCE_SIZE];
+    private final byte[] receiveNonce = new byte[NONCE_SIZE];
+    private long sent;
+    private long received;
+    //plain frame the writer encodes before it is sealed into the batch
+    private byte[] plain = new byte[1024];
+
+    private FrameCipher(byte[] sendKey, byte[] receiveKey) throws GeneralSecurityException {
+        sealer = Cipher.getInstance(TRANSFORMATION);
+        opener = Cipher.getInstance(TRANSFORMATION);
+        this.sendKey = new SecretKeySpec(sendKey, "AES");
+        this.receiveKey = new SecretKeySpec(receiveKey, "AES");
+    }
+
+    /**
+     * returns a new key pair for the HELLO of one connection
+     * @return
+     * @throws GeneralSecurityException
+     */
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        return generator.generateKeyPair();
+    }
+
+    /**
+     * returns the ciphers of a session from this side's key pair and the peer's public key
+     * @param local key pair whose public key this side sent
+     * @param peerPublicKey X.509 encoded public key from the peer's HELLO
+     * @param dialerHello HELLO body of the side that dialed
+     * @param acceptorHello HELLO body of the side that accepted
+     * @param dialer true on the side that dialed
+     * @return
+     * @throws IOException if the peer's key is not usable
+     */
+    public static FrameCipher create(KeyPair local, byte[] peerPublicKey, byte[] dialerHello, byte[] acceptorHello,
+                                     boolean dialer) throws IOException {
+        try{
+            PublicKey peer = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(peerPublicKey));
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(local.getPrivate());
+            agreement.doPhase(peer, true);
+            byte[] secret = agreement.generateSecret();
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(dialerHello);
+            byte[] transcript = digest.digest(acceptorHello);
+
+            byte[] keys = hkdf(transcript, secret, KEY_INFO, 2 * KEY_SIZE);
+            byte[] dialerKey = new byte[KEY_SIZE];
+            byte[] acceptorKey = new byte[KEY_SIZE];
+            System.arraycopy(keys, 0, dialerKey, 0, KEY_SIZE);
+            System.arraycopy(keys, KEY_SIZE, acceptorKey, 0, KEY_SIZE);
+            return dialer ? new FrameCipher(dialerKey, acceptorKey) : new FrameCipher(acceptorKey, dialerKey);
+        }catch (GeneralSecurityException | IllegalArgumentException e){
+            throw new IOException("Key exchange failed", e);
+        }
+    }
+
+    /**
+     * returns the number of bytes the frame takes at most once sealed, length prefix included
+     * @param frame
+     * @return
+     */
+    public static int sealedSize(ChatFrame frame){
+        int size = frame.encodedSize() + TAG_SIZE;
+        return FrameCodec.varintSize(size) + size;
+    }
+
+    /**
+     * writes the frame, compressed first if a compressor is given, sealed and with its length prefix
+     * into dest at pos and returns the position after it. dest must have room for sealedSize()
+     * @param frame
+     * @param compressor
+     * @param dest
+     * @param pos
+     * @return
+     * @throws IOException if the cipher fails
+     */
+    public int seal(ChatFrame frame, FrameCompressor compressor, byte[] dest, int pos) throws IOException {
+        if(plain.length < frame.encodedSize()){
+            plain = new byte[Math.max(frame.encodedSize(), plain.length * 2)];
+        }
+        int length = compressor != null ? compressor.encodeFrame(frame, plain, 0) : frame.encode(plain, 0);
+        pos += FrameCodec.writeVarint(dest, pos, length + TAG_SIZE);
+        try{
+            nextNonce(sendNonce, sent++);
+            sealer.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_SIZE * 8, sendNonce));
+            return pos + sealer.doFinal(plain, 0, length, dest, pos);
+        }catch (GeneralSecurityException e){
+            throw new IOException("Encrypting frame failed", e);
+        }
+    }
+
+    /**
+     * decrypts the frame the last FrameCodec.nextFrame() call left in the codec's receive buffer, in place,
+     * and returns it decoded from there like ChatFrame.decode(codec) does
+     * @param codec
+     * @return
+     * @throws IOException if the frame was not sealed by the peer with the next nonce or is malformed
+     */
+    public ChatFrame open(FrameCodec codec) throws IOException {
+        PooledBuffer buffer = codec.getFrameBuffer();
+        int offset = codec.getFrameOffset();
+        int length = codec.getFrameLength();
+        if(length < TAG_SIZE){
+            throw new IOException("Encrypted frame too short");
+        }
+        int plainLength;
+        try{
+            nextNonce(receiveNonce, received++);
+            opener.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(TAG_SIZE * 8, receiveNonce));
+            plainLength = opener.doFinal(buffer.array(), offset, length, buffer.array(), offset);
+        }catch (GeneralSecurityException e){
+            throw new IOException("Frame failed to decrypt", e);
+        }
+        return ChatFrame.decode(buffer, offset, plainLength);
+    }
+
+    /**
+     * the nonce is the counter in its last 8 bytes, each direction has its own key so the counters never meet
+     */
+    private static void nextNonce(byte[] nonce, long counter){
+        ChatFrame.putLong(nonce, NONCE_SIZE - 8, counter);
+    }
+
+    /**
+     * RFC 5869 extract and expand with HMAC-SHA256
+     */
+    private static byte[] hkdf(byte[] salt, byte[] secret, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        byte[] prk = mac.doFinal(secret);
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        byte[] out = new byte[length];
+        byte[] block = new byte[0];
+        for(int pos = 0, counter = 1; pos < length; counter++){
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int count = Math.min(block.length, length - pos);
+            System.arraycopy(block, 0, out, pos, count);
+            pos += count;
+        }
+        return out;
+    }
+}
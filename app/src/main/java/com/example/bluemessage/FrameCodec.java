@@ -0,0 +1,247 @@
+package com.example.bluemessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Length prefixed frame codec used on the chat socket.
+ * Every frame is a varint with the payload length followed by the payload bytes,
+ * so a message can be rebuilt no matter how the stream splits it up between reads.
+ * The receive buffer comes from a BufferPool and nextFrame() leaves each frame where it was read.
+ * A frame is only good until the next call unless the buffer is retained, in which case the codec
+ * moves on to a fresh buffer instead of overwriting it.
+ */
+public class FrameCodec {
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_VARINT_SIZE = 5;
+
+    private final InputStream inputStream;
+    private final int maxFrameSize;
+    private final BufferPool pool;
+
+    //receive buffer, bytes between start and end have been read but not yet returned as a frame
+    private PooledBuffer receive;
+    private byte[] buffer;
+    private int start;
+    private int end;
+    //the frame returned by the last nextFrame()
+    private PooledBuffer frameBuffer;
+    private int frameOffset;
+    private int frameLength;
+
+    /**
+     * Constructor for a decoder that reads frames from the given stream
+     * @param inputStream
+     */
+    public FrameCodec(InputStream inputStream){
+        this(inputStream, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Constructor for a decoder that rejects any frame larger than maxFrameSize
+     * @param inputStream
+     * @param maxFrameSize
+     */
+    public FrameCodec(InputStream inputStream, int maxFrameSize){
+        this(inputStream, maxFrameSize, new BufferPool());
+    }
+
+    /**
+     * Constructor for a decoder that takes its receive buffers from the given pool
+     * @param inputStream
+     * @param maxFrameSize
+     * @param pool
+     */
+    public FrameCodec(InputStream inputStream, int maxFrameSize, BufferPool pool){
+        if(maxFrameSize <= 0){
+            throw new IllegalArgumentException("maxFrameSize must be positive");
+        }
+        this.inputStream = inputStream;
+        this.maxFrameSize = maxFrameSize;
+        this.pool = pool;
+        receive = pool.acquire(Math.min(INITIAL_BUFFER_SIZE, maxFrameSize + MAX_VARINT_SIZE));
+        buffer = receive.array();
+    }
+
+    /**
+     * blocks until a whole frame has arrived, its payload is then at getFrameOffset() in getFrameBuffer()
+     * and stays there until the next call. Retain the buffer to keep the frame for longer.
+     * Returns false if the stream ends cleanly between two frames.
+     * @return
+     * @throws IOException if the stream fails, ends inside a frame or the frame is too large
+     */
+    public boolean nextFrame() throws IOException {
+        int length;
+        while((length = parseHeader()) < 0){
+            if(!fill()){
+                if(start == end){
+                    return false;
+                }
+                throw new EOFException("Stream ended inside a frame header");
+            }
+        }
+
+        int headerSize = varintSize(length);
+        while(end - start < headerSize + length){
+            if(!fill()){
+                throw new EOFException("Stream ended inside a frame");
+            }
+        }
+
+        frameBuffer = receive;
+        frameOffset = start + headerSize;
+        frameLength = length;
+        start += headerSize + length;
+        return true;
+    }
+
+    public PooledBuffer getFrameBuffer(){
+        return frameBuffer;
+    }
+
+    public int getFrameOffset(){
+        return frameOffset;
+    }
+
+    public int getFrameLength(){
+        return frameLength;
+    }
+
+    /**
+     * gives the receive buffer back to the pool, once the stream is done with
+     */
+    public void release(){
+        if(receive != null){
+            receive.release();
+            receive = null;
+            buffer = null;
+        }
+    }
+
+    /**
+     * returns the payload length of the frame at the start of the buffer or -1 if the header is not complete yet
+     */
+    private int parseHeader() throws IOException {
+        int value = 0;
+        for(int i = 0; i < MAX_VARINT_SIZE; i++){
+            if(start + i >= end){
+                return -1;
+            }
+            int b = buffer[start + i];
+            if(i == MAX_VARINT_SIZE - 1 && (b & 0xf0) != 0){
+                throw new IOException("Frame too large");
+            }
+            value |= (b & 0x7f) << (7 * i);
+            if((b & 0x80) == 0){
+                if(value < 0 || value > maxFrameSize){
+                    throw new IOException("Frame too large: " + (value & 0xffffffffL));
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed frame header");
+    }
+
+    /**
+     * reads more bytes from the stream into the receive buffer, compacting or growing the buffer when it is full.
+     * Bytes before start are only overwritten while nobody else holds the buffer,
+     * otherwise the unread bytes move to a new buffer from the pool.
+     * returns false when the stream has ended
+     */
+    private boolean fill() throws IOException {
+        boolean shared = receive.isShared();
+        if(start == end && !shared){
+            start = 0;
+            end = 0;
+        }
+        if(end == buffer.length){
+            if(start > 0 && !shared){
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }else{
+                int limit = maxFrameSize + MAX_VARINT_SIZE;
+                int size = start > 0 ? buffer.length : (int) Math.min((long) buffer.length * 2, limit);
+                PooledBuffer next = pool.acquire(size);
+                System.arraycopy(buffer, start, next.array(), 0, end - start);
+                end -= start;
+                start = 0;
+                receive.release();
+                receive = next;
+                buffer = next.array();
+            }
+        }
+
+        int read = inputStream.read(buffer, end, buffer.length - end);
+        if(read < 0){
+            return false;
+        }
+        end += read;
+        return true;
+    }
+
+    /**
+     * writes value as an unsigned varint into dest at position pos and returns the number of bytes used
+     * @param dest
+     * @param pos
+     * @param value
+     * @return
+     */
+    public static int writeVarint(byte[] dest, int pos, int value){
+        int i = pos;
+        while((value & ~0x7f) != 0){
+            dest[i++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dest[i++] = (byte) value;
+        return i - pos;
+    }
+
+    /**
+     * writes value as an unsigned 64 bit varint into dest at position pos and returns the number of bytes used
+     * @param dest
+     * @param pos
+     * @param value
+     * @return
+     */
+    public static int writeVarlong(byte[] dest, int pos, long value){
+        int i = pos;
+        while((value & ~0x7fL) != 0){
+            dest[i++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dest[i++] = (byte) value;
+        return i - pos;
+    }
+
+    /**
+     * returns the number of bytes needed to write value as a 64 bit varint
+     * @param value
+     * @return
+     */
+    public static int varlongSize(long value){
+        int size = 1;
+        while((value & ~0x7fL) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * returns the number of bytes needed to write value as a varint
+     * @param value
+     * @return
+     */
+    public static int varintSize(int value){
+        int size = 1;
+        while((value & ~0x7f) != 0){
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
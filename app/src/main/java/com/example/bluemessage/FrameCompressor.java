@@ -0,0 +1,191 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates the bodies of the frames one session sends and inflates the ones it receives.
+ * Each frame is compressed on its own, starting from a preset dictionary of common chat words, so frames can be
+ * decoded in any order and a frame that does not get smaller can simply be sent as it is.
+ * Only DATA and FILE_CHUNK bodies of at least the minimum size are tried, everything else is too small to gain.
+ * A compressed frame has FLAG_COMPRESSED set in its type byte and its body is the varint size of the
+ * original body followed by the raw deflate stream.
+ * The Deflater and Inflater are created once per session and reset between frames. compress() is called from
+ * the writer thread and inflate() from the read thread, close() frees both once the session is over
+ */
+public class FrameCompressor {
+
+    public static final int DEFAULT_MIN_SIZE = 64;
+
+    //words and phrases that show up in most chats, the most common ones last since they are the closest to the data
+    private static final byte[] DICTIONARY = ("http://https://www.com .jpg.png.pdf file photo picture "
+            + "tomorrow tonight today morning later week weekend time work home talk call meet "
+            + "sorry please thank thanks welcome love miss happy sure maybe really right great nice cool "
+            + "what when where which who why how can could would should will there their they them "
+            + "this that with have from your about just like know want going been yeah yes okay "
+            + "haha lol the and you for are not but all was out get see now too did are you ok hi hey ")
+            .getBytes(TextCodec.UTF_8);
+
+    private final BufferPool pool;
+    private final int minSize;
+    private final int maxFrameSize;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    //compressed body of the frame compress() was called for last
+    private byte[] compressed = new byte[1024];
+    private int compressedLength;
+    private boolean closed;
+
+    /**
+     * Constructor for a compressor with the default minimum size
+     * @param pool buffers inflated frames are written into
+     * @param maxFrameSize largest body an inflated frame may have
+     */
+    public FrameCompressor(BufferPool pool, int maxFrameSize){
+        this(pool, maxFrameSize, DEFAULT_MIN_SIZE);
+    }
+
+    /**
+     * Constructor for a compressor
+     * @param pool buffers inflated frames are written into
+     * @param maxFrameSize largest body an inflated frame may have
+     * @param minSize bodies smaller than this are sent as they are
+     */
+    public FrameCompressor(BufferPool pool, int maxFrameSize, int minSize){
+        this.pool = pool;
+        this.maxFrameSize = maxFrameSize;
+        this.minSize = minSize;
+    }
+
+    /**
+     * writes the frame with its length prefix into dest at pos, compressed if that makes it smaller,
+     * and returns the position after it. Never writes more than the frame takes uncompressed
+     * @param frame
+     * @param dest
+     * @param pos
+     * @return
+     */
+    public int encode(ChatFrame frame, byte[] dest, int pos){
+        boolean deflated = compress(frame);
+        int size = deflated ? 1 + FrameCodec.varlongSize(frame.seq) + compressedLength : frame.encodedSize();
+        pos += FrameCodec.writeVarint(dest, pos, size);
+        return writeFrame(frame, deflated, dest, pos);
+    }
+
+    /**
+     * like encode() but without the length prefix, for frames that are encrypted before they are written
+     * @param frame
+     * @param dest
+     * @param pos
+     * @return
+     */
+    public int encodeFrame(ChatFrame frame, byte[] dest, int pos){
+        return writeFrame(frame, compress(frame), dest, pos);
+    }
+
+    private int writeFrame(ChatFrame frame, boolean deflated, byte[] dest, int pos){
+        if(!deflated){
+            return frame.encode(dest, pos);
+        }
+        dest[pos++] = (byte) (frame.type | ChatFrame.FLAG_COMPRESSED);
+        pos += FrameCodec.writeVarlong(dest, pos, frame.seq);
+        System.arraycopy(compressed, 0, dest, pos, compressedLength);
+        return pos + compressedLength;
+    }
+
+    /**
+     * deflates the body of the frame into the compressed array, returns false if the frame should go as it is
+     */
+    private synchronized boolean compress(ChatFrame frame){
+        if(closed || frame.length < minSize
+                || (frame.type != ChatFrame.TYPE_DATA && frame.type != ChatFrame.TYPE_FILE_CHUNK)){
+            return false;
+        }
+        //anything that does not come out smaller than the body is not worth it
+        int limit = frame.length;
+        if(compressed.length < limit){
+            compressed = new byte[Math.max(limit, compressed.length * 2)];
+        }
+        int pos = FrameCodec.writeVarint(compressed, 0, frame.length);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(frame.body, frame.offset, frame.length);
+        deflater.finish();
+        while(!deflater.finished() && pos < limit){
+            pos += deflater.deflate(compressed, pos, limit - pos);
+        }
+        if(!deflater.finished()){
+            return false;
+        }
+        compressedLength = pos;
+        return true;
+    }
+
+    /**
+     * returns the frame with its body inflated into a pooled buffer, which the caller has to release()
+     * @param frame a frame with FLAG_COMPRESSED set
+     * @return
+     * @throws IOException if the body does not inflate to the size it announces
+     */
+    public ChatFrame inflate(ChatFrame frame) throws IOException {
+        int limit = frame.offset + frame.length;
+        int pos = frame.offset;
+        int size = 0;
+        for(int shift = 0; ; shift += 7){
+            if(pos >= limit || shift > 28){
+                throw new IOException("Malformed compressed size");
+            }
+            byte b = frame.body[pos++];
+            size |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                break;
+            }
+        }
+        if(size < 0 || size > maxFrameSize){
+            throw new IOException("Compressed frame too large: " + size);
+        }
+
+        PooledBuffer buffer = pool.acquire(size);
+        try{
+            synchronized (this){
+                if(closed){
+                    throw new IOException("Compressor closed");
+                }
+                inflater.reset();
+                inflater.setDictionary(DICTIONARY);
+                inflater.setInput(frame.body, pos, limit - pos);
+                int inflated = 0;
+                while(inflated < size && !inflater.finished()){
+                    int count = inflater.inflate(buffer.array(), inflated, size - inflated);
+                    if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                        break;
+                    }
+                    inflated += count;
+                }
+                if(inflated != size){
+                    throw new IOException("Compressed frame inflated to " + inflated + " of " + size + " bytes");
+                }
+            }
+            return ChatFrame.inflated(frame.type, frame.seq, buffer, size);
+        }catch (DataFormatException e){
+            buffer.release();
+            throw new IOException("Malformed compressed frame", e);
+        }catch (IOException e){
+            buffer.release();
+            throw e;
+        }
+    }
+
+    /**
+     * frees the Deflater and Inflater, frames encoded afterwards go uncompressed
+     */
+    public synchronized void close(){
+        if(!closed){
+            closed = true;
+            deflater.end();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns the output stream of a connection.
+ * ChatFrames are queued from any thread and the writer coalesces whatever is pending into a single socket write,
+ * waiting up to the flush delay for more frames before it writes a partly filled batch.
+ * The writer only occupies an executor thread while it has something to send, so idle connections cost no thread.
+ * Once a FrameCompressor is set, frames worth compressing are deflated as they are written into the batch,
+ * once a FrameCipher is set every frame but the HELLO is encrypted after that.
+ * With ChatMetrics set, every batch records its size, how long the write took and how many frames were waiting.
+ */
+public class FrameWriter implements Runnable {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_FLUSH_DELAY_MS = 4;
+    public static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024;
+
+    /**
+     * Receives the outcome of every queued message, called from the writer thread
+     */
+    public interface Listener {
+        void onFrameWritten(ChatFrame frame);
+
+        void onFrameFailed(ChatFrame frame, IOException e);
+    }
+
+    private final OutputStream outputStream;
+    private final Listener listener;
+    private final Executor executor;
+    private final BlockingQueue<ChatFrame> queue;
+    private final int maxBatchBytes;
+    private volatile long flushDelayMs;
+    private volatile FrameCompressor compressor;
+    private volatile FrameCipher cipher;
+    private volatile ChatMetrics metrics;
+    private volatile boolean cancelled;
+    //true while a run() is queued or running, stays true for good once the writer has stopped
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    //reused between batches so a write does not allocate once the buffer has grown
+    private byte[] batch = new byte[1024];
+    private final List<ChatFrame> pending = new ArrayList<>();
+
+    /**
+     * Constructor for a writer with the default queue size, flush delay and batch size
+     * @param outputStream
+     * @param listener
+     * @param executor runs the writer whenever messages are waiting
+     */
+    public FrameWriter(OutputStream outputStream, Listener listener, Executor executor){
+        this(outputStream, listener, executor, DEFAULT_CAPACITY, DEFAULT_FLUSH_DELAY_MS, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * Constructor for a writer
+     * @param outputStream
+     * @param listener
+     * @param executor runs the writer whenever messages are waiting
+     * @param capacity number of messages that can wait before offer() starts refusing them
+     * @param flushDelayMs how long a batch waits for more messages before it is written
+     * @param maxBatchBytes batch size that is written straight away without waiting for the delay
+     */
+    public FrameWriter(OutputStream outputStream, Listener listener, Executor executor, int capacity, long flushDelayMs, int maxBatchBytes){
+        this.outputStream = outputStream;
+        this.listener = listener;
+        this.executor = executor;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.flushDelayMs = flushDelayMs;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * queues the frame without blocking. Returns false if the queue is full or the writer has stopped
+     * @param frame
+     * @return
+     */
+    public boolean offer(ChatFrame frame){
+        if(cancelled || !queue.offer(frame)){
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * queues the frame, waiting up to the timeout for room in the queue
+     * @param frame
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws InterruptedException
+     */
+    public boolean offer(ChatFrame frame, long timeout, TimeUnit unit) throws InterruptedException {
+        if(cancelled || !queue.offer(frame, timeout, unit)){
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * returns the number of messages waiting to be written
+     */
+    public int getQueueSize(){
+        return queue.size();
+    }
+
+    /**
+     * changes how long a batch waits for more messages, takes effect on the next batch
+     * @param flushDelayMs
+     */
+    public void setFlushDelay(long flushDelayMs){
+        this.flushDelayMs = flushDelayMs;
+    }
+
+    /**
+     * compresses the frames written from the next batch on, null sends them as they are
+     * @param compressor
+     */
+    public void setCompressor(FrameCompressor compressor){
+        this.compressor = compressor;
+    }
+
+    /**
+     * encrypts the frames written from the next batch on
+     * @param cipher
+     */
+    public void setCipher(FrameCipher cipher){
+        this.cipher = cipher;
+    }
+
+    /**
+     * records the batches written from now on in the given metrics, null records nothing
+     * @param metrics
+     */
+    public void setMetrics(ChatMetrics metrics){
+        this.metrics = metrics;
+    }
+
+    /**
+     * hands the writer to the executor unless it is already queued or running.
+     * Once the writer is cancelled the caller that wins the flag fails whatever is left instead
+     */
+    private void schedule(){
+        if(scheduled.compareAndSet(false, true)){
+            if(cancelled){
+                failPending(new IOException("Writer stopped"));
+                return;
+            }
+            executor.execute(this);
+        }
+    }
+
+    /**
+     * writes out batches until the queue is empty, the writer is cancelled or the stream fails
+     */
+    public void run() {
+        try{
+            while(true){
+                ChatFrame first = queue.poll();
+                if(first == null){
+                    scheduled.set(false);
+                    //a message offered between the poll and clearing the flag would otherwise wait for the next offer
+                    if(queue.isEmpty() || !scheduled.compareAndSet(false, true)){
+                        return;
+                    }
+                    continue;
+                }
+                pending.add(first);
+                if(cancelled){
+                    break;
+                }
+                ChatMetrics currentMetrics = metrics;
+                if(currentMetrics != null){
+                    currentMetrics.record(ChatMetrics.QUEUE_DEPTH, queue.size() + 1);
+                }
+                int batchBytes = frameSize(first);
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushDelayMs);
+                while(batchBytes < maxBatchBytes){
+                    ChatFrame next = queue.poll();
+                    if(next == null){
+                        long wait = deadline - System.nanoTime();
+                        if(wait <= 0 || (next = queue.poll(wait, TimeUnit.NANOSECONDS)) == null){
+                            break;
+                        }
+                    }
+                    pending.add(next);
+                    batchBytes += frameSize(next);
+                }
+
+                if(cancelled){
+                    break;
+                }
+                writeBatch(batchBytes);
+            }
+        }catch (InterruptedException e){
+            cancelled = true;
+        }catch (IOException e){
+            cancelled = true;
+            ChatMetrics currentMetrics = metrics;
+            if(currentMetrics != null){
+                currentMetrics.increment(ChatMetrics.WRITE_ERRORS);
+            }
+            failPending(e);
+        }
+        failPending(new IOException("Writer stopped"));
+    }
+
+    /**
+     * encodes every pending frame with its length prefix into the batch buffer and writes them with one call.
+     * A compressed frame never takes more room than the uncompressed size the batch was measured with,
+     * an encrypted one takes its tag more
+     */
+    private void writeBatch(int batchBytes) throws IOException {
+        FrameCompressor current = compressor;
+        FrameCipher currentCipher = cipher;
+        if(currentCipher != null){
+            batchBytes += pending.size() * (FrameCipher.TAG_SIZE + 1);
+        }
+        if(batch.length < batchBytes){
+            batch = new byte[Math.max(batchBytes, batch.length * 2)];
+        }
+        int pos = 0;
+        for(ChatFrame frame : pending){
+            //the HELLO the keys come from always goes in the clear, even if the peer's arrived before it was written
+            if(currentCipher != null && frame.type != ChatFrame.TYPE_HELLO){
+                pos = currentCipher.seal(frame, current, batch, pos);
+            }else if(current != null){
+                pos = current.encode(frame, batch, pos);
+            }else{
+                pos += FrameCodec.writeVarint(batch, pos, frame.encodedSize());
+                pos = frame.encode(batch, pos);
+            }
+        }
+
+        long start = System.nanoTime();
+        outputStream.write(batch, 0, pos);
+        outputStream.flush();
+        ChatMetrics currentMetrics = metrics;
+        if(currentMetrics != null){
+            currentMetrics.record(ChatMetrics.WRITE_LATENCY, (System.nanoTime() - start) / 1000);
+            currentMetrics.record(ChatMetrics.BATCH_SIZE, pos);
+            currentMetrics.add(ChatMetrics.BYTES_OUT, pos);
+            currentMetrics.add(ChatMetrics.FRAMES_OUT, pending.size());
+        }
+
+        for(ChatFrame frame : pending){
+            listener.onFrameWritten(frame);
+        }
+        pending.clear();
+    }
+
+    /**
+     * reports every frame that was not written, including the ones still in the queue
+     */
+    private void failPending(IOException e){
+        queue.drainTo(pending);
+        for(ChatFrame frame : pending){
+            listener.onFrameFailed(frame, e);
+        }
+        pending.clear();
+    }
+
+    private static int frameSize(ChatFrame frame){
+        int size = frame.encodedSize();
+        return FrameCodec.varintSize(size) + size;
+    }
+
+    /**
+     * stops the writer, anything not yet written is reported as failed
+     */
+    public void cancel(){
+        cancelled = true;
+        schedule();
+    }
+}
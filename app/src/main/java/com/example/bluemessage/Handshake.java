@@ -0,0 +1,211 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+
+/**
+ * What one side of a connection supports, sent in the HELLO frame each side writes first.
+ * The HELLO body is the varint protocol version, feature flags, largest frame the side reads and the send window
+ * it wants, then with FEATURE_ENCRYPTION the varint length and bytes of the side's public key,
+ * followed by the display name of the user in UTF-8.
+ * Both sides negotiate() their own HELLO against the peer's and configure the session with the result:
+ * a peer on another protocol version is refused instead of being fed frames it would misread,
+ * features are only used if both offer them and sizes are the smaller of the two.
+ * Encryption is the exception: a side that offers it refuses a peer that does not, so clearing the flag
+ * in a HELLO on the way can not turn the session into plain text
+ */
+public class Handshake {
+
+    public static final int PROTOCOL_VERSION = 2;
+
+    public static final int FEATURE_COMPRESSION = 1;
+    public static final int FEATURE_ENCRYPTION = 2;
+    //answers PING frames, see LinkQuality
+    public static final int FEATURE_LINK_PROBE = 4;
+    //takes and passes on relay packets, see MeshRelay
+    public static final int FEATURE_RELAY = 8;
+
+    //every file chunk has to fit in a frame, so no side may read less than this
+    public static final int MIN_FRAME_SIZE = 16 * 1024;
+    //type byte and the longest sequence number in front of a body
+    public static final int MAX_FRAME_HEADER_SIZE = 1 + 10;
+
+    private final int version;
+    private final int features;
+    private final int maxFrameSize;
+    private final int windowBytes;
+    private final String name;
+    //X.509 encoded public key, null without FEATURE_ENCRYPTION
+    private final byte[] publicKey;
+    //HELLO body as sent or received, null on a negotiated result
+    private byte[] encoded;
+
+    /**
+     * Constructor for the HELLO of this side on the current protocol version, without encryption
+     * @param features FEATURE flags this side supports
+     * @param maxFrameSize largest frame this side reads
+     * @param windowBytes send window this side wants
+     * @param name display name of the user, may be empty
+     */
+    public Handshake(int features, int maxFrameSize, int windowBytes, String name){
+        this(PROTOCOL_VERSION, features & ~FEATURE_ENCRYPTION, maxFrameSize, windowBytes, name, null);
+    }
+
+    /**
+     * Constructor for the HELLO of this side on the current protocol version, offering encryption with the key
+     * @param features FEATURE flags this side supports besides encryption
+     * @param maxFrameSize largest frame this side reads
+     * @param windowBytes send window this side wants
+     * @param name display name of the user, may be empty
+     * @param publicKey X.509 encoded public key of this connection
+     */
+    public Handshake(int features, int maxFrameSize, int windowBytes, String name, byte[] publicKey){
+        this(PROTOCOL_VERSION, features | FEATURE_ENCRYPTION, maxFrameSize, windowBytes, name, publicKey);
+    }
+
+    private Handshake(int version, int features, int maxFrameSize, int windowBytes, String name, byte[] publicKey){
+        this.version = version;
+        this.features = features;
+        this.maxFrameSize = maxFrameSize;
+        this.windowBytes = windowBytes;
+        this.name = name != null ? name : "";
+        this.publicKey = publicKey;
+    }
+
+    public int getVersion(){
+        return version;
+    }
+
+    public int getFeatures(){
+        return features;
+    }
+
+    public boolean supports(int feature){
+        return (features & feature) != 0;
+    }
+
+    public int getMaxFrameSize(){
+        return maxFrameSize;
+    }
+
+    /**
+     * returns the largest message body that fits in a frame of the maximum size
+     */
+    public int getMaxPayloadSize(){
+        return maxFrameSize - MAX_FRAME_HEADER_SIZE;
+    }
+
+    public int getWindowBytes(){
+        return windowBytes;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * returns the public key of the HELLO, on a negotiated result the peer's. Null without encryption
+     */
+    public byte[] getPublicKey(){
+        return publicKey;
+    }
+
+    /**
+     * returns the HELLO body exactly as it went over the link, what the session keys are bound to
+     */
+    public byte[] getEncoded(){
+        if(encoded == null){
+            byte[] nameBytes = name.getBytes(TextCodec.UTF_8);
+            int keySize = publicKey != null ? FrameCodec.varintSize(publicKey.length) + publicKey.length : 0;
+            byte[] body = new byte[FrameCodec.varintSize(version) + FrameCodec.varintSize(features)
+                    + FrameCodec.varintSize(maxFrameSize) + FrameCodec.varintSize(windowBytes) + keySize + nameBytes.length];
+            int pos = FrameCodec.writeVarint(body, 0, version);
+            pos += FrameCodec.writeVarint(body, pos, features);
+            pos += FrameCodec.writeVarint(body, pos, maxFrameSize);
+            pos += FrameCodec.writeVarint(body, pos, windowBytes);
+            if(publicKey != null){
+                pos += FrameCodec.writeVarint(body, pos, publicKey.length);
+                System.arraycopy(publicKey, 0, body, pos, publicKey.length);
+                pos += publicKey.length;
+            }
+            System.arraycopy(nameBytes, 0, body, pos, nameBytes.length);
+            encoded = body;
+        }
+        return encoded;
+    }
+
+    /**
+     * returns the HELLO frame carrying this handshake
+     */
+    public ChatFrame toFrame(){
+        return ChatFrame.create(ChatFrame.TYPE_HELLO, 0, getEncoded());
+    }
+
+    /**
+     * reads the handshake in a HELLO frame
+     * @param hello
+     * @return
+     * @throws IOException if the body is malformed
+     */
+    public static Handshake fromFrame(ChatFrame hello) throws IOException {
+        int[] pos = {hello.offset};
+        int limit = hello.offset + hello.length;
+        int version = readVarint(hello.body, pos, limit);
+        int features = readVarint(hello.body, pos, limit);
+        int maxFrameSize = readVarint(hello.body, pos, limit);
+        int windowBytes = readVarint(hello.body, pos, limit);
+        byte[] publicKey = null;
+        //a newer version may lay out the rest differently, negotiate() refuses it before the key is needed
+        if(version == PROTOCOL_VERSION && (features & FEATURE_ENCRYPTION) != 0){
+            int keyLength = readVarint(hello.body, pos, limit);
+            if(keyLength <= 0 || keyLength > limit - pos[0]){
+                throw new IOException("Malformed HELLO key");
+            }
+            publicKey = new byte[keyLength];
+            System.arraycopy(hello.body, pos[0], publicKey, 0, keyLength);
+            pos[0] += keyLength;
+        }
+        String name = new String(hello.body, pos[0], limit - pos[0], TextCodec.UTF_8);
+        Handshake handshake = new Handshake(version, features, maxFrameSize, windowBytes, name, publicKey);
+        handshake.encoded = new byte[hello.length];
+        System.arraycopy(hello.body, hello.offset, handshake.encoded, 0, hello.length);
+        return handshake;
+    }
+
+    /**
+     * returns what the session with the peer runs with: the features both offer, the smaller frame size
+     * and window, and the peer's name and key
+     * @param peer the handshake the peer sent
+     * @return
+     * @throws IOException if the peer speaks another protocol version, reads frames too small for a file chunk
+     * or does not offer the encryption this side offers
+     */
+    public Handshake negotiate(Handshake peer) throws IOException {
+        if(peer.version != version){
+            throw new IOException("Peer speaks protocol version " + peer.version + ", this side " + version);
+        }
+        if(supports(FEATURE_ENCRYPTION) && !peer.supports(FEATURE_ENCRYPTION)){
+            throw new IOException("Peer does not offer encryption");
+        }
+        if(peer.maxFrameSize < MIN_FRAME_SIZE || peer.windowBytes <= 0){
+            throw new IOException("Peer frame size " + peer.maxFrameSize + " or window " + peer.windowBytes + " too small");
+        }
+        int both = features & peer.features;
+        return new Handshake(version, both, Math.min(maxFrameSize, peer.maxFrameSize),
+                Math.min(windowBytes, peer.windowBytes), peer.name,
+                (both & FEATURE_ENCRYPTION) != 0 ? peer.publicKey : null);
+    }
+
+    private static int readVarint(byte[] src, int[] pos, int limit) throws IOException {
+        int value = 0;
+        for(int shift = 0; ; shift += 7){
+            if(pos[0] >= limit || shift > 28){
+                throw new IOException("Malformed HELLO");
+            }
+            byte b = src[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.bluemessage;
+
+/**
+ * Keeps track of how healthy the link to one peer is, from the PING/PONG round trips and the bytes the writer
+ * gets onto the link, and works out the batching delay, send window and file chunk size that suit it.
+ * The round trip time is smoothed like TCP does (RFC 6298): the mean moves an eighth and the variance
+ * a quarter of the way towards each new sample.
+ * Throughput is only sampled over periods where the link was kept busy, so a quiet chat does not make the link
+ * look slow. Methods are synchronized, samples come from the read and writer threads and the timer reads them
+ */
+public class LinkQuality {
+
+    public static final int QUALITY_UNKNOWN = 0;
+    public static final int QUALITY_POOR = 1;
+    public static final int QUALITY_FAIR = 2;
+    public static final int QUALITY_GOOD = 3;
+
+    //round trips below these count as good or fair
+    private static final long GOOD_RTT_US = 150 * 1000;
+    private static final long FAIR_RTT_US = 600 * 1000;
+    //bytes a period has to carry before its throughput is taken as what the link can do
+    private static final int MIN_BUSY_BYTES = 8 * 1024;
+    //smallest window the tuning goes down to, a couple of messages and a chunk
+    public static final int MIN_WINDOW_BYTES = 8 * 1024;
+    public static final int MIN_CHUNK_SIZE = 2 * 1024;
+    //a chunk should not hold the link for longer than this, so messages behind it are not held up
+    private static final long CHUNK_TIME_US = 50 * 1000;
+
+    private long smoothedRttUs = -1;
+    private long rttVarianceUs;
+    private long throughput = -1;
+    private int missed;
+    //bytes written since the period started
+    private long periodBytes;
+    private long periodStartNanos;
+
+    /**
+     * Constructor for a link nothing is known about yet
+     * @param nowNanos start of the first throughput period
+     */
+    public LinkQuality(long nowNanos){
+        periodStartNanos = nowNanos;
+    }
+
+    /**
+     * takes in one round trip measured with a PING, a PONG also means the last probe was not lost
+     * @param rttUs
+     */
+    public synchronized void onRoundTrip(long rttUs){
+        if(rttUs < 0){
+            return;
+        }
+        if(smoothedRttUs < 0){
+            smoothedRttUs = rttUs;
+            rttVarianceUs = rttUs / 2;
+        }else{
+            rttVarianceUs += (Math.abs(smoothedRttUs - rttUs) - rttVarianceUs) / 4;
+            smoothedRttUs += (rttUs - smoothedRttUs) / 8;
+        }
+        missed = 0;
+    }
+
+    /**
+     * a PING got no PONG before the next one was due
+     */
+    public synchronized void onProbeMissed(){
+        missed++;
+    }
+
+    /**
+     * counts bytes the writer got onto the link
+     * @param bytes
+     */
+    public synchronized void onBytesWritten(long bytes){
+        periodBytes += bytes;
+    }
+
+    /**
+     * ends the current throughput period and starts the next, called once per probe
+     * @param nowNanos
+     */
+    public synchronized void endPeriod(long nowNanos){
+        long elapsed = nowNanos - periodStartNanos;
+        if(periodBytes >= MIN_BUSY_BYTES && elapsed > 0){
+            long sample = periodBytes * 1000000000L / elapsed;
+            throughput = throughput < 0 ? sample : throughput + (sample - throughput) / 4;
+        }
+        periodBytes = 0;
+        periodStartNanos = nowNanos;
+    }
+
+    /**
+     * returns the smoothed round trip time in microseconds, -1 before the first PONG
+     */
+    public synchronized long getSmoothedRttUs(){
+        return smoothedRttUs;
+    }
+
+    public synchronized long getRttVarianceUs(){
+        return rttVarianceUs;
+    }
+
+    /**
+     * returns the bytes per second the link carried while busy, -1 until it has been busy once
+     */
+    public synchronized long getThroughput(){
+        return throughput;
+    }
+
+    /**
+     * returns one of the QUALITY constants, a link that lost two probes in a row is poor whatever its round trip
+     */
+    public synchronized int getQuality(){
+        if(missed >= 2){
+            return QUALITY_POOR;
+        }
+        if(smoothedRttUs < 0){
+            return QUALITY_UNKNOWN;
+        }
+        long rtt = smoothedRttUs + 2 * rttVarianceUs;
+        if(rtt < GOOD_RTT_US){
+            return QUALITY_GOOD;
+        }
+        return rtt < FAIR_RTT_US ? QUALITY_FAIR : QUALITY_POOR;
+    }
+
+    /**
+     * returns how long the writer should wait for more frames before writing a batch: a slow link gains more
+     * from fewer, fuller writes than it loses to the wait, a fast one the other way round
+     * @param defaultMs delay used until a round trip is known
+     * @return
+     */
+    public synchronized long flushDelayMs(long defaultMs){
+        if(smoothedRttUs < 0){
+            return defaultMs;
+        }
+        return Math.max(1, Math.min(20, smoothedRttUs / 1000 / 16));
+    }
+
+    /**
+     * returns the send window for the link, twice the bytes it carries in one round trip
+     * @param maxBytes window the handshake allows, also used until throughput and round trip are known
+     * @return
+     */
+    public synchronized int windowBytes(int maxBytes){
+        if(smoothedRttUs < 0 || throughput < 0){
+            return maxBytes;
+        }
+        long inFlight = throughput * (smoothedRttUs + 4 * rttVarianceUs) / 1000000;
+        return (int) Math.max(Math.min(MIN_WINDOW_BYTES, maxBytes), Math.min(maxBytes, 2 * inFlight));
+    }
+
+    /**
+     * returns the size of file chunks for the link, what it carries in CHUNK_TIME_US
+     * @param maxBytes largest chunk, also used until the throughput is known
+     * @return
+     */
+    public synchronized int chunkSize(int maxBytes){
+        if(throughput < 0){
+            return maxBytes;
+        }
+        long size = throughput * CHUNK_TIME_US / 1000000;
+        return (int) Math.max(MIN_CHUNK_SIZE, Math.min(maxBytes, size));
+    }
+}
@@ -0,0 +1,291 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * In memory transport for running ChatEngine without Bluetooth.
+ * Every transport created from the same Network can connect to the others by address.
+ */
+public class LoopbackTransport implements ChatTransport {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+
+    /**
+     * Group of loopback transports that can reach each other
+     */
+    public static class Network {
+        private final ConcurrentMap<String, LoopbackServer> servers = new ConcurrentHashMap<>();
+
+        /**
+         * returns a transport for a device with the given address and name on this network
+         * @param address
+         * @param name
+         * @return
+         */
+        public LoopbackTransport transport(String address, String name){
+            return new LoopbackTransport(this, address, name);
+        }
+    }
+
+    private final Network network;
+    private final String address;
+    private final String name;
+
+    private LoopbackTransport(Network network, String address, String name){
+        this.network = network;
+        this.address = address;
+        this.name = name;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        LoopbackServer server = new LoopbackServer();
+        if(network.servers.putIfAbsent(address, server) != null){
+            throw new IOException("Address already in use: " + address);
+        }
+        return server;
+    }
+
+    @Override
+    public Link createLink(final String remoteAddress) throws IOException {
+        return new LoopbackLink(remoteAddress, remoteAddress) {
+            @Override
+            public void connect() throws IOException {
+                LoopbackServer server = network.servers.get(remoteAddress);
+                if(server == null){
+                    throw new IOException("Connection refused: " + remoteAddress);
+                }
+                Pipe toServer = new Pipe();
+                Pipe toClient = new Pipe();
+                remoteName = server.getName();
+                attach(toClient, toServer);
+                server.offer(new LoopbackLink(address, name).attach(toServer, toClient));
+                if(isClosed()){
+                    throw new IOException("Link closed");
+                }
+            }
+        };
+    }
+
+    /**
+     * Server side that hands out the links queued by connecting transports
+     */
+    private class LoopbackServer implements Server {
+        private final BlockingQueue<LoopbackLink> pending = new LinkedBlockingQueue<>();
+        private final LoopbackLink closedMarker = new LoopbackLink(null, null);
+        private volatile boolean closed;
+
+        String getName(){
+            return name;
+        }
+
+        void offer(LoopbackLink link) throws IOException {
+            if(closed){
+                throw new IOException("Connection refused: " + address);
+            }
+            pending.add(link);
+        }
+
+        @Override
+        public Link accept() throws IOException {
+            try{
+                LoopbackLink link = pending.take();
+                if(link == closedMarker){
+                    pending.add(closedMarker);
+                    throw new IOException("Server closed");
+                }
+                return link;
+            }catch (InterruptedException e){
+                throw new InterruptedIOException("Accept interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            network.servers.remove(address, this);
+            pending.add(closedMarker);
+        }
+    }
+
+    /**
+     * One end of a loopback connection made of two pipes
+     */
+    private static class LoopbackLink implements Link {
+        private final String remoteAddress;
+        volatile String remoteName;
+        private volatile Pipe in;
+        private volatile Pipe out;
+        private volatile boolean closed;
+
+        LoopbackLink(String remoteAddress, String remoteName){
+            this.remoteAddress = remoteAddress;
+            this.remoteName = remoteName;
+        }
+
+        LoopbackLink attach(Pipe in, Pipe out){
+            this.in = in;
+            this.out = out;
+            return this;
+        }
+
+        boolean isClosed(){
+            return closed;
+        }
+
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if(in == null){
+                throw new IOException("Not connected");
+            }
+            return in.inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if(out == null){
+                throw new IOException("Not connected");
+            }
+            return out.outputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteName;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            if(in != null){
+                in.close();
+            }
+            if(out != null){
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Bounded byte pipe between two threads.
+     * java.io.PipedInputStream is not used because it fails reads once the thread that last wrote to it has exited,
+     * which does not match how a socket behaves.
+     */
+    private static class Pipe {
+        private final byte[] ring = new byte[PIPE_SIZE];
+        private int readPos;
+        private int count;
+        private boolean closed;
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this){
+                    return count;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0){
+                return 0;
+            }
+            while(count == 0){
+                if(closed){
+                    return -1;
+                }
+                await();
+            }
+            int n = Math.min(len, count);
+            int first = Math.min(n, ring.length - readPos);
+            System.arraycopy(ring, readPos, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, n - first);
+            readPos = (readPos + n) % ring.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0){
+                if(closed){
+                    throw new IOException("Pipe closed");
+                }
+                if(count == ring.length){
+                    await();
+                    continue;
+                }
+                int writePos = (readPos + count) % ring.length;
+                int n = Math.min(len, Math.min(ring.length - count, ring.length - writePos));
+                System.arraycopy(b, off, ring, writePos, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void close(){
+            closed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try{
+                wait();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.example.bluemessage;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Relays messages addressed to nodes more than one Bluetooth hop away through the connected peers.
+ * Every node has a random 64 bit node id, messages to it are written to its node address (see nodeAddress()).
+ * A relayed message is the payload of an ordinary DATA frame, so every hop is acknowledged and resent after
+ * a reconnect like any other message: the MARKER byte, the hops it may still take, the 8 byte message id,
+ * the node ids of origin and destination, then the message itself. MARKER is below the first printable character
+ * like the MessageEnvelope versions, and packets only go to peers that offered Handshake.FEATURE_RELAY.
+ * A node hands a packet for itself or for everyone to the listener and passes every packet that is not only for it on
+ * with one hop less: to the peer the destination was last heard from, otherwise to every relaying peer but the one
+ * it came from. Packets seen before are dropped, which stops loops and the copies flooding makes.
+ * Packets nobody can take right now are kept, up to MAX_STORED for at most STORE_TIME_MS, and sent on
+ * once a relaying peer connects.
+ * Forwarding costs one copy of the packet and a few map lookups. Methods may be called from any thread,
+ * the links are only called outside the relay's lock
+ */
+public class MeshRelay {
+
+    public static final int MARKER = 0x1e;
+    public static final int HEADER_SIZE = 2 + 8 + 8 + 8;
+    //hops a message from this node may take
+    public static final int DEFAULT_TTL = 4;
+    //destination of a message for every node
+    public static final long BROADCAST = 0;
+
+    private static final String ADDRESS_PREFIX = "mesh:";
+    //node address that writes to every node in reach, how a node starts talking before it knows any other
+    public static final String BROADCAST_ADDRESS = nodeAddress(BROADCAST);
+    //message ids remembered to drop copies, enough for the messages of a busy venue over a few minutes
+    private static final int SEEN_CAPACITY = 2048;
+    private static final int ROUTE_CAPACITY = 256;
+    private static final int MAX_STORED = 64;
+    private static final long STORE_TIME_MS = 10 * 60 * 1000;
+
+    /**
+     * What the relay sends over and delivers to, implemented by the engine
+     */
+    public interface Links {
+        /**
+         * returns the addresses of the connected peers that relay
+         */
+        List<String> relayPeers();
+
+        /**
+         * queues the packet for the given peers, returns false if none of them took it.
+         * The outcome is reported for reportAs, nothing is reported if it is null
+         */
+        boolean send(List<String> addresses, byte[] packet, byte[] reportAs);
+
+        /**
+         * hands a message for this node to the listener, the frame covers the message without the relay header
+         */
+        void deliver(String from, ChatFrame frame);
+
+        /**
+         * a message written on this node was given up on before any peer took it
+         */
+        void failed(byte[] reportAs);
+    }
+
+    /**
+     * A packet waiting for a peer to take it
+     */
+    private static class Stored {
+        final byte[] packet;
+        final long destination;
+        final String exclude;
+        final byte[] reportAs;
+        final long expires;
+
+        Stored(byte[] packet, long destination, String exclude, byte[] reportAs, long expires){
+            this.packet = packet;
+            this.destination = destination;
+            this.exclude = exclude;
+            this.reportAs = reportAs;
+            this.expires = expires;
+        }
+    }
+
+    private final Links links;
+    private final ChatMetrics metrics;
+    private final SecureRandom random = new SecureRandom();
+    private volatile long nodeId;
+    private final LinkedHashMap<Long, Boolean> seen = new LinkedHashMap<Long, Boolean>(SEEN_CAPACITY, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > SEEN_CAPACITY;
+        }
+    };
+    //peer address each origin was last heard from, the way back to it
+    private final LinkedHashMap<Long, String> routes = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > ROUTE_CAPACITY;
+        }
+    };
+    private final ArrayDeque<Stored> stored = new ArrayDeque<>();
+
+    /**
+     * Constructor for the relay of a node with a random id
+     * @param links
+     * @param metrics
+     */
+    public MeshRelay(Links links, ChatMetrics metrics){
+        this.links = links;
+        this.metrics = metrics;
+        long id;
+        do{
+            id = random.nextLong();
+        }while(id == BROADCAST);
+        nodeId = id;
+    }
+
+    public long getNodeId(){
+        return nodeId;
+    }
+
+    /**
+     * sets the id of this node, a fixed one lets other nodes keep talking to it across restarts
+     * @param nodeId anything but BROADCAST
+     */
+    public void setNodeId(long nodeId){
+        if(nodeId == BROADCAST){
+            throw new IllegalArgumentException("Node id " + nodeId + " is the broadcast id");
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * returns the address messages to the node are written to
+     * @param nodeId
+     * @return
+     */
+    public static String nodeAddress(long nodeId){
+        return ADDRESS_PREFIX + String.format(Locale.US, "%016x", nodeId);
+    }
+
+    public static boolean isNodeAddress(String address){
+        return address != null && address.startsWith(ADDRESS_PREFIX)
+                && address.length() == ADDRESS_PREFIX.length() + 16;
+    }
+
+    /**
+     * returns the node id in a node address
+     * @throws IllegalArgumentException if it is not a node address
+     */
+    public static long nodeId(String address){
+        if(!isNodeAddress(address)){
+            throw new IllegalArgumentException("Not a node address: " + address);
+        }
+        //in two halves, a long only parses as signed
+        int start = ADDRESS_PREFIX.length();
+        return (Long.parseLong(address.substring(start, start + 8), 16) << 32)
+                | Long.parseLong(address.substring(start + 8), 16);
+    }
+
+    /**
+     * returns true if the body of the DATA frame is a relay packet
+     * @param frame
+     * @return
+     */
+    public static boolean isPacket(ChatFrame frame){
+        return frame.length >= HEADER_SIZE && (frame.body[frame.offset] & 0xff) == MARKER;
+    }
+
+    /**
+     * sends a message written on this node towards the destination. A message no peer can take right now
+     * is kept until one can, so it is always accepted and the return value is only there to match write()
+     * @param destination node id, BROADCAST for every node in reach
+     * @param payload the message, its outcome is reported for this array
+     * @return
+     */
+    public boolean send(long destination, byte[] payload){
+        byte[] packet = new byte[HEADER_SIZE + payload.length];
+        long messageId = random.nextLong();
+        packet[0] = (byte) MARKER;
+        packet[1] = (byte) DEFAULT_TTL;
+        ChatFrame.putLong(packet, 2, messageId);
+        ChatFrame.putLong(packet, 10, nodeId);
+        ChatFrame.putLong(packet, 18, destination);
+        System.arraycopy(payload, 0, packet, HEADER_SIZE, payload.length);
+        synchronized (this){
+            seen.put(messageId, Boolean.TRUE);
+        }
+        return forward(packet, destination, null, payload);
+    }
+
+    /**
+     * handles a packet a peer sent: delivers it if it is for this node and passes it on if it is for others
+     * @param from address of the peer it came from
+     * @param frame DATA frame holding the packet, only used during the call
+     */
+    public void receive(String from, ChatFrame frame){
+        int ttl = frame.body[frame.offset + 1] & 0xff;
+        long messageId = frame.longAt(2);
+        long origin = frame.longAt(10);
+        long destination = frame.longAt(18);
+        long self = nodeId;
+        synchronized (this){
+            if(seen.put(messageId, Boolean.TRUE) != null || origin == self){
+                metrics.increment(ChatMetrics.RELAY_DUPLICATES);
+                return;
+            }
+            routes.put(origin, from);
+        }
+
+        if(destination == self || destination == BROADCAST){
+            links.deliver(nodeAddress(origin), frame.slice(HEADER_SIZE));
+        }
+        if(destination == self){
+            return;
+        }
+        if(ttl <= 1){
+            metrics.increment(ChatMetrics.RELAY_DROPPED);
+            return;
+        }
+        byte[] packet = frame.payload();
+        if(packet == frame.body){
+            packet = packet.clone();
+        }
+        packet[1] = (byte) (ttl - 1);
+        metrics.increment(ChatMetrics.RELAY_FORWARDED);
+        forward(packet, destination, from, null);
+    }
+
+    /**
+     * sends the kept packets a peer can take now, called when a relaying peer connects
+     * @param now
+     */
+    public void flush(long now){
+        List<Stored> due = new ArrayList<>();
+        synchronized (this){
+            due.addAll(stored);
+            stored.clear();
+        }
+        for(Stored packet : due){
+            if(packet.expires <= now){
+                drop(packet);
+            }else{
+                forward(packet.packet, packet.destination, packet.exclude, packet.reportAs, packet.expires);
+            }
+        }
+    }
+
+    /**
+     * returns the number of packets waiting for a peer
+     */
+    public synchronized int getStoredCount(){
+        return stored.size();
+    }
+
+    private boolean forward(byte[] packet, long destination, String exclude, byte[] reportAs){
+        return forward(packet, destination, exclude, reportAs, System.currentTimeMillis() + STORE_TIME_MS);
+    }
+
+    /**
+     * sends the packet the way the destination was last heard from if that peer is still connected,
+     * otherwise to every relaying peer but the one it came from. Keeps it if nobody takes it
+     */
+    private boolean forward(byte[] packet, long destination, String exclude, byte[] reportAs, long expires){
+        List<String> peers = links.relayPeers();
+        String route;
+        synchronized (this){
+            route = destination != BROADCAST ? routes.get(destination) : null;
+        }
+        List<String> targets = new ArrayList<>(peers.size());
+        if(route != null && !route.equals(exclude) && peers.contains(route)){
+            targets.add(route);
+        }else{
+            for(String peer : peers){
+                if(!peer.equals(exclude)){
+                    targets.add(peer);
+                }
+            }
+        }
+        if(!targets.isEmpty() && links.send(targets, packet, reportAs)){
+            return true;
+        }
+
+        Stored evicted = null;
+        synchronized (this){
+            if(stored.size() >= MAX_STORED){
+                evicted = stored.poll();
+            }
+            stored.add(new Stored(packet, destination, exclude, reportAs, expires));
+        }
+        metrics.increment(ChatMetrics.RELAY_STORED);
+        if(evicted != null){
+            drop(evicted);
+        }
+        return true;
+    }
+
+    private void drop(Stored packet){
+        metrics.increment(ChatMetrics.RELAY_DROPPED);
+        if(packet.reportAs != null){
+            links.failed(packet.reportAs);
+        }
+    }
+
+    /**
+     * forgets the routes through a peer that is gone, its packets are flooded until the destination is heard again
+     * @param address
+     */
+    public synchronized void peerLost(String address){
+        for(Iterator<String> it = routes.values().iterator(); it.hasNext(); ){
+            if(it.next().equals(address)){
+                it.remove();
+            }
+        }
+    }
+}
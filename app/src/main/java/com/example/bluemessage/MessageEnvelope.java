@@ -0,0 +1,252 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+
+/**
+ * The binary envelope every chat message is sent in, as the payload of a DATA frame.
+ * On the wire it is a version byte, a type byte, a flags byte, the 8 byte message id, the varint timestamp,
+ * the 8 byte id of the message it refers to if FLAG_TARGET is set, the varint length of the sender name,
+ * the sender name in UTF-8 and the body. The body of a TEXT message is its UTF-8 text, a REACTION carries
+ * a single reaction code and always has a target.
+ * The version byte is below 0x20, so it can not be mistaken for the first byte of a bare text message
+ * from a peer that does not know envelopes yet.
+ * An envelope object reuses its buffers for every message it encodes and decodes, so it must only be used
+ * from one thread. After decode() the getters describe the decoded message, sender and text are only turned
+ * into Strings when asked for
+ */
+public class MessageEnvelope {
+
+    public static final int VERSION = 1;
+
+    public static final int TYPE_TEXT = 0;
+    public static final int TYPE_REACTION = 1;
+
+    public static final int REACTION_NONE = 0;
+    public static final int REACTION_LOL = 1;
+    public static final int REACTION_THUMBS_UP = 2;
+    public static final int REACTION_THUMBS_DOWN = 3;
+
+    private static final int FLAG_TARGET = 1;
+    //versions and the first byte of an envelope stay below the first printable character
+    private static final int MAX_VERSION_BYTE = 0x1f;
+    //version, type, flags, message id, longest timestamp, target id and longest name length
+    private static final int MAX_HEADER_SIZE = 3 + 8 + 10 + 8 + 5;
+    private static final int MIN_SIZE = 3 + 8 + 1 + 1;
+
+    private final TextCodec textCodec;
+    private byte[] scratch = new byte[256];
+
+    //fields of the last decoded envelope, sender and body refer to the decoded array
+    private int type;
+    private long messageId;
+    private long timestamp;
+    private long targetId;
+    private byte[] source;
+    private int senderOffset;
+    private int senderLength;
+    private int bodyOffset;
+    private int bodyLength;
+
+    /**
+     * Constructor for an envelope that decodes its text with the given codec
+     * @param textCodec
+     */
+    public MessageEnvelope(TextCodec textCodec){
+        this.textCodec = textCodec;
+    }
+
+    /**
+     * returns true if the payload starts like an envelope, false for the bare text older peers send
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static boolean isEnvelope(byte[] bytes, int offset, int length){
+        return length > 0 && (bytes[offset] & 0xff) <= MAX_VERSION_BYTE;
+    }
+
+    /**
+     * returns the message id of an envelope without decoding the rest of it, 0 if it is not an envelope
+     * of a version this side understands
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static long messageId(byte[] bytes, int offset, int length){
+        if(length < MIN_SIZE || (bytes[offset] & 0xff) != VERSION){
+            return 0;
+        }
+        return ChatFrame.getLong(bytes, offset + 3);
+    }
+
+    /**
+     * returns a text message in an array of its own, ready to be passed to write()
+     * @param messageId
+     * @param timestamp
+     * @param sender
+     * @param text
+     * @return
+     */
+    public byte[] encodeText(long messageId, long timestamp, String sender, String text){
+        int pos = putHeader(TYPE_TEXT, messageId, timestamp, 0, sender, text.length());
+        pos += textCodec.encode(text, scratch, pos);
+        return copyScratch(pos);
+    }
+
+    /**
+     * returns a reaction to the message with the given id
+     * @param messageId id of the reaction itself
+     * @param timestamp
+     * @param sender
+     * @param targetId id of the message reacted to
+     * @param reaction one of the REACTION codes, REACTION_NONE takes a reaction back
+     * @return
+     */
+    public byte[] encodeReaction(long messageId, long timestamp, String sender, long targetId, int reaction){
+        int pos = putHeader(TYPE_REACTION, messageId, timestamp, targetId, sender, 1);
+        scratch[pos++] = (byte) reaction;
+        return copyScratch(pos);
+    }
+
+    /**
+     * reads the envelope in the given bytes, which must not change while the getters are used
+     * @param bytes
+     * @param offset
+     * @param length
+     * @throws IOException if it is not an envelope of a version this side understands or is malformed
+     */
+    public void decode(byte[] bytes, int offset, int length) throws IOException {
+        int limit = offset + length;
+        if(length < MIN_SIZE){
+            throw new IOException("Envelope too short");
+        }
+        int version = bytes[offset] & 0xff;
+        if(version != VERSION){
+            throw new IOException("Unsupported envelope version " + version);
+        }
+        int pos = offset + 1;
+        type = bytes[pos++] & 0xff;
+        int flags = bytes[pos++] & 0xff;
+        messageId = ChatFrame.getLong(bytes, pos);
+        pos += 8;
+        timestamp = 0;
+        for(int shift = 0; ; shift += 7){
+            if(pos >= limit || shift > 63){
+                throw new IOException("Malformed timestamp");
+            }
+            byte b = bytes[pos++];
+            timestamp |= (long) (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                break;
+            }
+        }
+        targetId = 0;
+        if((flags & FLAG_TARGET) != 0){
+            if(pos + 8 > limit){
+                throw new IOException("Malformed target");
+            }
+            targetId = ChatFrame.getLong(bytes, pos);
+            pos += 8;
+        }
+        senderLength = 0;
+        for(int shift = 0; ; shift += 7){
+            if(pos >= limit || shift > 28){
+                throw new IOException("Malformed sender length");
+            }
+            byte b = bytes[pos++];
+            senderLength |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0){
+                break;
+            }
+        }
+        if(senderLength < 0 || senderLength > limit - pos){
+            throw new IOException("Malformed sender");
+        }
+        senderOffset = pos;
+        bodyOffset = pos + senderLength;
+        bodyLength = limit - bodyOffset;
+        if(type == TYPE_REACTION && (bodyLength != 1 || targetId == 0)){
+            throw new IOException("Malformed reaction");
+        }
+        source = bytes;
+    }
+
+    public int getType(){
+        return type;
+    }
+
+    public long getMessageId(){
+        return messageId;
+    }
+
+    /**
+     * time the sender wrote the message, by the sender's clock
+     */
+    public long getTimestamp(){
+        return timestamp;
+    }
+
+    /**
+     * returns the id of the message this one refers to, 0 if none
+     */
+    public long getTargetId(){
+        return targetId;
+    }
+
+    public String getSender(){
+        return textCodec.decode(source, senderOffset, senderLength);
+    }
+
+    public String getText(){
+        return textCodec.decode(source, bodyOffset, bodyLength);
+    }
+
+    /**
+     * returns the reaction code of a REACTION
+     */
+    public int getReaction(){
+        return source[bodyOffset] & 0xff;
+    }
+
+    /**
+     * writes everything up to the body into the scratch array, making room for a body of up to bodyChars characters
+     * and returns where the body starts
+     */
+    private int putHeader(int type, long messageId, long timestamp, long targetId, String sender, int bodyChars){
+        //UTF-8 takes at most 3 bytes per char, a surrogate pair takes 4 for its 2 chars
+        int maxSenderSize = textCodec.maxEncodedLength(sender);
+        int maxSize = MAX_HEADER_SIZE + maxSenderSize + 3 * bodyChars;
+        if(scratch.length < maxSize){
+            scratch = new byte[Math.max(maxSize, scratch.length * 2)];
+        }
+        int pos = 0;
+        scratch[pos++] = VERSION;
+        scratch[pos++] = (byte) type;
+        scratch[pos++] = (byte) (targetId != 0 ? FLAG_TARGET : 0);
+        ChatFrame.putLong(scratch, pos, messageId);
+        pos += 8;
+        pos += FrameCodec.writeVarlong(scratch, pos, timestamp);
+        if(targetId != 0){
+            ChatFrame.putLong(scratch, pos, targetId);
+            pos += 8;
+        }
+        //the name is written after its length, which is only known once it is encoded.
+        //Room is left for the length of the longest name and the name moved up if its length takes less
+        int lengthRoom = FrameCodec.varintSize(maxSenderSize);
+        int senderBytes = textCodec.encode(sender, scratch, pos + lengthRoom);
+        int lengthSize = FrameCodec.varintSize(senderBytes);
+        if(lengthSize < lengthRoom){
+            System.arraycopy(scratch, pos + lengthRoom, scratch, pos + lengthSize, senderBytes);
+        }
+        pos += FrameCodec.writeVarint(scratch, pos, senderBytes);
+        return pos + senderBytes;
+    }
+
+    private byte[] copyScratch(int length){
+        byte[] bytes = new byte[length];
+        System.arraycopy(scratch, 0, bytes, 0, length);
+        return bytes;
+    }
+}
@@ -0,0 +1,272 @@
+package com.example.bluemessage;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps the conversations on disk so they survive rotation and restarts.
+ * Every call returns straight away: writes are queued and a single store thread writes whatever has queued up
+ * in one transaction, so a burst of messages costs one commit instead of one per message.
+ * Pages are loaded on the same thread, after every write queued before them, and handed to a PageCallback.
+ * The storage itself is behind the Storage interface so the batching can run without a database in tests
+ */
+public class MessageStore {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    /**
+     * Where the messages are kept, only ever called from the store thread
+     */
+    public interface Storage {
+        /**
+         * writes one batch in a single transaction, in the order inserts, updates, deletes.
+         * Inserted messages get their id set
+         */
+        void write(List<ChatMessage> inserts, List<ChatMessage> updates, List<ChatMessage> deletes);
+
+        /**
+         * returns up to limit messages of the peer older than the given message, newest first.
+         * With before null the newest messages are returned
+         */
+        List<ChatMessage> page(String peer, ChatMessage before, int limit);
+
+        /**
+         * sets the reaction of one side on the peer's message with the given uid, if it is stored
+         */
+        void react(String peer, long uid, boolean local, int reaction);
+
+        /**
+         * returns the peer of the newest message, null if there are none
+         */
+        String lastPeer();
+
+        void close();
+    }
+
+    /**
+     * Receives a page of messages on the store thread
+     */
+    public interface PageCallback {
+        /**
+         * @param peer
+         * @param messages oldest first
+         * @param more true if there are older messages to load
+         */
+        void onPage(String peer, List<ChatMessage> messages, boolean more);
+    }
+
+    private final Storage storage;
+    private final ExecutorService executor;
+    private List<ChatMessage> inserts = new ArrayList<>();
+    private List<ChatMessage> updates = new ArrayList<>();
+    private List<ChatMessage> deletes = new ArrayList<>();
+    private boolean flushScheduled;
+    private boolean closed;
+
+    /**
+     * Constructor for a store that keeps the messages in the given storage
+     * @param storage
+     */
+    public MessageStore(Storage storage){
+        this.storage = storage;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "MessageStore");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * queues a new message to be written
+     * @param message
+     */
+    public synchronized void add(ChatMessage message){
+        inserts.add(message);
+        scheduleFlush();
+    }
+
+    /**
+     * queues the current status of the message to be written
+     * @param message
+     */
+    public synchronized void update(ChatMessage message){
+        updates.add(message);
+        scheduleFlush();
+    }
+
+    /**
+     * queues the message to be removed
+     * @param message
+     */
+    public synchronized void delete(ChatMessage message){
+        deletes.add(message);
+        scheduleFlush();
+    }
+
+    /**
+     * queues a reaction to be written to the message with the given uid, which does not have to be loaded.
+     * It is written after every message queued before it, so a reaction to a message just added finds it
+     * @param peer
+     * @param uid
+     * @param local true for the user's own reaction
+     * @param reaction
+     */
+    public void react(final String peer, final long uid, final boolean local, final int reaction){
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    storage.react(peer, uid, local, reaction);
+                }catch (RuntimeException e){
+                    Log.e("Store to Write", e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * loads the newest page of the conversation with the peer
+     * @param peer
+     * @param limit
+     * @param callback
+     */
+    public void loadRecent(String peer, int limit, PageCallback callback){
+        loadBefore(peer, null, limit, callback);
+    }
+
+    /**
+     * loads the page of the conversation that comes before the given message
+     * @param peer
+     * @param before the oldest message loaded so far, null for the newest page
+     * @param limit
+     * @param callback
+     */
+    public void loadBefore(final String peer, final ChatMessage before, final int limit, final PageCallback callback){
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                readPage(peer, before, limit, callback);
+            }
+        });
+    }
+
+    /**
+     * loads the newest page of the conversation that was written to last, the callback gets no messages
+     * and a null peer if nothing has been stored yet
+     * @param limit
+     * @param callback
+     */
+    public void loadLastConversation(final int limit, final PageCallback callback){
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                String peer;
+                try{
+                    peer = storage.lastPeer();
+                }catch (RuntimeException e){
+                    Log.e("Store to Read", e.toString());
+                    peer = null;
+                }
+                if(peer == null){
+                    callback.onPage(null, Collections.<ChatMessage>emptyList(), false);
+                }else{
+                    readPage(peer, null, limit, callback);
+                }
+            }
+        });
+    }
+
+    /**
+     * writes what is still queued and closes the storage once that is done
+     */
+    public synchronized void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+                storage.close();
+            }
+        });
+        executor.shutdown();
+    }
+
+    /**
+     * runs the task on the store thread, tasks given after close() are dropped
+     */
+    private synchronized void execute(Runnable task){
+        if(!closed){
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * reads one page, asking for one extra row to tell whether there is another page behind it
+     */
+    private void readPage(String peer, ChatMessage before, int limit, PageCallback callback){
+        List<ChatMessage> messages;
+        try{
+            messages = storage.page(peer, before, limit + 1);
+        }catch (RuntimeException e){
+            Log.e("Store to Read", e.toString());
+            messages = new ArrayList<>();
+        }
+        boolean more = messages.size() > limit;
+        if(more){
+            messages = new ArrayList<>(messages.subList(0, limit));
+        }
+        Collections.reverse(messages);
+        callback.onPage(peer, messages, more);
+    }
+
+    private void scheduleFlush(){
+        if(flushScheduled || closed){
+            return;
+        }
+        flushScheduled = true;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * takes everything queued so far and writes it as one batch
+     */
+    private void flush(){
+        List<ChatMessage> batchInserts;
+        List<ChatMessage> batchUpdates;
+        List<ChatMessage> batchDeletes;
+        synchronized (this){
+            flushScheduled = false;
+            if(inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty()){
+                return;
+            }
+            batchInserts = inserts;
+            batchUpdates = updates;
+            batchDeletes = deletes;
+            inserts = new ArrayList<>();
+            updates = new ArrayList<>();
+            deletes = new ArrayList<>();
+        }
+        try{
+            storage.write(batchInserts, batchUpdates, batchDeletes);
+        }catch (RuntimeException e){
+            Log.e("Store to Write", e.toString());
+        }
+    }
+}
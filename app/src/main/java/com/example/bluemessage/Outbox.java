@@ -0,0 +1,246 @@
+package com.example.bluemessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Messages written to a device that is not connected, kept per device address until it connects.
+ * Every device's messages stay in the order they were written and are taken all at once, so they can be handed
+ * to the engine as one burst. A message whose id is already waiting is not queued a second time,
+ * messages without an id (0) never count as copies. At most maxPerPeer messages wait for one device.
+ * ChatUtils saves it to a file in the background after changes and reads it back when the app starts,
+ * until then the arrays stay the ones that were added so their outcome can be reported for them.
+ * Methods are synchronized, messages are added on the main thread and taken on the engine threads
+ */
+public class Outbox {
+
+    public static final int DEFAULT_MAX_PER_PEER = 256;
+
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * One message waiting for its device
+     */
+    public static class Entry {
+        private final long id;
+        private final byte[] payload;
+
+        Entry(long id, byte[] payload){
+            this.id = id;
+            this.payload = payload;
+        }
+
+        /**
+         * returns the id copies are recognised by, 0 if it has none
+         */
+        public long getId(){
+            return id;
+        }
+
+        public byte[] getPayload(){
+            return payload;
+        }
+    }
+
+    private final int maxPerPeer;
+    //oldest first within every device
+    private final LinkedHashMap<String, ArrayDeque<Entry>> queues = new LinkedHashMap<>();
+    private final Map<String, Set<Long>> ids = new LinkedHashMap<>();
+
+    /**
+     * Constructor for an outbox that keeps the default number of messages per device
+     */
+    public Outbox(){
+        this(DEFAULT_MAX_PER_PEER);
+    }
+
+    /**
+     * Constructor for an outbox
+     * @param maxPerPeer how many messages may wait for one device
+     */
+    public Outbox(int maxPerPeer){
+        this.maxPerPeer = maxPerPeer;
+    }
+
+    /**
+     * queues the message behind the others waiting for the device.
+     * Returns false if too many are waiting already, a message with an id that is already waiting counts as queued
+     * @param address
+     * @param id
+     * @param payload
+     * @return
+     */
+    public synchronized boolean add(String address, long id, byte[] payload){
+        ArrayDeque<Entry> queue = queues.get(address);
+        if(id != 0 && queue != null && ids.get(address).contains(id)){
+            return true;
+        }
+        if(queue == null){
+            queue = new ArrayDeque<>();
+            queues.put(address, queue);
+            ids.put(address, new HashSet<Long>());
+        }else if(queue.size() >= maxPerPeer){
+            return false;
+        }
+        queue.add(new Entry(id, payload));
+        if(id != 0){
+            ids.get(address).add(id);
+        }
+        return true;
+    }
+
+    /**
+     * removes and returns every message waiting for the device, oldest first
+     * @param address
+     * @return
+     */
+    public synchronized List<Entry> take(String address){
+        ArrayDeque<Entry> queue = queues.remove(address);
+        ids.remove(address);
+        return queue == null ? new ArrayList<Entry>() : new ArrayList<>(queue);
+    }
+
+    /**
+     * puts messages taken by take() back in front of the ones added since, in the same order.
+     * Copies of messages that are waiting again are dropped, the limit is not applied
+     * @param address
+     * @param entries oldest first
+     */
+    public synchronized void putBack(String address, List<Entry> entries){
+        if(entries.isEmpty()){
+            return;
+        }
+        ArrayDeque<Entry> queue = queues.remove(address);
+        ids.remove(address);
+        ArrayDeque<Entry> merged = new ArrayDeque<>();
+        Set<Long> mergedIds = new HashSet<>();
+        for(Entry entry : entries){
+            if(entry.id == 0 || mergedIds.add(entry.id)){
+                merged.add(entry);
+            }
+        }
+        if(queue != null){
+            for(Entry entry : queue){
+                if(entry.id == 0 || mergedIds.add(entry.id)){
+                    merged.add(entry);
+                }
+            }
+        }
+        queues.put(address, merged);
+        ids.put(address, mergedIds);
+    }
+
+    /**
+     * returns the number of messages waiting for the device
+     */
+    public synchronized int size(String address){
+        ArrayDeque<Entry> queue = queues.get(address);
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * returns the addresses of the devices that have messages waiting, the one written to first first
+     */
+    public synchronized List<String> addresses(){
+        return new ArrayList<>(queues.keySet());
+    }
+
+    /**
+     * writes every waiting message, device by device
+     * @param out
+     * @throws IOException
+     */
+    public synchronized void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FILE_VERSION);
+        data.writeInt(queues.size());
+        for(Map.Entry<String, ArrayDeque<Entry>> queue : queues.entrySet()){
+            data.writeUTF(queue.getKey());
+            data.writeInt(queue.getValue().size());
+            for(Entry entry : queue.getValue()){
+                data.writeLong(entry.id);
+                data.writeInt(entry.payload.length);
+                data.write(entry.payload);
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * adds the messages written by write() in front of the ones already waiting, they were written earlier.
+     * A file of another version is ignored
+     * @param in
+     * @throws IOException if the file is cut off or malformed
+     */
+    public synchronized void read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version;
+        try{
+            version = data.readInt();
+        }catch (EOFException e){
+            return;
+        }
+        if(version != FILE_VERSION){
+            return;
+        }
+        int peers = data.readInt();
+        if(peers < 0){
+            throw new IOException("Malformed outbox");
+        }
+        LinkedHashMap<String, List<Entry>> read = new LinkedHashMap<>();
+        for(int i = 0; i < peers; i++){
+            String address = data.readUTF();
+            int count = data.readInt();
+            if(count < 0){
+                throw new IOException("Malformed outbox");
+            }
+            List<Entry> entries = new ArrayList<>(Math.min(count, maxPerPeer));
+            for(int j = 0; j < count; j++){
+                long id = data.readLong();
+                int length = data.readInt();
+                if(length < 0 || length > FrameCodec.DEFAULT_MAX_FRAME_SIZE){
+                    throw new IOException("Malformed outbox message of " + length + " bytes");
+                }
+                byte[] payload = new byte[length];
+                data.readFully(payload);
+                entries.add(new Entry(id, payload));
+            }
+            read.put(address, entries);
+        }
+        for(Map.Entry<String, List<Entry>> entries : read.entrySet()){
+            putBack(entries.getKey(), entries.getValue());
+        }
+        trim();
+    }
+
+    /**
+     * drops the newest messages of devices that have more waiting than allowed
+     */
+    private void trim(){
+        for(ArrayDeque<Entry> queue : queues.values()){
+            while(queue.size() > maxPerPeer){
+                queue.pollLast();
+            }
+        }
+        for(Map.Entry<String, ArrayDeque<Entry>> queue : queues.entrySet()){
+            Set<Long> queued = new HashSet<>();
+            for(Entry entry : queue.getValue()){
+                if(entry.id != 0){
+                    queued.add(entry.id);
+                }
+            }
+            ids.put(queue.getKey(), queued);
+        }
+    }
+}
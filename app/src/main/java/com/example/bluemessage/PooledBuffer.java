@@ -0,0 +1,67 @@
+package com.example.bluemessage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A byte array from a BufferPool with a reference count.
+ * Whoever acquires the buffer holds the first reference, everyone else who keeps it past the call that handed it over
+ * takes one with retain(). Each reference is given back with release() and the last one returns the array to the pool,
+ * so the array must not be touched after releasing
+ */
+public class PooledBuffer {
+
+    private final BufferPool pool;
+    private final byte[] array;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    PooledBuffer(BufferPool pool, byte[] array){
+        this.pool = pool;
+        this.array = array;
+    }
+
+    public byte[] array(){
+        return array;
+    }
+
+    /**
+     * takes another reference to the buffer
+     * @return the buffer itself
+     */
+    public PooledBuffer retain(){
+        int count;
+        do{
+            count = references.get();
+            if(count <= 0){
+                throw new IllegalStateException("Buffer already released");
+            }
+        }while(!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * gives back one reference, the last one returns the buffer to its pool
+     */
+    public void release(){
+        int count = references.decrementAndGet();
+        if(count < 0){
+            throw new IllegalStateException("Buffer released too often");
+        }
+        if(count == 0 && pool != null){
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * returns true while someone besides the caller holds a reference
+     */
+    public boolean isShared(){
+        return references.get() > 1;
+    }
+
+    /**
+     * gives a recycled buffer its first reference back
+     */
+    void reset(){
+        references.set(1);
+    }
+}
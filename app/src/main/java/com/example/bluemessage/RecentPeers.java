@@ -0,0 +1,182 @@
+package com.example.bluemessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices connected to most recently, so a quick reconnect can dial them straight away without a scan.
+ * Only the last few are kept, the one connected to longest ago is dropped first.
+ * Written to a file after every connect and read back when the app starts.
+ * Methods are synchronized, connects are recorded from the engine threads
+ */
+public class RecentPeers {
+
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private static final int FILE_VERSION = 1;
+
+    private final int capacity;
+    //oldest first, a peer that connects again moves to the end
+    private final LinkedHashMap<String, Peer> peers = new LinkedHashMap<>();
+
+    /**
+     * Constructor for a list of the default number of peers
+     */
+    public RecentPeers(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor for a list
+     * @param capacity how many peers are kept
+     */
+    public RecentPeers(int capacity){
+        this.capacity = capacity;
+    }
+
+    /**
+     * One device that was connected to
+     */
+    public static class Peer {
+        private final String address;
+        private final String name;
+        private final long lastConnected;
+
+        Peer(String address, String name, long lastConnected){
+            this.address = address;
+            this.name = name;
+            this.lastConnected = lastConnected;
+        }
+
+        public String getAddress(){
+            return address;
+        }
+
+        /**
+         * returns the name the peer had on its last connection, null if it had none
+         */
+        public String getName(){
+            return name;
+        }
+
+        public long getLastConnected(){
+            return lastConnected;
+        }
+    }
+
+    /**
+     * records a connection to the peer, making it the most recent
+     * @param address
+     * @param name
+     * @param now
+     */
+    public synchronized void connected(String address, String name, long now){
+        peers.remove(address);
+        peers.put(address, new Peer(address, name, now));
+        trim();
+    }
+
+    public synchronized void remove(String address){
+        peers.remove(address);
+    }
+
+    /**
+     * returns up to max peers, the most recently connected first
+     * @param max
+     * @return
+     */
+    public synchronized List<Peer> recent(int max){
+        List<Peer> list = new ArrayList<>(peers.values());
+        Collections.reverse(list);
+        return list.size() > max ? new ArrayList<>(list.subList(0, max)) : list;
+    }
+
+    /**
+     * returns the addresses of up to max peers, the most recently connected first
+     * @param max
+     * @return
+     */
+    public List<String> addresses(int max){
+        List<String> addresses = new ArrayList<>();
+        for(Peer peer : recent(max)){
+            addresses.add(peer.address);
+        }
+        return addresses;
+    }
+
+    private void trim(){
+        Iterator<String> oldest = peers.keySet().iterator();
+        while(peers.size() > capacity){
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * writes every peer, oldest first
+     * @param out
+     * @throws IOException
+     */
+    public synchronized void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FILE_VERSION);
+        data.writeInt(peers.size());
+        for(Map.Entry<String, Peer> entry : peers.entrySet()){
+            Peer peer = entry.getValue();
+            data.writeUTF(peer.address);
+            data.writeBoolean(peer.name != null);
+            if(peer.name != null){
+                data.writeUTF(peer.name);
+            }
+            data.writeLong(peer.lastConnected);
+        }
+        data.flush();
+    }
+
+    /**
+     * adds the peers written by write(), peers already in the list count as more recent.
+     * A file of another version is ignored
+     * @param in
+     * @throws IOException if the file is cut off or malformed
+     */
+    public synchronized void read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        int version;
+        try{
+            version = data.readInt();
+        }catch (EOFException e){
+            return;
+        }
+        if(version != FILE_VERSION){
+            return;
+        }
+        int size = data.readInt();
+        if(size < 0){
+            throw new IOException("Malformed recent peers");
+        }
+        LinkedHashMap<String, Peer> read = new LinkedHashMap<>();
+        for(int i = 0; i < size; i++){
+            String address = data.readUTF();
+            String name = data.readBoolean() ? data.readUTF() : null;
+            long lastConnected = data.readLong();
+            if(!peers.containsKey(address)){
+                read.remove(address);
+                read.put(address, new Peer(address, name, lastConnected));
+            }
+        }
+        read.putAll(peers);
+        peers.clear();
+        peers.putAll(read);
+        trim();
+    }
+}
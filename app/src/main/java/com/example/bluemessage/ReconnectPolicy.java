@@ -0,0 +1,81 @@
+package com.example.bluemessage;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before each attempt to dial a lost peer again.
+ * The delay doubles with every attempt up to a ceiling and half of it is random,
+ * so two phones that lost each other at the same moment do not keep redialing in lockstep
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final int maxAttempts;
+    private final Random random;
+
+    /**
+     * Constructor for the default policy
+     */
+    public ReconnectPolicy(){
+        this(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_MAX_ATTEMPTS, new Random());
+    }
+
+    /**
+     * Constructor for a policy that gives up after maxAttempts, 0 turns reconnecting off
+     * @param baseDelayMs delay ceiling of the first attempt
+     * @param maxDelayMs largest delay ceiling
+     * @param maxAttempts
+     * @param random
+     */
+    public ReconnectPolicy(long baseDelayMs, long maxDelayMs, int maxAttempts, Random random){
+        if(baseDelayMs <= 0 || maxDelayMs < baseDelayMs || maxAttempts < 0){
+            throw new IllegalArgumentException("Invalid reconnect policy");
+        }
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.maxAttempts = maxAttempts;
+        this.random = random;
+    }
+
+    /**
+     * returns the delay before the given attempt, counting from 1, or -1 if there should be no more attempts
+     * @param attempt
+     * @return
+     */
+    public long delayMs(int attempt){
+        if(attempt < 1 || attempt > maxAttempts){
+            return -1;
+        }
+        long ceiling = ceiling(attempt);
+        long half = ceiling / 2;
+        synchronized (random){
+            return half + (long) (random.nextDouble() * (ceiling - half));
+        }
+    }
+
+    /**
+     * returns the longest a lost peer following this policy can take before its last attempt,
+     * the delays of all attempts at their ceiling
+     */
+    public long maxTotalDelayMs(){
+        long total = 0;
+        for(int attempt = 1; attempt <= maxAttempts; attempt++){
+            total += ceiling(attempt);
+        }
+        return total;
+    }
+
+    public int getMaxAttempts(){
+        return maxAttempts;
+    }
+
+    private long ceiling(int attempt){
+        long ceiling = baseDelayMs << Math.min(attempt - 1, 30);
+        return ceiling <= 0 || ceiling > maxDelayMs ? maxDelayMs : ceiling;
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.bluemessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sequence numbers, retransmit buffer and send window for the messages exchanged with one peer.
+ * A channel outlives the connection it was created on: after a reconnect both sides swap RESUME frames,
+ * the frames the peer never acknowledged are sent again and the peer drops the ones it already had.
+ * At most windowBytes of message data is sent ahead of the peer's acknowledgements,
+ * so a slow peer holds messages back here instead of in the socket. A connection can narrow the window
+ * to what the peer asked for in its handshake.
+ * Callers that need several calls to happen together can hold the channel's monitor.
+ */
+public class ReliableChannel {
+
+    public static final int DEFAULT_WINDOW_BYTES = 32 * 1024;
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 256 * 1024;
+
+    private static final Random ids = new Random();
+
+    private final long streamId;
+    private final int windowBytes;
+    private final int maxBufferedBytes;
+    //window of the current connection, windowBytes unless the peer asked for less
+    private int sendWindowBytes;
+    private long nextSeq = 1;
+    //DATA frames on our stream that the peer has not acknowledged yet, in sequence order.
+    //inFlight were sent on the current connection, waiting come after them and have not been sent yet
+    private final ArrayDeque<ChatFrame> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<ChatFrame> waiting = new ArrayDeque<>();
+    private int inFlightBytes;
+    private int bufferedBytes;
+
+    private long peerStreamId;
+    private long lastReceived;
+    private boolean ackPending;
+
+    /**
+     * Constructor for a channel with a new random stream id and the default window
+     */
+    public ReliableChannel(){
+        this(newStreamId(), DEFAULT_WINDOW_BYTES, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * Constructor for a channel that sends on the given stream
+     * @param streamId
+     * @param windowBytes message bytes that may be sent but not yet acknowledged
+     * @param maxBufferedBytes message bytes that may wait in the channel, sent or not, before add() refuses more
+     */
+    public ReliableChannel(long streamId, int windowBytes, int maxBufferedBytes){
+        if(windowBytes <= 0 || maxBufferedBytes < windowBytes){
+            throw new IllegalArgumentException("Invalid window");
+        }
+        this.streamId = streamId;
+        this.windowBytes = windowBytes;
+        this.maxBufferedBytes = maxBufferedBytes;
+        sendWindowBytes = windowBytes;
+    }
+
+    /**
+     * Constructor for a channel with a new random stream id and the given window
+     * @param windowBytes
+     * @param maxBufferedBytes
+     */
+    public ReliableChannel(int windowBytes, int maxBufferedBytes){
+        this(newStreamId(), windowBytes, maxBufferedBytes);
+    }
+
+    private static long newStreamId(){
+        long id;
+        synchronized (ids){
+            do{
+                id = ids.nextLong();
+            }while(id == 0);
+        }
+        return id;
+    }
+
+    /**
+     * narrows the window to what the current connection negotiated, never beyond the window the channel was made with
+     * @param windowBytes
+     */
+    public synchronized void setSendWindow(int windowBytes){
+        sendWindowBytes = Math.min(this.windowBytes, windowBytes);
+    }
+
+    public long getStreamId(){
+        return streamId;
+    }
+
+    /**
+     * gives the message the next sequence number and keeps it until the peer acknowledges it.
+     * Returns null if the channel is already holding maxBufferedBytes
+     * @param payload
+     * @return
+     */
+    public synchronized ChatFrame add(byte[] payload){
+        if(bufferedBytes > 0 && bufferedBytes + payload.length > maxBufferedBytes){
+            return null;
+        }
+        ChatFrame frame = ChatFrame.data(nextSeq++, payload);
+        waiting.addLast(frame);
+        bufferedBytes += frame.length;
+        return frame;
+    }
+
+    /**
+     * returns the next frame to send if the window has room for it, null otherwise.
+     * A frame is always let through when nothing is in flight, so one larger than the window still goes out.
+     * The frame only counts as sent once markSent() is called
+     */
+    public synchronized ChatFrame nextToSend(){
+        ChatFrame frame = waiting.peekFirst();
+        if(frame == null || (inFlightBytes > 0 && inFlightBytes + frame.length > sendWindowBytes)){
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * records that the frame returned by nextToSend() was handed to the writer
+     * @param frame
+     */
+    public synchronized void markSent(ChatFrame frame){
+        if(waiting.peekFirst() == frame){
+            inFlight.addLast(waiting.removeFirst());
+            inFlightBytes += frame.length;
+        }
+    }
+
+    /**
+     * releases every frame up to and including seq and returns them, opening the window by their size
+     * @param seq
+     * @return
+     */
+    public synchronized List<ChatFrame> acknowledge(long seq){
+        List<ChatFrame> released = new ArrayList<>();
+        while(!inFlight.isEmpty() && inFlight.peekFirst().seq <= seq){
+            ChatFrame frame = inFlight.removeFirst();
+            inFlightBytes -= frame.length;
+            bufferedBytes -= frame.length;
+            released.add(frame);
+        }
+        while(!waiting.isEmpty() && waiting.peekFirst().seq <= seq){
+            ChatFrame frame = waiting.removeFirst();
+            bufferedBytes -= frame.length;
+            released.add(frame);
+        }
+        return released;
+    }
+
+    /**
+     * returns the unacknowledged frames with a sequence number above seq, in order
+     * @param seq
+     * @return
+     */
+    public synchronized List<ChatFrame> unackedAfter(long seq){
+        List<ChatFrame> frames = new ArrayList<>();
+        for(ChatFrame frame : inFlight){
+            if(frame.seq > seq){
+                frames.add(frame);
+            }
+        }
+        for(ChatFrame frame : waiting){
+            if(frame.seq > seq){
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    public synchronized int getUnackedCount(){
+        return inFlight.size() + waiting.size();
+    }
+
+    public synchronized int getInFlightBytes(){
+        return inFlightBytes;
+    }
+
+    /**
+     * empties the retransmit buffer and returns what was in it, for when the peer is given up on
+     */
+    public synchronized List<ChatFrame> clear(){
+        List<ChatFrame> frames = new ArrayList<>(inFlight);
+        frames.addAll(waiting);
+        inFlight.clear();
+        waiting.clear();
+        inFlightBytes = 0;
+        bufferedBytes = 0;
+        return frames;
+    }
+
+    /**
+     * returns the RESUME frame to open a new connection with
+     */
+    public synchronized ChatFrame resumeFrame(){
+        return ChatFrame.resume(streamId, peerStreamId, lastReceived);
+    }
+
+    /**
+     * applies the RESUME frame of the peer and returns the frames it turned out to have received already.
+     * Every frame still unacknowledged after that is sent again, starting with an empty window.
+     * If the peer sends on a new stream, because it restarted, its sequence numbers start again.
+     * If it does not know our stream nothing counts as received
+     * @param resume
+     * @return
+     */
+    public synchronized List<ChatFrame> resume(ChatFrame resume){
+        long peerStream = resume.resumeStreamId();
+        if(peerStream != peerStreamId){
+            peerStreamId = peerStream;
+            lastReceived = 0;
+        }
+        List<ChatFrame> released = resume.resumePeerStreamId() == streamId
+                ? acknowledge(resume.resumeLastReceived())
+                : Collections.<ChatFrame>emptyList();
+        while(!inFlight.isEmpty()){
+            waiting.addFirst(inFlight.removeLast());
+        }
+        inFlightBytes = 0;
+        return released;
+    }
+
+    /**
+     * records a DATA frame from the peer and that an ACK is owed for it.
+     * Returns false if it is a duplicate that was already delivered
+     * @param seq
+     * @return
+     */
+    public synchronized boolean receive(long seq){
+        ackPending = true;
+        if(seq <= lastReceived){
+            return false;
+        }
+        lastReceived = seq;
+        return true;
+    }
+
+    /**
+     * returns the ACK owed to the peer, one for everything received since the last one, or null if none is owed.
+     * Call ackSent() once it is queued
+     */
+    public synchronized ChatFrame pendingAck(){
+        return ackPending ? ChatFrame.ack(lastReceived) : null;
+    }
+
+    public synchronized void ackSent(){
+        ackPending = false;
+    }
+
+    /**
+     * highest sequence number received from the peer, the value to acknowledge
+     */
+    public synchronized long getLastReceived(){
+        return lastReceived;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.bluemessage;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Transport over Bluetooth RFCOMM sockets, used by the app on a real device.
+ * Discovery is cancelled before every dial, an inquiry left running by the device list slows connecting down badly
+ */
+public class RfcommTransport implements ChatTransport {
+    private final BluetoothAdapter bluetoothAdapter;
+    private final String name;
+    private final UUID uuid;
+
+    /**
+     * Constructor for a transport that registers and connects to the given service record
+     * @param bluetoothAdapter
+     * @param name
+     * @param uuid
+     */
+    public RfcommTransport(BluetoothAdapter bluetoothAdapter, String name, UUID uuid){
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.name = name;
+        this.uuid = uuid;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        checkAdapter();
+        final BluetoothServerSocket serverSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(name, uuid);
+        return new Server() {
+            @Override
+            public Link accept() throws IOException {
+                return new RfcommLink(serverSocket.accept(), bluetoothAdapter);
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Link createLink(String address) throws IOException {
+        checkAdapter();
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+        return new RfcommLink(device.createRfcommSocketToServiceRecord(uuid), bluetoothAdapter);
+    }
+
+    private void checkAdapter() throws IOException {
+        if(bluetoothAdapter == null){
+            throw new IOException("No Bluetooth on Device");
+        }
+    }
+
+    /**
+     * Link wrapping a BluetoothSocket
+     */
+    private static class RfcommLink implements Link {
+        private final BluetoothSocket socket;
+        private final BluetoothAdapter bluetoothAdapter;
+
+        RfcommLink(BluetoothSocket socket, BluetoothAdapter bluetoothAdapter){
+            this.socket = socket;
+            this.bluetoothAdapter = bluetoothAdapter;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if(bluetoothAdapter.isDiscovering()){
+                bluetoothAdapter.cancelDiscovery();
+            }
+            socket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public String getRemoteName() {
+            return socket.getRemoteDevice().getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
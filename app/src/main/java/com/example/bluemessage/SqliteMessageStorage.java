@@ -0,0 +1,162 @@
+package com.example.bluemessage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MessageStore storage in an SQLite database in the app's own storage.
+ * Pages are read through an index on peer, timestamp and id, so loading a page costs the same
+ * however long the conversation is
+ */
+public class SqliteMessageStorage extends SQLiteOpenHelper implements MessageStore.Storage {
+
+    private static final String DATABASE_NAME = "messages.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE = "messages";
+    private static final String COLUMNS = "_id, uid, peer, timestamp, sender, text, outgoing, status, "
+            + "local_reaction, remote_reaction";
+
+    /**
+     * Constructor for the store database of the app
+     * @param context
+     */
+    public SqliteMessageStorage(Context context){
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "uid INTEGER NOT NULL DEFAULT 0, "
+                + "peer TEXT NOT NULL, "
+                + "timestamp INTEGER NOT NULL, "
+                + "sender TEXT, "
+                + "text TEXT NOT NULL, "
+                + "outgoing INTEGER NOT NULL, "
+                + "status INTEGER NOT NULL, "
+                + "local_reaction INTEGER NOT NULL DEFAULT 0, "
+                + "remote_reaction INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX messages_peer_time ON " + TABLE + " (peer, timestamp, _id)");
+        db.execSQL("CREATE INDEX messages_uid ON " + TABLE + " (uid)");
+    }
+
+    /**
+     * version 2 added the sender's uid and the reactions, messages kept from before have uid 0
+     * and can not be reacted to
+     */
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if(oldVersion < 2){
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN uid INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN local_reaction INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE + " ADD COLUMN remote_reaction INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("CREATE INDEX messages_uid ON " + TABLE + " (uid)");
+        }
+    }
+
+    @Override
+    public void write(List<ChatMessage> inserts, List<ChatMessage> updates, List<ChatMessage> deletes) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try{
+            if(!inserts.isEmpty()){
+                SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE
+                        + " (uid, peer, timestamp, sender, text, outgoing, status, local_reaction, remote_reaction)"
+                        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+                for(ChatMessage message : inserts){
+                    insert.clearBindings();
+                    insert.bindLong(1, message.getUid());
+                    insert.bindString(2, message.getPeer());
+                    insert.bindLong(3, message.getTimestamp());
+                    if(message.getSender() != null){
+                        insert.bindString(4, message.getSender());
+                    }
+                    insert.bindString(5, message.getText());
+                    insert.bindLong(6, message.isOutgoing() ? 1 : 0);
+                    insert.bindLong(7, message.getStatus());
+                    insert.bindLong(8, message.getLocalReaction());
+                    insert.bindLong(9, message.getRemoteReaction());
+                    message.setId(insert.executeInsert());
+                }
+                insert.close();
+            }
+            if(!updates.isEmpty()){
+                SQLiteStatement update = db.compileStatement("UPDATE " + TABLE + " SET status = ? WHERE _id = ?");
+                for(ChatMessage message : updates){
+                    update.bindLong(1, message.getStatus());
+                    update.bindLong(2, message.getId());
+                    update.executeUpdateDelete();
+                }
+                update.close();
+            }
+            if(!deletes.isEmpty()){
+                SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE + " WHERE _id = ?");
+                for(ChatMessage message : deletes){
+                    delete.bindLong(1, message.getId());
+                    delete.executeUpdateDelete();
+                }
+                delete.close();
+            }
+            db.setTransactionSuccessful();
+        }finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public List<ChatMessage> page(String peer, ChatMessage before, int limit) {
+        String selection;
+        String[] args;
+        if(before == null){
+            selection = "peer = ?";
+            args = new String[]{peer};
+        }else{
+            String time = Long.toString(before.getTimestamp());
+            selection = "peer = ? AND (timestamp < ? OR (timestamp = ? AND _id < ?))";
+            args = new String[]{peer, time, time, Long.toString(before.getId())};
+        }
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT " + COLUMNS + " FROM " + TABLE
+                + " WHERE " + selection + " ORDER BY timestamp DESC, _id DESC LIMIT " + limit, args);
+        List<ChatMessage> messages = new ArrayList<>(cursor.getCount());
+        try{
+            while(cursor.moveToNext()){
+                messages.add(new ChatMessage(cursor.getLong(0), cursor.getLong(1), cursor.getString(2), cursor.getLong(3),
+                        cursor.getString(4), cursor.getString(5), cursor.getInt(6) != 0, cursor.getInt(7),
+                        cursor.getInt(8), cursor.getInt(9)));
+            }
+        }finally {
+            cursor.close();
+        }
+        return messages;
+    }
+
+    @Override
+    public void react(String peer, long uid, boolean local, int reaction) {
+        SQLiteStatement react = getWritableDatabase().compileStatement("UPDATE " + TABLE + " SET "
+                + (local ? "local_reaction" : "remote_reaction") + " = ? WHERE peer = ? AND uid = ?");
+        react.bindLong(1, reaction);
+        react.bindString(2, peer);
+        react.bindLong(3, uid);
+        react.executeUpdateDelete();
+        react.close();
+    }
+
+    @Override
+    public String lastPeer() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT peer FROM " + TABLE
+                + " ORDER BY _id DESC LIMIT 1", null);
+        try{
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }finally {
+            cursor.close();
+        }
+    }
+}
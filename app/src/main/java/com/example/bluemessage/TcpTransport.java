@@ -0,0 +1,129 @@
+package com.example.bluemessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Transport over TCP sockets, used to run ChatEngine between two processes on one machine.
+ * Addresses are written as "host:port".
+ */
+public class TcpTransport implements ChatTransport {
+    private final int listenPort;
+    private volatile int boundPort = -1;
+
+    /**
+     * Constructor for a transport that listens on the given localhost port, 0 picks a free port
+     * @param listenPort
+     */
+    public TcpTransport(int listenPort){
+        this.listenPort = listenPort;
+    }
+
+    /**
+     * returns the address other transports can connect to once listen() has been called
+     */
+    public String getLocalAddress(){
+        return "127.0.0.1:" + boundPort;
+    }
+
+    @Override
+    public Server listen() throws IOException {
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), listenPort));
+        boundPort = serverSocket.getLocalPort();
+
+        return new Server() {
+            @Override
+            public Link accept() throws IOException {
+                Socket socket = serverSocket.accept();
+                return new TcpLink(socket, socket.getInetAddress().getHostAddress() + ":" + socket.getPort());
+            }
+
+            @Override
+            public void close() throws IOException {
+                serverSocket.close();
+            }
+        };
+    }
+
+    @Override
+    public Link createLink(String address) throws IOException {
+        int split = address.lastIndexOf(':');
+        if(split < 0){
+            throw new IOException("Address must be host:port, was " + address);
+        }
+        final InetSocketAddress remote;
+        try{
+            remote = new InetSocketAddress(address.substring(0, split), Integer.parseInt(address.substring(split + 1)));
+        }catch (IllegalArgumentException e){
+            throw new IOException("Bad port in " + address);
+        }
+
+        final Socket socket = new Socket();
+        return new TcpLink(socket, address) {
+            @Override
+            public void connect() throws IOException {
+                socket.connect(remote);
+                configure(socket);
+            }
+        };
+    }
+
+    /**
+     * chat frames are already batched by FrameWriter so Nagle's algorithm would only add latency
+     */
+    private static void configure(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+    }
+
+    /**
+     * Link wrapping a TCP socket
+     */
+    private static class TcpLink implements Link {
+        private final Socket socket;
+        private final String remoteAddress;
+
+        TcpLink(Socket socket, String remoteAddress) throws IOException {
+            this.socket = socket;
+            this.remoteAddress = remoteAddress;
+            if(socket.isConnected()){
+                configure(socket);
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public String getRemoteName() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
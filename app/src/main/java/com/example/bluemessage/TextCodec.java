@@ -0,0 +1,134 @@
+package com.example.bluemessage;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Turns chat text into UTF-8 bytes and back, whatever the platform's default charset is.
+ * The encoder, decoder and their buffers are kept and reused between messages, so a codec must only be
+ * used from one thread. Bytes can also be fed in chunks with decodeChunk(), a character cut off at the end
+ * of one chunk is kept until the rest of it arrives with the next one.
+ * Malformed input becomes the replacement character instead of failing the message
+ */
+public class TextCodec {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private final CharsetEncoder encoder;
+    private final CharsetDecoder decoder;
+    private byte[] encoded = new byte[INITIAL_BUFFER_SIZE];
+    private CharBuffer decoded = CharBuffer.allocate(INITIAL_BUFFER_SIZE);
+    //bytes of a decodeChunk() stream not decoded yet, in write mode between calls
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Constructor for a UTF-8 codec
+     */
+    public TextCodec(){
+        encoder = UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoder = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * returns the text as UTF-8 in a new array of its exact length
+     * @param text
+     * @return
+     */
+    public byte[] encode(CharSequence text){
+        int maxLength = maxEncodedLength(text);
+        if(encoded.length < maxLength){
+            encoded = new byte[maxLength];
+        }
+        byte[] bytes = new byte[encode(text, encoded, 0)];
+        System.arraycopy(encoded, 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    /**
+     * writes the text as UTF-8 into dest from the offset on and returns the number of bytes written.
+     * dest must have room for maxEncodedLength(text) bytes after the offset
+     * @param text
+     * @param dest
+     * @param offset
+     * @return
+     */
+    public int encode(CharSequence text, byte[] dest, int offset){
+        ByteBuffer out = ByteBuffer.wrap(dest, offset, dest.length - offset);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), out, true);
+        encoder.flush(out);
+        return out.position() - offset;
+    }
+
+    /**
+     * returns the most bytes the text can take as UTF-8, 3 per char
+     */
+    public int maxEncodedLength(CharSequence text){
+        return (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar());
+    }
+
+    /**
+     * returns the text of a whole message
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public String decode(byte[] bytes, int offset, int length){
+        ensureDecoded(length);
+        decoder.decode(ByteBuffer.wrap(bytes, offset, length), decoded, true);
+        decoder.flush(decoded);
+        decoder.reset();
+        return new String(decoded.array(), 0, decoded.position());
+    }
+
+    /**
+     * returns the text of the next chunk of a stream. The bytes of a character that is cut off at the end
+     * are kept and decoded with the next chunk, on the last chunk they become a replacement character
+     * and the codec is ready for a new stream
+     * @param bytes
+     * @param offset
+     * @param length
+     * @param last true if no more bytes of this stream follow
+     * @return
+     */
+    public String decodeChunk(byte[] bytes, int offset, int length, boolean last){
+        if(pending.remaining() < length){
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.position() + length, pending.capacity() * 2));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        pending.put(bytes, offset, length);
+        pending.flip();
+        ensureDecoded(pending.remaining());
+        decoder.decode(pending, decoded, last);
+        if(last){
+            decoder.flush(decoded);
+            decoder.reset();
+        }
+        //whatever is left is the start of a character, moved to the front for the next chunk
+        pending.compact();
+        return new String(decoded.array(), 0, decoded.position());
+    }
+
+    /**
+     * clears the decoded text and makes room for the given number of bytes, UTF-8 never gives more chars than bytes
+     */
+    private void ensureDecoded(int length){
+        if(decoded.capacity() < length){
+            decoded = CharBuffer.allocate(Math.max(length, decoded.capacity() * 2));
+        }
+        decoded.clear();
+    }
+}
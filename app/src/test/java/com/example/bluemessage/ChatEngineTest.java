@@ -0,0 +1,786 @@
+package com.example.bluemessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.example.bluemessage.EngineEvents.bytes;
+import static com.example.bluemessage.EngineEvents.next;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the ChatEngine connection state machine over the in memory and TCP transports
+ */
+public class ChatEngineTest {
+
+    private ChatEngine server;
+    private ChatEngine client;
+
+    @After
+    public void tearDown(){
+        if(client != null){
+            client.shutdown();
+        }
+        if(server != null){
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void loopback_connectsAndExchangesMessages() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("00:00:00:00:00:01", "Alice"), serverEvents);
+        client = new ChatEngine(network.transport("00:00:00:00:00:02", "Bob"), clientEvents);
+
+        server.start();
+        serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+        client.connect("00:00:00:00:00:01");
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        serverEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        assertEquals("Alice", clientEvents.connectedName);
+        assertEquals("Bob", serverEvents.connectedName);
+
+        assertTrue(client.write(bytes("hi")));
+        assertTrue(client.write(bytes("second message")));
+        assertTrue(server.write(bytes("hello back")));
+
+        assertEquals("hi", next(serverEvents.read));
+        assertEquals("second message", next(serverEvents.read));
+        assertEquals("hello back", next(clientEvents.read));
+        assertEquals("hi", next(clientEvents.written));
+        assertEquals("hi", next(clientEvents.delivered));
+        assertEquals("second message", next(clientEvents.delivered));
+
+        ChatMetrics metrics = client.getMetrics();
+        assertEquals(1, metrics.get(ChatMetrics.CONNECT_ATTEMPTS));
+        assertEquals(1, metrics.get(ChatMetrics.CONNECTS));
+        assertEquals(1, metrics.getHistogram(ChatMetrics.CONNECT_TIME).getCount());
+        assertEquals(1, server.getMetrics().get(ChatMetrics.ACCEPTS));
+        assertEquals(1, server.getMetrics().getHistogram(ChatMetrics.ACCEPT_TIME).getCount());
+        //HELLO, RESUME, two messages and at least one ACK back
+        assertTrue(metrics.get(ChatMetrics.FRAMES_IN) >= 3);
+        assertTrue(metrics.get(ChatMetrics.FRAMES_OUT) >= 4);
+        assertTrue(metrics.get(ChatMetrics.BYTES_OUT) > "hisecond message".length());
+        assertEquals(0, metrics.get(ChatMetrics.DECODE_ERRORS));
+    }
+
+    @Test
+    public void loopback_smallWindow_stillDeliversEverythingInOrder() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+        //room for two messages on the way and ten in the channel
+        client.setWindow(20, 100);
+
+        server.start();
+        client.connect("A");
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        assertEquals("connected", next(serverEvents.events));
+
+        int accepted = 0;
+        for(int i = 0; i < 50; i++){
+            if(client.write(bytes("message " + accepted % 10))){
+                accepted++;
+            }
+        }
+        assertTrue(accepted >= 10);
+        for(int i = 0; i < accepted; i++){
+            assertEquals("message " + i % 10, next(serverEvents.read));
+            assertEquals("message " + i % 10, next(clientEvents.delivered));
+        }
+        assertNull(serverEvents.read.poll());
+        assertTrue(clientEvents.failed.isEmpty());
+    }
+
+    @Test
+    public void writeAll_queuesInOrderAndStopsAtTheFirstMessageThatDoesNotFit() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+        //room for ten messages in the channel
+        client.setWindow(20, 100);
+        assertEquals(0, client.writeAll("A", Arrays.asList(bytes("message 0"))));
+
+        server.start();
+        client.connect("A");
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        assertEquals("connected", next(serverEvents.events));
+
+        List<byte[]> buffers = new ArrayList<>();
+        for(int i = 0; i < 15; i++){
+            buffers.add(bytes("message " + i % 10));
+        }
+        int queued = client.writeAll("A", buffers);
+        assertTrue(queued >= 10 && queued < 15);
+        for(int i = 0; i < queued; i++){
+            assertEquals("message " + i % 10, next(serverEvents.read));
+            assertEquals("message " + i % 10, next(clientEvents.delivered));
+        }
+        assertNull(serverEvents.read.poll());
+        //nothing is reported for the messages that were not queued, the acknowledgements made room for them
+        assertTrue(clientEvents.failed.isEmpty());
+        assertEquals("A", next(clientEvents.room));
+    }
+
+    @Test
+    public void loopback_keepsSeveralPeersAndBroadcastsToAll() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents hubEvents = new EngineEvents();
+        EngineEvents firstEvents = new EngineEvents();
+        EngineEvents secondEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("HUB", "Hub"), hubEvents);
+        ChatEngine first = new ChatEngine(network.transport("P1", "First"), firstEvents);
+        ChatEngine second = new ChatEngine(network.transport("P2", "Second"), secondEvents);
+        try{
+            first.start();
+            second.start();
+            server.connect("P1");
+            server.connect("P2");
+            assertEquals("connected", next(hubEvents.events));
+            assertEquals("connected", next(hubEvents.events));
+            firstEvents.awaitState(ChatEngine.STATE_CONNECTED);
+            secondEvents.awaitState(ChatEngine.STATE_CONNECTED);
+            assertEquals(ChatEngine.STATE_CONNECTED, server.getState("P1"));
+            assertEquals(ChatEngine.STATE_CONNECTED, server.getState("P2"));
+            assertEquals(2, server.getConnectedPeers().size());
+
+            assertTrue(server.write(bytes("to everyone")));
+            assertEquals("to everyone", next(firstEvents.read));
+            assertEquals("to everyone", next(secondEvents.read));
+            //one sent and one delivered report per message no matter how many peers it went to
+            assertEquals("to everyone", next(hubEvents.written));
+            assertEquals("to everyone", next(hubEvents.delivered));
+            assertNull(hubEvents.written.poll());
+
+            assertTrue(server.write("P2", bytes("just you")));
+            assertEquals("just you", next(secondEvents.read));
+            assertNull(firstEvents.read.poll());
+
+            first.stop();
+            assertEquals("lost", next(hubEvents.events));
+            assertEquals(ChatEngine.STATE_CONNECTED, server.getState("P2"));
+            assertEquals(ChatEngine.STATE_CONNECTED, server.getState());
+        }finally{
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void concurrentConnectsAndStops_lastReportedStateIsCurrent() throws Exception {
+        final LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents hubEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("HUB", "Hub"), hubEvents);
+        final ChatEngine[] peers = new ChatEngine[6];
+        for(int i = 0; i < peers.length; i++){
+            peers[i] = new ChatEngine(network.transport("P" + i, "Peer " + i), new EngineEvents());
+            peers[i].start();
+        }
+        try{
+            Thread[] threads = new Thread[peers.length];
+            for(int i = 0; i < peers.length; i++){
+                final String address = "P" + i;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        server.connect(address);
+                    }
+                });
+                threads[i].start();
+            }
+            for(Thread thread : threads){
+                thread.join();
+            }
+            for(int i = 0; i < peers.length; i++){
+                assertEquals("connected", next(hubEvents.events));
+            }
+            assertEquals(peers.length, server.getConnectedPeers().size());
+
+            for(int i = 0; i < peers.length; i++){
+                final ChatEngine peer = peers[i];
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        peer.stop();
+                    }
+                });
+                threads[i].start();
+            }
+            for(int i = 0; i < peers.length; i++){
+                assertEquals("lost", next(hubEvents.events));
+            }
+            for(Thread thread : threads){
+                thread.join();
+            }
+            //the hub dials the peers again, stopping it ends those attempts too
+            server.stop();
+
+            //every report is a change and the last one is the state the engine is in now
+            Integer last = null;
+            Integer state;
+            while((state = hubEvents.states.poll()) != null){
+                assertNotEquals(last, state);
+                last = state;
+            }
+            assertEquals(Integer.valueOf(server.getState()), last);
+            assertEquals(ChatEngine.STATE_NONE, server.getState());
+        }finally{
+            for(ChatEngine peer : peers){
+                peer.stop();
+            }
+        }
+    }
+
+    @Test
+    public void acceptor_keepsOneServerOpenAcrossSessions() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        final ChatTransport hubTransport = network.transport("HUB", "Hub");
+        final AtomicInteger listens = new AtomicInteger();
+        ChatTransport counting = new ChatTransport() {
+            @Override
+            public Server listen() throws IOException {
+                listens.incrementAndGet();
+                return hubTransport.listen();
+            }
+
+            @Override
+            public Link createLink(String address) throws IOException {
+                return hubTransport.createLink(address);
+            }
+        };
+        EngineEvents hubEvents = new EngineEvents();
+        server = new ChatEngine(counting, hubEvents);
+        server.start();
+
+        //peers dial in back to back and one of them drops and comes back
+        ChatEngine first = new ChatEngine(network.transport("P1", "First"), new EngineEvents());
+        ChatEngine second = new ChatEngine(network.transport("P2", "Second"), new EngineEvents());
+        try{
+            first.connect("HUB");
+            second.connect("HUB");
+            assertEquals("connected", next(hubEvents.events));
+            assertEquals("connected", next(hubEvents.events));
+
+            first.stop();
+            assertEquals("lost", next(hubEvents.events));
+            first.connect("HUB");
+            assertEquals("connected", next(hubEvents.events));
+            assertEquals(2, server.getConnectedPeers().size());
+            assertEquals(1, listens.get());
+        }finally{
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void loopback_peerStopping_isReportedAsConnectionLost() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+        client.setReconnectPolicy(new ReconnectPolicy(10, 20, 2, new Random(1)));
+
+        server.start();
+        serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+        client.connect("A");
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        serverEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+        server.stop();
+        assertEquals("connected", next(clientEvents.events));
+        assertEquals("lost", next(clientEvents.events));
+        //redialing a peer that is gone ends in a failure once the policy gives up
+        assertEquals("failed", next(clientEvents.events));
+        clientEvents.awaitState(ChatEngine.STATE_LISTEN);
+        assertFalse(client.write(bytes("nobody there")));
+    }
+
+    @Test
+    public void loopback_droppedLink_isRedialedAndResumedWithoutDuplicates() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        final ChatTransport serverTransport = network.transport("A", "Alice");
+        final AtomicReference<ChatTransport.Link> acceptedLink = new AtomicReference<>();
+        ChatTransport recording = new ChatTransport() {
+            @Override
+            public Server listen() throws IOException {
+                final Server server = serverTransport.listen();
+                return new Server() {
+                    @Override
+                    public Link accept() throws IOException {
+                        Link link = server.accept();
+                        acceptedLink.set(link);
+                        return link;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        server.close();
+                    }
+                };
+            }
+
+            @Override
+            public Link createLink(String address) throws IOException {
+                return serverTransport.createLink(address);
+            }
+        };
+        //the link breaks right after the first message is read, before it can be acknowledged
+        EngineEvents serverEvents = new EngineEvents() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public void onMessageRead(String address, ChatFrame frame) {
+                super.onMessageRead(address, frame);
+                if(count.incrementAndGet() == 1){
+                    try{
+                        acceptedLink.get().close();
+                    }catch (IOException e){
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+        };
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(recording, serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+        client.setReconnectPolicy(new ReconnectPolicy(10, 20, 5, new Random(1)));
+
+        server.start();
+        client.connect("A");
+        assertEquals("connected", next(serverEvents.events));
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+        assertTrue(client.write(bytes("before")));
+        assertEquals("before", next(serverEvents.read));
+        assertEquals("lost", next(serverEvents.events));
+        assertEquals("connected", next(serverEvents.events));
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+        assertTrue(client.write(bytes("after")));
+        //the message the server never acknowledged is not delivered twice
+        assertEquals("after", next(serverEvents.read));
+        assertTrue(server.write(bytes("reply")));
+        assertEquals("reply", next(clientEvents.read));
+    }
+
+    @Test
+    public void acceptor_peerThatNeverDialsBack_failsItsUnacknowledgedMessages() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        final ChatTransport clientTransport = network.transport("B", "Bob");
+        final AtomicReference<ChatTransport.Link> dialedLink = new AtomicReference<>();
+        ChatTransport recording = new ChatTransport() {
+            @Override
+            public Server listen() throws IOException {
+                return clientTransport.listen();
+            }
+
+            @Override
+            public Link createLink(String address) throws IOException {
+                Link link = clientTransport.createLink(address);
+                dialedLink.set(link);
+                return link;
+            }
+        };
+        //the client drops the link as soon as the reply arrives, before acknowledging it, and never dials back
+        EngineEvents clientEvents = new EngineEvents() {
+            @Override
+            public void onMessageRead(String address, ChatFrame frame) {
+                super.onMessageRead(address, frame);
+                try{
+                    dialedLink.get().close();
+                }catch (IOException e){
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        EngineEvents serverEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(recording, clientEvents);
+        server.setReconnectPolicy(new ReconnectPolicy(50, 50, 2, new Random(1)));
+        client.setReconnectPolicy(new ReconnectPolicy(10, 10, 0, new Random(1)));
+
+        server.start();
+        client.connect("A");
+        assertEquals("connected", next(serverEvents.events));
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+        assertTrue(server.write("B", bytes("reply")));
+        assertEquals("reply", next(clientEvents.read));
+        assertEquals("lost", next(serverEvents.events));
+        //kept for the peer to resume at first, failed once it had time to dial back twice
+        assertNull(serverEvents.failed.poll(20, TimeUnit.MILLISECONDS));
+        assertEquals("reply", next(serverEvents.failed));
+        assertNull(serverEvents.delivered.poll());
+    }
+
+    @Test
+    public void loopback_fileIsSentAlongsideMessages() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+        final File target = File.createTempFile("received", ".bin");
+        target.deleteOnExit();
+        server.setIncomingFiles(new ChatEngine.IncomingFiles() {
+            @Override
+            public FileChannel open(String address, String name, long size) throws IOException {
+                return new RandomAccessFile(target, "rw").getChannel();
+            }
+        });
+
+        server.start();
+        client.connect("A");
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        assertEquals("connected", next(serverEvents.events));
+
+        byte[] data = new byte[FileTransfers.CHUNK_SIZE * 20 + 7];
+        new Random(3).nextBytes(data);
+        File source = File.createTempFile("source", ".bin");
+        source.deleteOnExit();
+        RandomAccessFile out = new RandomAccessFile(source, "rw");
+        out.write(data);
+        out.close();
+
+        FileTransfer transfer = client.sendFile("A", new RandomAccessFile(source, "r").getChannel(), "big.bin");
+        assertNotNull(transfer);
+        assertTrue(client.write(bytes("while sending")));
+        assertEquals("while sending", next(serverEvents.read));
+
+        assertSame(transfer, EngineEvents.nextFile(clientEvents.files));
+        assertEquals(FileTransfer.STATE_DONE, transfer.getState());
+        FileTransfer incoming = EngineEvents.nextFile(serverEvents.files);
+        assertEquals("big.bin", incoming.getName());
+        assertEquals(FileTransfer.STATE_DONE, incoming.getState());
+        RandomAccessFile in = new RandomAccessFile(target, "r");
+        byte[] copy = new byte[(int) in.length()];
+        in.readFully(copy);
+        in.close();
+        assertArrayEquals(data, copy);
+        assertNull(client.sendFile("nowhere", null, "x"));
+    }
+
+    @Test
+    public void loopback_compressionIsOnlyUsedWhenBothSidesOfferIt() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while(text.length() < 2000){
+            text.append("see you at home later tonight, thanks for the call! ");
+        }
+        for(boolean clientOffers : new boolean[]{true, false}){
+            LoopbackTransport.Network network = new LoopbackTransport.Network();
+            EngineEvents serverEvents = new EngineEvents();
+            EngineEvents clientEvents = new EngineEvents();
+            server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+            client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+            client.setCompression(clientOffers);
+            server.start();
+            serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+            client.connect("A");
+            clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+            serverEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+            for(int i = 0; i < 20; i++){
+                assertTrue(client.write(bytes(i + text.toString())));
+                assertTrue(server.write(bytes(i + text.toString())));
+            }
+            for(int i = 0; i < 20; i++){
+                assertEquals(i + text.toString(), next(serverEvents.read));
+                assertEquals(i + text.toString(), next(clientEvents.read));
+            }
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void loopback_exchangesMessagesWithAndWithoutEncryption() throws Exception {
+        for(boolean offered : new boolean[]{true, false}){
+            LoopbackTransport.Network network = new LoopbackTransport.Network();
+            EngineEvents serverEvents = new EngineEvents();
+            EngineEvents clientEvents = new EngineEvents();
+            server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+            client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+            server.setEncryption(offered);
+            client.setEncryption(offered);
+            server.start();
+            serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+            client.connect("A");
+            clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+            serverEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+            for(int i = 0; i < 50; i++){
+                assertTrue(client.write(bytes("from Bob " + i)));
+                assertTrue(server.write(bytes("from Alice " + i)));
+            }
+            for(int i = 0; i < 50; i++){
+                assertEquals("from Bob " + i, next(serverEvents.read));
+                assertEquals("from Alice " + i, next(clientEvents.read));
+            }
+            client.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void loopback_peerThatDoesNotOfferEncryption_isRefused() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+        client.setEncryption(false);
+        server.start();
+        serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+        client.connect("A");
+
+        assertEquals("failed", next(serverEvents.events));
+        assertEquals(1, server.getMetrics().get(ChatMetrics.INCOMPATIBLE_PEERS));
+        assertNull(serverEvents.read.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void connectFirst_keepsTheFirstPeerThatAnswersAndCancelsTheRest() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        final ChatTransport clientTransport = network.transport("B", "Bob");
+        final CountDownLatch slowClosed = new CountDownLatch(1);
+        //SLOW never answers, its connect() only returns once the link is closed
+        ChatTransport racing = new ChatTransport() {
+            @Override
+            public Server listen() throws IOException {
+                return clientTransport.listen();
+            }
+
+            @Override
+            public Link createLink(String address) throws IOException {
+                if(!address.equals("SLOW")){
+                    return clientTransport.createLink(address);
+                }
+                return new Link() {
+                    @Override
+                    public void connect() throws IOException {
+                        try{
+                            slowClosed.await();
+                        }catch (InterruptedException e){
+                            Thread.currentThread().interrupt();
+                        }
+                        throw new IOException("Link closed");
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        throw new IOException("Not connected");
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        throw new IOException("Not connected");
+                    }
+
+                    @Override
+                    public String getRemoteAddress() {
+                        return "SLOW";
+                    }
+
+                    @Override
+                    public String getRemoteName() {
+                        return null;
+                    }
+
+                    @Override
+                    public void close() {
+                        slowClosed.countDown();
+                    }
+                };
+            }
+        };
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(racing, clientEvents);
+        server.start();
+
+        assertEquals(3, client.connectFirst(Arrays.asList("SLOW", "GONE", "A")));
+        assertEquals("connected", next(clientEvents.events));
+        assertTrue(slowClosed.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("A"), client.getConnectedPeers());
+        assertEquals(ChatEngine.STATE_NONE, client.getState("SLOW"));
+        //the refused and the cancelled attempt are not reported, and a connected race is not run again
+        assertNull(clientEvents.events.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, client.connectFirst(Arrays.asList("A", "SLOW")));
+
+        assertTrue(client.write(bytes("first")));
+        assertEquals("first", next(serverEvents.read));
+        assertEquals("first", next(clientEvents.written));
+        assertEquals(1, client.getMetrics().getHistogram(ChatMetrics.FIRST_MESSAGE_TIME).getCount());
+    }
+
+    @Test
+    public void connectFirst_reportsOneFailureOnceEveryPeerHasFailed() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents clientEvents = new EngineEvents();
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+
+        assertEquals(2, client.connectFirst(Arrays.asList("X", "Y")));
+        assertEquals("failed", next(clientEvents.events));
+        assertNull(clientEvents.events.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, client.getMetrics().get(ChatMetrics.CONNECT_FAILURES));
+    }
+
+    @Test
+    public void relay_carriesMessagesToANodeTwoHopsAway() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents hubEvents = new EngineEvents();
+        EngineEvents farEvents = new EngineEvents();
+        EngineEvents nearEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("HUB", "Hub"), hubEvents);
+        ChatEngine far = new ChatEngine(network.transport("FAR", "Far"), farEvents);
+        client = new ChatEngine(network.transport("NEAR", "Near"), nearEvents);
+        server.setRelay(true);
+        far.setRelay(true);
+        client.setRelay(true);
+        try{
+            server.start();
+            far.connect("HUB");
+            client.connect("HUB");
+            assertEquals("connected", next(hubEvents.events));
+            assertEquals("connected", next(hubEvents.events));
+            nearEvents.awaitState(ChatEngine.STATE_CONNECTED);
+            farEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+            //NEAR knows no node yet, a broadcast reaches every node in reach
+            assertTrue(client.write(MeshRelay.BROADCAST_ADDRESS, bytes("anyone there")));
+            assertEquals("anyone there", next(hubEvents.read));
+            assertEquals("anyone there", next(farEvents.read));
+            assertEquals("anyone there", next(nearEvents.delivered));
+            assertEquals(1, server.getMetrics().get(ChatMetrics.RELAY_FORWARDED));
+
+            //the answer goes back the way the broadcast came
+            assertTrue(far.write(client.getNodeAddress(), bytes("and back")));
+            assertEquals("and back", next(nearEvents.read));
+            assertEquals(2, server.getMetrics().get(ChatMetrics.RELAY_FORWARDED));
+
+            //the hub passes a message for FAR on without showing it
+            assertTrue(client.write(MeshRelay.nodeAddress(far.getNodeId()), bytes("over two hops")));
+            assertEquals("over two hops", next(farEvents.read));
+            assertEquals("over two hops", next(nearEvents.delivered));
+            assertNull(hubEvents.read.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(3, server.getMetrics().get(ChatMetrics.RELAY_FORWARDED));
+        }finally{
+            far.shutdown();
+        }
+    }
+
+    @Test
+    public void loopback_linkIsProbedAndReportedGood() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob"), clientEvents);
+        client.setPingInterval(20);
+        server.start();
+        serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+        client.connect("A");
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+        assertEquals(Integer.valueOf(LinkQuality.QUALITY_GOOD), clientEvents.linkQuality.poll(5, TimeUnit.SECONDS));
+        assertTrue(client.getLinkQuality("A").getSmoothedRttUs() >= 0);
+        assertTrue(client.getMetrics().getHistogram(ChatMetrics.ROUND_TRIP).getCount() > 0);
+        //the server probes at the default interval, nothing yet
+        assertEquals(-1, server.getLinkQuality("B").getSmoothedRttUs());
+
+        assertTrue(client.write(bytes("still fine")));
+        assertEquals("still fine", next(serverEvents.read));
+    }
+
+    @Test
+    public void loopback_handshakeCarriesDisplayName() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice's phone"), serverEvents);
+        client = new ChatEngine(network.transport("B", "Bob's phone"), clientEvents);
+        server.setDisplayName("Alice");
+
+        server.start();
+        serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+        client.connect("A");
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        serverEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        assertEquals("Alice", clientEvents.connectedName);
+        //no display name falls back to the device name
+        assertEquals("Bob's phone", serverEvents.connectedName);
+    }
+
+    @Test
+    public void loopback_peerWithoutHandshake_isRefused() throws Exception {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        EngineEvents serverEvents = new EngineEvents();
+        server = new ChatEngine(network.transport("A", "Alice"), serverEvents);
+        server.start();
+        serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+
+        //an older build starts sending messages straight away
+        ChatTransport.Link link = network.transport("B", "Bob").createLink("A");
+        link.connect();
+        ChatFrame data = ChatFrame.data(1, bytes("hi"));
+        byte[] encoded = new byte[FrameCodec.varintSize(data.encodedSize()) + data.encodedSize()];
+        data.encode(encoded, FrameCodec.writeVarint(encoded, 0, data.encodedSize()));
+        link.getOutputStream().write(encoded);
+
+        assertEquals("failed", next(serverEvents.events));
+        assertNull(serverEvents.read.poll(200, TimeUnit.MILLISECONDS));
+        link.close();
+    }
+
+    @Test
+    public void loopback_connectToMissingDevice_fails() throws Exception {
+        EngineEvents clientEvents = new EngineEvents();
+        client = new ChatEngine(new LoopbackTransport.Network().transport("B", "Bob"), clientEvents);
+
+        client.connect("nowhere");
+        assertEquals("failed", next(clientEvents.events));
+        clientEvents.awaitState(ChatEngine.STATE_LISTEN);
+    }
+
+    @Test
+    public void tcp_connectsAndExchangesMessages() throws Exception {
+        TcpTransport serverTransport = new TcpTransport(0);
+        EngineEvents serverEvents = new EngineEvents();
+        EngineEvents clientEvents = new EngineEvents();
+        server = new ChatEngine(serverTransport, serverEvents);
+        client = new ChatEngine(new TcpTransport(0), clientEvents);
+
+        server.start();
+        serverEvents.awaitState(ChatEngine.STATE_LISTEN);
+        client.connect(serverTransport.getLocalAddress());
+        clientEvents.awaitState(ChatEngine.STATE_CONNECTED);
+        serverEvents.awaitState(ChatEngine.STATE_CONNECTED);
+
+        assertTrue(client.write(bytes("over tcp")));
+        assertEquals("over tcp", next(serverEvents.read));
+    }
+}
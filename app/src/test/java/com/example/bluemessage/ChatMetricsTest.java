@@ -0,0 +1,70 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the connection counters and histograms
+ */
+public class ChatMetricsTest {
+
+    @Test
+    public void histogram_percentilesFallInTheRightBucket(){
+        ChatMetrics.Histogram histogram = new ChatMetrics.Histogram();
+        for(int i = 1; i <= 100; i++){
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        assertEquals(100, histogram.getMax());
+        //50 lies in 32..63 and 99 in 64..127, capped at the largest value seen
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(1));
+
+        histogram.record(-5);
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    @Test
+    public void counters_addUpAcrossThreads() throws InterruptedException {
+        final ChatMetrics metrics = new ChatMetrics();
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++){
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < 10000; i++){
+                        metrics.increment(ChatMetrics.FRAMES_IN);
+                        metrics.add(ChatMetrics.BYTES_IN, 3);
+                        metrics.record(ChatMetrics.WRITE_LATENCY, i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        assertEquals(40000, metrics.get(ChatMetrics.FRAMES_IN));
+        assertEquals(120000, metrics.get(ChatMetrics.BYTES_IN));
+        assertEquals(40000, metrics.getHistogram(ChatMetrics.WRITE_LATENCY).getCount());
+        assertEquals(9999, metrics.getHistogram(ChatMetrics.WRITE_LATENCY).getMax());
+    }
+
+    @Test
+    public void dump_listsEveryValueAndResetClearsThem(){
+        ChatMetrics metrics = new ChatMetrics();
+        metrics.increment(ChatMetrics.RECONNECTS);
+        metrics.record(ChatMetrics.CONNECT_TIME, 250);
+        String dump = metrics.dump();
+        assertTrue(dump, dump.contains("\nreconnects 1\n"));
+        assertTrue(dump, dump.contains("\nconnect_time_ms count 1 mean 250.0 p50 250 p90 250 p99 250 max 250\n"));
+        assertTrue(dump, dump.contains("\ndecode_errors 0\n"));
+
+        metrics.reset();
+        assertEquals(0, metrics.get(ChatMetrics.RECONNECTS));
+        assertEquals(0, metrics.getHistogram(ChatMetrics.CONNECT_TIME).getCount());
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for merging, ranking, expiring and persisting discovered devices
+ */
+public class DiscoveryCacheTest {
+
+    private static final String PHONE = "00:11:22:33:44:55";
+    private static final String TABLET = "66:77:88:99:AA:BB";
+    private static final String LAPTOP = "CC:DD:EE:FF:00:11";
+
+    @Test
+    public void repeatSightings_areMergedIntoOneEntry(){
+        DiscoveryCache cache = new DiscoveryCache(1000);
+        assertTrue(cache.found(PHONE, null, -80, 0));
+        //a later report brings the name and a new strength, one without either keeps what was known
+        assertFalse(cache.found(PHONE, "Phone", -60, 100));
+        assertFalse(cache.found(PHONE, null, DiscoveryCache.RSSI_UNKNOWN, 200));
+
+        List<DiscoveryCache.Sighting> ranked = cache.ranked(200);
+        assertEquals(1, ranked.size());
+        DiscoveryCache.Sighting phone = ranked.get(0);
+        assertEquals(PHONE, phone.getAddress());
+        assertEquals("Phone", phone.getName());
+        assertEquals(-60, phone.getRssi());
+        assertEquals(200, phone.getLastSeen());
+        assertEquals(3, phone.getCount());
+    }
+
+    @Test
+    public void ranked_putsTheStrongestSignalFirstAndDropsExpiredDevices(){
+        DiscoveryCache cache = new DiscoveryCache(1000);
+        cache.found(PHONE, "Phone", -70, 0);
+        cache.found(TABLET, "Tablet", -40, 500);
+        cache.found(LAPTOP, "Laptop", DiscoveryCache.RSSI_UNKNOWN, 500);
+
+        List<DiscoveryCache.Sighting> ranked = cache.ranked(1000);
+        assertEquals(3, ranked.size());
+        assertEquals(TABLET, ranked.get(0).getAddress());
+        assertEquals(PHONE, ranked.get(1).getAddress());
+        assertEquals(LAPTOP, ranked.get(2).getAddress());
+
+        ranked = cache.ranked(1001);
+        assertEquals(2, ranked.size());
+        assertEquals(TABLET, ranked.get(0).getAddress());
+        //a device seen again after it expired starts over
+        assertTrue(cache.found(PHONE, null, -50, 1200));
+        assertNull(cache.ranked(1200).get(1).getName());
+    }
+
+    @Test
+    public void writeAndRead_keepTheDevicesThatHaveNotExpired() throws IOException {
+        DiscoveryCache cache = new DiscoveryCache(1000);
+        cache.found(PHONE, "Phone", -70, 0);
+        cache.found(TABLET, null, -40, 800);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.write(out, 900);
+
+        DiscoveryCache restored = new DiscoveryCache(1000);
+        restored.read(new ByteArrayInputStream(out.toByteArray()), 1500);
+        List<DiscoveryCache.Sighting> ranked = restored.ranked(1500);
+        assertEquals(1, ranked.size());
+        assertEquals(TABLET, ranked.get(0).getAddress());
+        assertNull(ranked.get(0).getName());
+        assertEquals(-40, ranked.get(0).getRssi());
+        assertEquals(800, ranked.get(0).getLastSeen());
+
+        //an empty file is no cache, a cut off one an error
+        new DiscoveryCache().read(new ByteArrayInputStream(new byte[0]), 0);
+        byte[] cut = new byte[out.size() - 3];
+        System.arraycopy(out.toByteArray(), 0, cut, 0, cut.length);
+        try{
+            new DiscoveryCache(1000).read(new ByteArrayInputStream(cut), 900);
+            fail("cut off cache was read");
+        }catch (IOException expected){
+        }
+    }
+}
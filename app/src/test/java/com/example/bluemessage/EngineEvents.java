@@ -0,0 +1,129 @@
+package com.example.bluemessage;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * ChatEngine listener for tests that records states and messages so a test can wait for them
+ */
+class EngineEvents implements ChatEngine.Listener {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    final BlockingQueue<Integer> states = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> read = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> written = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> delivered = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> failed = new LinkedBlockingQueue<>();
+    //addresses of peers whose channel gained room
+    final BlockingQueue<String> room = new LinkedBlockingQueue<>();
+    final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    //file transfers that finished or failed
+    final BlockingQueue<FileTransfer> files = new LinkedBlockingQueue<>();
+    final BlockingQueue<Integer> linkQuality = new LinkedBlockingQueue<>();
+    volatile String connectedName;
+
+    @Override
+    public void onStateChanged(int state) {
+        states.add(state);
+    }
+
+    @Override
+    public void onConnected(String address, String name) {
+        connectedName = name;
+        events.add("connected");
+    }
+
+    @Override
+    public void onMessageRead(String address, ChatFrame frame) {
+        read.add(text(frame.payload()));
+    }
+
+    @Override
+    public void onMessageWritten(byte[] payload) {
+        written.add(text(payload));
+    }
+
+    @Override
+    public void onMessageDelivered(byte[] payload) {
+        delivered.add(text(payload));
+    }
+
+    @Override
+    public void onMessageFailed(byte[] payload) {
+        failed.add(text(payload));
+    }
+
+    @Override
+    public void onSendRoom(String address) {
+        room.add(address);
+    }
+
+    @Override
+    public void onConnectionLost(String address) {
+        events.add("lost");
+    }
+
+    @Override
+    public void onConnectionFailed(String address) {
+        events.add("failed");
+    }
+
+    @Override
+    public void onFileProgress(FileTransfer transfer) {
+        if(transfer.getState() == FileTransfer.STATE_DONE || transfer.getState() == FileTransfer.STATE_FAILED){
+            files.add(transfer);
+        }
+    }
+
+    @Override
+    public void onLinkQuality(String address, int quality, long rttMs) {
+        linkQuality.add(quality);
+    }
+
+    /**
+     * waits until the engine reports the given state, skipping any states reported before it
+     */
+    void awaitState(int expected) throws InterruptedException {
+        Integer state;
+        while((state = states.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS)) != null){
+            if(state == expected){
+                return;
+            }
+        }
+        fail("state " + expected + " never reported");
+    }
+
+    /**
+     * returns the next value of the queue or fails the test if nothing arrives in time
+     */
+    static String next(BlockingQueue<String> queue) throws InterruptedException {
+        String value = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("timed out waiting for event", value);
+        return value;
+    }
+
+    static FileTransfer nextFile(BlockingQueue<FileTransfer> queue) throws InterruptedException {
+        FileTransfer value = queue.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("timed out waiting for file", value);
+        return value;
+    }
+
+    static byte[] bytes(String text){
+        try{
+            return text.getBytes("UTF-8");
+        }catch (java.io.UnsupportedEncodingException e){
+            throw new AssertionError(e);
+        }
+    }
+
+    static String text(byte[] payload){
+        try{
+            return new String(payload, "UTF-8");
+        }catch (java.io.UnsupportedEncodingException e){
+            throw new AssertionError(e);
+        }
+    }
+}
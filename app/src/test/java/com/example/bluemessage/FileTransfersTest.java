@@ -0,0 +1,284 @@
+package com.example.bluemessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for chunking, checksums and resuming of files between two FileTransfers wired back to back
+ */
+public class FileTransfersTest {
+
+    private File dir;
+    private EngineEvents senderEvents;
+    private EngineEvents receiverEvents;
+    private FileTransfers sender;
+    private FileTransfers receiver;
+    private File received;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("transfers", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        senderEvents = new EngineEvents();
+        receiverEvents = new EngineEvents();
+        sender = new FileTransfers("B", senderEvents);
+        receiver = new FileTransfers("A", receiverEvents);
+        received = new File(dir, "received");
+    }
+
+    @After
+    public void tearDown(){
+        for(File file : dir.listFiles()){
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private final ChatEngine.IncomingFiles incomingFiles = new ChatEngine.IncomingFiles() {
+        @Override
+        public FileChannel open(String address, String name, long size) throws IOException {
+            return new RandomAccessFile(received, "rw").getChannel();
+        }
+    };
+
+    private byte[] content(int size){
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private FileChannel source(byte[] data) throws IOException {
+        File file = new File(dir, "source");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.write(data);
+        out.close();
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+    private byte[] readReceived() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(received, "r");
+        byte[] data = new byte[(int) in.length()];
+        in.readFully(data);
+        in.close();
+        return data;
+    }
+
+    private static ChatFrame wire(ChatFrame frame) throws IOException {
+        byte[] bytes = new byte[frame.encodedSize()];
+        frame.encode(bytes, 0);
+        return ChatFrame.decode(bytes);
+    }
+
+    /**
+     * hands every queued control frame to the other side, returns how many there were
+     */
+    private int exchangeControl() throws IOException {
+        int count = 0;
+        ChatFrame frame;
+        while((frame = sender.peekControl()) != null){
+            sender.controlSent();
+            receive(receiver, wire(frame));
+            count++;
+        }
+        while((frame = receiver.peekControl()) != null){
+            receiver.controlSent();
+            receive(sender, wire(frame));
+            count++;
+        }
+        return count;
+    }
+
+    private void receive(FileTransfers side, ChatFrame frame) throws IOException {
+        switch (frame.type){
+            case ChatFrame.TYPE_FILE_OFFER:
+                side.offered(frame, incomingFiles);
+                break;
+            case ChatFrame.TYPE_FILE_CHUNK:
+                side.chunk(frame);
+                break;
+            case ChatFrame.TYPE_FILE_ACK:
+                side.acknowledged(frame);
+                break;
+            case ChatFrame.TYPE_FILE_CANCEL:
+                side.cancelled(frame);
+                break;
+        }
+    }
+
+    /**
+     * takes every chunk the sender's window lets out without delivering it
+     */
+    private List<ChatFrame> takeChunks() throws IOException {
+        List<ChatFrame> chunks = new ArrayList<>();
+        ChatFrame chunk;
+        while((chunk = sender.nextChunk()) != null){
+            sender.chunkSent(chunk);
+            chunks.add(wire(chunk));
+        }
+        return chunks;
+    }
+
+    /**
+     * runs both sides until nothing moves any more
+     */
+    private void runToEnd() throws IOException {
+        while(true){
+            int moved = exchangeControl();
+            List<ChatFrame> chunks = takeChunks();
+            for(ChatFrame chunk : chunks){
+                receiver.chunk(chunk);
+            }
+            if(moved == 0 && chunks.isEmpty()){
+                return;
+            }
+        }
+    }
+
+    @Test
+    public void file_isSentInChunksWithinTheWindow() throws Exception {
+        byte[] data = content(FileTransfers.CHUNK_SIZE * 9 + 100);
+        FileTransfer transfer = sender.add(source(data), "photo.jpg");
+
+        //nothing is sent before the receiver accepts the offer
+        assertTrue(takeChunks().isEmpty());
+        exchangeControl();
+        List<ChatFrame> chunks = takeChunks();
+        assertEquals(FileTransfers.WINDOW_CHUNKS, chunks.size());
+        for(ChatFrame chunk : chunks){
+            receiver.chunk(chunk);
+        }
+
+        runToEnd();
+        assertEquals(FileTransfer.STATE_DONE, transfer.getState());
+        assertSame(transfer, EngineEvents.nextFile(senderEvents.files));
+        FileTransfer incoming = EngineEvents.nextFile(receiverEvents.files);
+        assertEquals("photo.jpg", incoming.getName());
+        assertEquals(data.length, incoming.getSize());
+        assertEquals(FileTransfer.STATE_DONE, incoming.getState());
+        assertArrayEquals(data, readReceived());
+    }
+
+    @Test
+    public void emptyFile_completesOnOffer() throws Exception {
+        FileTransfer transfer = sender.add(source(new byte[0]), "empty.txt");
+        runToEnd();
+        assertEquals(FileTransfer.STATE_DONE, transfer.getState());
+        assertEquals(0, readReceived().length);
+    }
+
+    @Test
+    public void corruptChunk_isSentAgain() throws Exception {
+        byte[] data = content(FileTransfers.CHUNK_SIZE * 3);
+        FileTransfer transfer = sender.add(source(data), "data.bin");
+        exchangeControl();
+
+        List<ChatFrame> chunks = takeChunks();
+        assertEquals(3, chunks.size());
+        ChatFrame second = chunks.get(1);
+        second.body[second.offset + second.length - 1] ^= 1;
+        for(ChatFrame chunk : chunks){
+            receiver.chunk(chunk);
+        }
+
+        runToEnd();
+        assertEquals(FileTransfer.STATE_DONE, transfer.getState());
+        assertArrayEquals(data, readReceived());
+    }
+
+    @Test
+    public void resume_carriesOnFromWhatTheReceiverHas() throws Exception {
+        byte[] data = content(FileTransfers.CHUNK_SIZE * 6);
+        FileTransfer transfer = sender.add(source(data), "video.mp4");
+        exchangeControl();
+
+        //the first two chunks arrive, the rest is lost with the connection
+        List<ChatFrame> chunks = takeChunks();
+        receiver.chunk(chunks.get(0));
+        receiver.chunk(chunks.get(1));
+        sender.resume();
+        receiver.resume();
+
+        exchangeControl();
+        ChatFrame next = sender.nextChunk();
+        assertEquals(2L * FileTransfers.CHUNK_SIZE, next.longAt(0));
+
+        runToEnd();
+        assertEquals(FileTransfer.STATE_DONE, transfer.getState());
+        assertArrayEquals(data, readReceived());
+        //the receiver saw the file once
+        EngineEvents.nextFile(receiverEvents.files);
+        assertNull(receiverEvents.files.poll());
+    }
+
+    @Test
+    public void finishedFile_offeredAgain_isNotReceivedTwice() throws Exception {
+        byte[] data = content(100);
+        FileTransfer transfer = sender.add(source(data), "note.txt");
+        exchangeControl();
+        //the sender never hears the last ACK before the connection drops
+        receiver.chunk(takeChunks().get(0));
+        sender.resume();
+        receiver.resume();
+
+        runToEnd();
+        assertEquals(FileTransfer.STATE_DONE, transfer.getState());
+        assertArrayEquals(data, readReceived());
+        EngineEvents.nextFile(receiverEvents.files);
+        assertNull(receiverEvents.files.poll());
+    }
+
+    @Test
+    public void refusedFile_failsOnTheSendingSide() throws Exception {
+        FileTransfer transfer = sender.add(source(content(10)), "nope");
+        ChatFrame offer = sender.peekControl();
+        sender.controlSent();
+        receiver.offered(wire(offer), null);
+        exchangeControl();
+
+        assertEquals(FileTransfer.STATE_FAILED, transfer.getState());
+        assertSame(transfer, EngineEvents.nextFile(senderEvents.files));
+        assertTrue(Arrays.asList(dir.list()).contains("source"));
+    }
+
+    @Test
+    public void negativeOrOverflowingOffsets_areMalformed() throws Exception {
+        FileTransfer transfer = sender.add(source(content(10)), "file");
+        exchangeControl();
+        byte[] body = new byte[12];
+        ChatFrame.putLong(body, 0, -1);
+        try{
+            sender.acknowledged(wire(ChatFrame.create(ChatFrame.TYPE_FILE_ACK, transfer.getId(), body)));
+            fail("negative ACK accepted");
+        }catch (IOException expected){
+        }
+        try{
+            receiver.chunk(wire(ChatFrame.create(ChatFrame.TYPE_FILE_CHUNK, transfer.getId(), body)));
+            fail("negative chunk accepted");
+        }catch (IOException expected){
+        }
+        try{
+            receiver.offered(wire(ChatFrame.create(ChatFrame.TYPE_FILE_OFFER, 2, body)), incomingFiles);
+            fail("negative size accepted");
+        }catch (IOException expected){
+        }
+        ChatFrame.putLong(body, 0, Long.MAX_VALUE);
+        byte[] chunk = Arrays.copyOf(body, 20);
+        try{
+            receiver.chunk(wire(ChatFrame.create(ChatFrame.TYPE_FILE_CHUNK, transfer.getId(), chunk)));
+            fail("overflowing chunk accepted");
+        }catch (IOException expected){
+        }
+    }
+}
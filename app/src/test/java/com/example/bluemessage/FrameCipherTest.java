@@ -0,0 +1,127 @@
+package com.example.bluemessage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the frame encryption keyed by the HELLOs
+ */
+public class FrameCipherTest {
+
+    private static final byte[] DIALER_HELLO = {2, 2, 1};
+    private static final byte[] ACCEPTOR_HELLO = {2, 2, 2};
+
+    private final BufferPool pool = new BufferPool();
+    private KeyPair dialerKeys;
+    private KeyPair acceptorKeys;
+
+    @Before
+    public void setUp() throws Exception {
+        dialerKeys = FrameCipher.generateKeyPair();
+        acceptorKeys = FrameCipher.generateKeyPair();
+    }
+
+    private FrameCipher dialer(byte[] acceptorHello) throws IOException {
+        return FrameCipher.create(dialerKeys, acceptorKeys.getPublic().getEncoded(), DIALER_HELLO, acceptorHello, true);
+    }
+
+    private FrameCipher acceptor() throws IOException {
+        return FrameCipher.create(acceptorKeys, dialerKeys.getPublic().getEncoded(), DIALER_HELLO, ACCEPTOR_HELLO, false);
+    }
+
+    /**
+     * seals the frames one after another the way the writer does
+     */
+    private byte[] seal(FrameCipher cipher, FrameCompressor compressor, ChatFrame... frames) throws IOException {
+        int size = 0;
+        for(ChatFrame frame : frames){
+            size += FrameCipher.sealedSize(frame);
+        }
+        byte[] wire = new byte[size];
+        int pos = 0;
+        for(ChatFrame frame : frames){
+            pos = cipher.seal(frame, compressor, wire, pos);
+        }
+        assertTrue(pos <= size);
+        return Arrays.copyOf(wire, pos);
+    }
+
+    @Test
+    public void sealedFrames_openInOrderOnTheOtherSide() throws IOException {
+        FrameCipher dialer = dialer(ACCEPTOR_HELLO);
+        FrameCipher acceptor = acceptor();
+        byte[] text = "see you at home".getBytes(TextCodec.UTF_8);
+        ChatFrame ack = ChatFrame.ack(2);
+        byte[] wire = seal(dialer, null, ChatFrame.data(1, text), ChatFrame.data(2, text), ack);
+        assertEquals(FrameCipher.sealedSize(ack), wire.length - 2 * FrameCipher.sealedSize(ChatFrame.data(1, text)));
+        //nothing of the message is readable on the wire
+        assertEquals(-1, new String(wire, TextCodec.UTF_8).indexOf("home"));
+
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire), FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        for(int seq = 1; seq <= 2; seq++){
+            assertTrue(codec.nextFrame());
+            ChatFrame frame = acceptor.open(codec);
+            assertEquals(ChatFrame.TYPE_DATA, frame.type);
+            assertEquals(seq, frame.seq);
+            assertArrayEquals(text, frame.payload());
+        }
+        assertTrue(codec.nextFrame());
+        assertEquals(ChatFrame.TYPE_ACK, acceptor.open(codec).type);
+        assertFalse(codec.nextFrame());
+        codec.release();
+
+        //the other direction has its own key and counter
+        codec = new FrameCodec(new ByteArrayInputStream(seal(acceptor, null, ChatFrame.ack(1))),
+                FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        assertTrue(codec.nextFrame());
+        assertEquals(1, dialer.open(codec).seq);
+        codec.release();
+    }
+
+    @Test
+    public void compressedFrame_isSealedAfterCompression() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while(text.length() < 600){
+            text.append("are you coming home tonight? ");
+        }
+        byte[] payload = text.toString().getBytes(TextCodec.UTF_8);
+        FrameCompressor compressor = new FrameCompressor(pool, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        byte[] wire = seal(dialer(ACCEPTOR_HELLO), compressor, ChatFrame.data(7, payload));
+
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire), FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        assertTrue(codec.nextFrame());
+        assertTrue(codec.getFrameLength() < payload.length / 3);
+        ChatFrame frame = acceptor().open(codec);
+        assertTrue(frame.compressed);
+        ChatFrame inflated = compressor.inflate(frame);
+        assertArrayEquals(payload, inflated.payload());
+        inflated.release();
+        codec.release();
+        compressor.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void tamperedFrame_isRejected() throws IOException {
+        byte[] wire = seal(dialer(ACCEPTOR_HELLO), null, ChatFrame.data(1, new byte[40]));
+        wire[10] ^= 1;
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire), FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        assertTrue(codec.nextFrame());
+        acceptor().open(codec);
+    }
+
+    @Test(expected = IOException.class)
+    public void changedHello_givesDifferentKeys() throws IOException {
+        //the dialer saw another HELLO than the acceptor sent
+        byte[] wire = seal(dialer(new byte[]{2, 0, 2}), null, ChatFrame.data(1, new byte[40]));
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire), FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        assertTrue(codec.nextFrame());
+        acceptor().open(codec);
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the length prefixed frame codec used by the engine's read loop and its pooled receive buffers
+ */
+public class FrameCodecTest {
+
+    @Test
+    public void varintSize_matchesWrittenHeader() throws IOException {
+        int[] values = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, FrameCodec.DEFAULT_MAX_FRAME_SIZE};
+        for(int value : values){
+            byte[] header = new byte[5];
+            int size = FrameCodec.writeVarint(header, 0, value);
+            assertEquals(FrameCodec.varintSize(value), size);
+        }
+        assertEquals(1, FrameCodec.varintSize(127));
+        assertEquals(2, FrameCodec.varintSize(128));
+        assertEquals(3, FrameCodec.varintSize(16384));
+    }
+
+    /**
+     * returns the payload with its length header in front, the way the writer puts it on the socket
+     */
+    private static byte[] frame(byte[] payload){
+        byte[] frame = new byte[FrameCodec.varintSize(payload.length) + payload.length];
+        int headerSize = FrameCodec.writeVarint(frame, 0, payload.length);
+        System.arraycopy(payload, 0, frame, headerSize, payload.length);
+        return frame;
+    }
+
+    /**
+     * returns a copy of the next frame's payload or null if the stream has ended
+     */
+    private static byte[] next(FrameCodec codec) throws IOException {
+        if(!codec.nextFrame()){
+            return null;
+        }
+        byte[] payload = new byte[codec.getFrameLength()];
+        System.arraycopy(codec.getFrameBuffer().array(), codec.getFrameOffset(), payload, 0, payload.length);
+        return payload;
+    }
+
+    @Test
+    public void nextFrame_returnsEachMessageSeparately() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(frame("hello".getBytes("UTF-8")));
+        out.write(frame(new byte[0]));
+        out.write(frame("LOL".getBytes("UTF-8")));
+
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("hello", new String(next(codec), "UTF-8"));
+        assertEquals(0, next(codec).length);
+        assertEquals("LOL", new String(next(codec), "UTF-8"));
+        assertNull(next(codec));
+    }
+
+    @Test
+    public void nextFrame_leavesRetainedFramesAlone() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i = 0; i < 200; i++){
+            out.write(frame(("message " + i).getBytes("UTF-8")));
+        }
+        BufferPool pool = new BufferPool();
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(out.toByteArray()), 100, pool);
+
+        assertTrue(codec.nextFrame());
+        PooledBuffer first = codec.getFrameBuffer().retain();
+        int offset = codec.getFrameOffset();
+        int length = codec.getFrameLength();
+        //reading on must not overwrite the frame that is still held
+        for(int i = 1; i < 200; i++){
+            assertTrue(codec.nextFrame());
+            assertEquals("message " + i, new String(codec.getFrameBuffer().array(), codec.getFrameOffset(), codec.getFrameLength(), "UTF-8"));
+        }
+        assertFalse(codec.nextFrame());
+        assertEquals("message 0", new String(first.array(), offset, length, "UTF-8"));
+        first.release();
+        codec.release();
+    }
+
+    @Test
+    public void bufferPool_reusesReleasedBuffers(){
+        BufferPool pool = new BufferPool();
+        PooledBuffer buffer = pool.acquire(100);
+        assertEquals(BufferPool.MIN_BUFFER_SIZE, buffer.array().length);
+        buffer.retain();
+        buffer.release();
+        assertTrue(pool.acquire(100) != buffer);
+        buffer.release();
+        assertSame(buffer, pool.acquire(BufferPool.MIN_BUFFER_SIZE));
+        assertEquals(1, pool.getReusedCount());
+        //larger than any pooled size, allocated but never pooled
+        PooledBuffer large = pool.acquire(BufferPool.DEFAULT_MAX_POOLED_SIZE + 1);
+        large.release();
+        assertTrue(pool.acquire(BufferPool.DEFAULT_MAX_POOLED_SIZE + 1) != large);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pooledBuffer_rejectsReleasingTwice(){
+        PooledBuffer buffer = new BufferPool().acquire(10);
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    public void nextFrame_rebuildsFramesSplitAcrossPartialWrites() throws Exception {
+        final PipedOutputStream out = new PipedOutputStream();
+        PipedInputStream in = new PipedInputStream(out, 64);
+        final byte[] large = new byte[70000];
+        for(int i = 0; i < large.length; i++){
+            large[i] = (byte) i;
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    byte[] stream = concat(frame(large), frame("second".getBytes("UTF-8")));
+                    //trickle the bytes out in uneven pieces
+                    int pos = 0;
+                    int step = 1;
+                    while(pos < stream.length){
+                        int length = Math.min(step, stream.length - pos);
+                        out.write(stream, pos, length);
+                        out.flush();
+                        pos += length;
+                        step = step % 997 + 3;
+                    }
+                    out.close();
+                }catch (IOException e){
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        writer.start();
+
+        FrameCodec codec = new FrameCodec(in);
+        assertArrayEquals(large, next(codec));
+        assertEquals("second", new String(next(codec), "UTF-8"));
+        assertNull(next(codec));
+        writer.join();
+    }
+
+    @Test(expected = EOFException.class)
+    public void nextFrame_failsWhenStreamEndsInsideFrame() throws IOException {
+        byte[] frame = frame("truncated".getBytes("UTF-8"));
+        byte[] cut = new byte[frame.length - 2];
+        System.arraycopy(frame, 0, cut, 0, cut.length);
+
+        new FrameCodec(new ByteArrayInputStream(cut)).nextFrame();
+    }
+
+    @Test(expected = IOException.class)
+    public void nextFrame_rejectsFramesOverTheLimit() throws IOException {
+        byte[] frame = frame(new byte[200]);
+        new FrameCodec(new ByteArrayInputStream(frame), 100).nextFrame();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b){
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
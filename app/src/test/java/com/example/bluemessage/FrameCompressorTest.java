@@ -0,0 +1,91 @@
+package com.example.bluemessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the per frame compression negotiated in the HELLO
+ */
+public class FrameCompressorTest {
+
+    private final BufferPool pool = new BufferPool();
+    private final FrameCompressor compressor = new FrameCompressor(pool, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+
+    @After
+    public void tearDown(){
+        compressor.close();
+    }
+
+    /**
+     * encodes the frame the way the writer does and decodes it the way the engine's read loop does
+     */
+    private ChatFrame roundTrip(ChatFrame frame, int[] wireSize) throws IOException {
+        byte[] wire = new byte[FrameCodec.varintSize(frame.encodedSize()) + frame.encodedSize()];
+        wireSize[0] = compressor.encode(frame, wire, 0);
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire, 0, wireSize[0]));
+        assertTrue(codec.nextFrame());
+        ChatFrame decoded = ChatFrame.decode(codec);
+        return decoded.compressed ? compressor.inflate(decoded) : decoded;
+    }
+
+    @Test
+    public void longText_isSentSmallerAndInflatesBack() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while(text.length() < 600){
+            text.append("are you coming home tonight? I think we should talk about the weekend. ");
+        }
+        byte[] payload = text.toString().getBytes(TextCodec.UTF_8);
+        int[] wireSize = new int[1];
+        ChatFrame frame = roundTrip(ChatFrame.data(12, payload), wireSize);
+
+        assertTrue("sent " + wireSize[0] + " of " + payload.length, wireSize[0] < payload.length / 3);
+        assertEquals(ChatFrame.TYPE_DATA, frame.type);
+        assertEquals(12, frame.seq);
+        assertArrayEquals(payload, frame.payload());
+        frame.release();
+    }
+
+    @Test
+    public void smallFramesAndControlFrames_areSentAsTheyAre() throws IOException {
+        int[] wireSize = new int[1];
+        ChatFrame small = ChatFrame.data(1, "ok thanks".getBytes(TextCodec.UTF_8));
+        assertFalse(roundTrip(small, wireSize).compressed);
+        assertEquals(FrameCodec.varintSize(small.encodedSize()) + small.encodedSize(), wireSize[0]);
+
+        byte[] name = new byte[200];
+        ChatFrame offer = ChatFrame.create(ChatFrame.TYPE_FILE_OFFER, 3, name);
+        assertEquals(FrameCodec.varintSize(offer.encodedSize()) + offer.encodedSize(),
+                compressor.encode(offer, new byte[512], 0));
+    }
+
+    @Test
+    public void incompressibleChunk_isSentAsItIs() throws IOException {
+        byte[] body = new byte[FileTransfers.CHUNK_SIZE];
+        new Random(7).nextBytes(body);
+        ChatFrame chunk = ChatFrame.create(ChatFrame.TYPE_FILE_CHUNK, 5, body);
+        int[] wireSize = new int[1];
+        ChatFrame frame = roundTrip(chunk, wireSize);
+        assertEquals(FrameCodec.varintSize(chunk.encodedSize()) + chunk.encodedSize(), wireSize[0]);
+        assertArrayEquals(body, frame.payload());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptBody_isRejected() throws IOException {
+        byte[] payload = new byte[1000];
+        byte[] wire = new byte[1100];
+        int size = compressor.encode(ChatFrame.data(1, payload), wire, 0);
+        //length prefix, type, seq and the two byte size, then a deflate block of the reserved type
+        wire[1 + 1 + 1 + 2] = 0x07;
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire, 0, size));
+        assertTrue(codec.nextFrame());
+        ChatFrame decoded = ChatFrame.decode(codec);
+        assertTrue(decoded.compressed);
+        compressor.inflate(decoded);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the batching writer every session of the engine writes through
+ */
+public class FrameWriterTest {
+
+    /**
+     * executor that only runs the writer when the test asks it to, so queued messages stay queued until then
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll(){
+            for(Runnable task : tasks){
+                tasks.remove(task);
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * collects the outcome of each message and releases the latch once all expected messages are done
+     */
+    private static class RecordingListener implements FrameWriter.Listener {
+        final List<ChatFrame> written = new CopyOnWriteArrayList<>();
+        final List<ChatFrame> failed = new CopyOnWriteArrayList<>();
+        final CountDownLatch done;
+
+        RecordingListener(int expected){
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onFrameWritten(ChatFrame frame){
+            written.add(frame);
+            done.countDown();
+        }
+
+        @Override
+        public void onFrameFailed(ChatFrame frame, IOException e){
+            failed.add(frame);
+            done.countDown();
+        }
+    }
+
+    /**
+     * output stream that counts how many separate writes reach the socket
+     */
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len){
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    private static ChatFrame frame(String text) throws IOException {
+        return ChatFrame.data(1, text.getBytes("UTF-8"));
+    }
+
+    private static ChatFrame frame(int size){
+        return ChatFrame.data(1, new byte[size]);
+    }
+
+    private static String readText(FrameCodec codec) throws IOException {
+        assertTrue(codec.nextFrame());
+        return new String(ChatFrame.decode(codec).payload(), "UTF-8");
+    }
+
+    @Test
+    public void queuedMessages_areCoalescedIntoOneWrite() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        RecordingListener listener = new RecordingListener(3);
+        ManualExecutor executor = new ManualExecutor();
+        FrameWriter writer = new FrameWriter(out, listener, executor, 8, 0, 8 * 1024);
+
+        assertTrue(writer.offer(frame("one")));
+        assertTrue(writer.offer(frame("two")));
+        assertTrue(writer.offer(frame("three")));
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+
+        assertEquals(0, listener.done.getCount());
+        assertEquals(1, out.writes);
+        assertEquals(3, listener.written.size());
+
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("one", readText(codec));
+        assertEquals("two", readText(codec));
+        assertEquals("three", readText(codec));
+        assertFalse(codec.nextFrame());
+    }
+
+    @Test
+    public void flushDelay_waitsForMessagesQueuedFromAnotherThread() throws Exception {
+        CountingOutputStream out = new CountingOutputStream();
+        RecordingListener listener = new RecordingListener(2);
+        final FrameWriter writer = new FrameWriter(out, listener, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                new Thread(command).start();
+            }
+        }, 8, 2000, 8 * 1024);
+
+        writer.offer(frame("first"));
+        Thread.sleep(50);
+        writer.offer(frame("second"));
+
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, out.writes);
+    }
+
+    @Test
+    public void offer_refusesMessagesWhenQueueIsFull(){
+        FrameWriter writer = new FrameWriter(new ByteArrayOutputStream(), new RecordingListener(0), new ManualExecutor(), 2, 0, 1024);
+
+        assertTrue(writer.offer(frame(1)));
+        assertTrue(writer.offer(frame(1)));
+        assertFalse(writer.offer(frame(1)));
+        assertEquals(2, writer.getQueueSize());
+    }
+
+    @Test
+    public void failedWrite_reportsEveryPendingMessage() throws Exception {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("link down");
+            }
+        };
+        RecordingListener listener = new RecordingListener(2);
+        ManualExecutor executor = new ManualExecutor();
+        FrameWriter writer = new FrameWriter(broken, listener, executor, 8, 0, 1);
+
+        writer.offer(frame(10));
+        writer.offer(frame(10));
+        executor.runAll();
+
+        assertEquals(0, listener.done.getCount());
+        assertEquals(2, listener.failed.size());
+        assertTrue(listener.written.isEmpty());
+        assertFalse(writer.offer(frame(1)));
+    }
+
+    @Test
+    public void cancel_reportsQueuedMessagesAsFailed() throws Exception {
+        RecordingListener listener = new RecordingListener(2);
+        ManualExecutor executor = new ManualExecutor();
+        FrameWriter writer = new FrameWriter(new ByteArrayOutputStream(), listener, executor, 8, 0, 1024);
+
+        writer.offer(frame(1));
+        writer.offer(frame(1));
+        writer.cancel();
+        executor.runAll();
+
+        assertEquals(0, listener.done.getCount());
+        assertEquals(2, listener.failed.size());
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the HELLO handshake that configures each connection
+ */
+public class HandshakeTest {
+
+    @Test
+    public void hello_roundTrips() throws IOException {
+        Handshake sent = new Handshake(Handshake.FEATURE_COMPRESSION, 1 << 20, 32 * 1024, "Alice");
+        ChatFrame frame = ChatFrame.decode(encode(sent.toFrame()));
+        Handshake received = Handshake.fromFrame(frame);
+        assertEquals(Handshake.PROTOCOL_VERSION, received.getVersion());
+        assertTrue(received.supports(Handshake.FEATURE_COMPRESSION));
+        assertEquals(1 << 20, received.getMaxFrameSize());
+        assertEquals(32 * 1024, received.getWindowBytes());
+        assertEquals("Alice", received.getName());
+    }
+
+    @Test
+    public void hello_carriesPublicKeyWhenOfferingEncryption() throws IOException {
+        byte[] key = {1, 2, 3, 4, 5};
+        Handshake sent = new Handshake(Handshake.FEATURE_COMPRESSION, 1 << 20, 32 * 1024, "Alice", key);
+        Handshake received = Handshake.fromFrame(ChatFrame.decode(encode(sent.toFrame())));
+        assertTrue(received.supports(Handshake.FEATURE_ENCRYPTION));
+        assertArrayEquals(key, received.getPublicKey());
+        assertEquals("Alice", received.getName());
+        assertArrayEquals(sent.getEncoded(), received.getEncoded());
+
+        Handshake plain = new Handshake(Handshake.FEATURE_ENCRYPTION, 1 << 20, 32 * 1024, "Bob");
+        assertFalse(plain.supports(Handshake.FEATURE_ENCRYPTION));
+        Handshake result = plain.negotiate(received);
+        assertFalse(result.supports(Handshake.FEATURE_ENCRYPTION));
+        assertNull(result.getPublicKey());
+        assertArrayEquals(key, new Handshake(0, 1 << 20, 32 * 1024, "Bob", new byte[]{9})
+                .negotiate(received).getPublicKey());
+    }
+
+    @Test(expected = IOException.class)
+    public void hello_offeringEncryptionWithoutKey_isMalformed() throws IOException {
+        //current version, encryption, 64K frames and window, then a key length running past the end
+        byte[] body = {Handshake.PROTOCOL_VERSION, Handshake.FEATURE_ENCRYPTION, (byte) 0x80, (byte) 0x80, 0x04,
+                (byte) 0x80, (byte) 0x80, 0x04, 0x20, 1};
+        Handshake.fromFrame(ChatFrame.create(ChatFrame.TYPE_HELLO, 0, body));
+    }
+
+    @Test
+    public void negotiate_takesWhatBothSupport() throws IOException {
+        Handshake local = new Handshake(Handshake.FEATURE_COMPRESSION, 1 << 20, 32 * 1024, "Alice");
+        Handshake peer = new Handshake(0, 64 * 1024, 64 * 1024, "Bob");
+        Handshake result = local.negotiate(peer);
+        assertFalse(result.supports(Handshake.FEATURE_COMPRESSION));
+        assertEquals(64 * 1024, result.getMaxFrameSize());
+        assertEquals(32 * 1024, result.getWindowBytes());
+        assertEquals("Bob", result.getName());
+    }
+
+    @Test(expected = IOException.class)
+    public void negotiate_refusesOtherProtocolVersion() throws IOException {
+        //version 3, no features, 64K frames and window, no name
+        byte[] body = {3, 0, (byte) 0x80, (byte) 0x80, 0x04, (byte) 0x80, (byte) 0x80, 0x04};
+        Handshake peer = Handshake.fromFrame(ChatFrame.create(ChatFrame.TYPE_HELLO, 0, body));
+        assertEquals(3, peer.getVersion());
+        new Handshake(0, 1 << 20, 32 * 1024, "").negotiate(peer);
+    }
+
+    @Test
+    public void negotiate_refusesAHelloWithTheEncryptionFlagStripped() throws IOException {
+        Handshake local = new Handshake(0, 1 << 20, 32 * 1024, "Alice", new byte[]{1, 2, 3});
+        byte[] body = new Handshake(0, 1 << 20, 32 * 1024, "Bob", new byte[]{4, 5, 6}).getEncoded().clone();
+        //the features follow the one byte version
+        body[1] &= ~Handshake.FEATURE_ENCRYPTION;
+        Handshake stripped = Handshake.fromFrame(ChatFrame.create(ChatFrame.TYPE_HELLO, 0, body));
+        assertFalse(stripped.supports(Handshake.FEATURE_ENCRYPTION));
+        try{
+            local.negotiate(stripped);
+            fail("negotiated without encryption");
+        }catch (IOException expected){
+            //refused like a peer on another version
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void negotiate_refusesFramesTooSmallForFileChunks() throws IOException {
+        Handshake peer = new Handshake(0, 4 * 1024, 32 * 1024, "Bob");
+        new Handshake(0, 1 << 20, 32 * 1024, "").negotiate(peer);
+    }
+
+    private static byte[] encode(ChatFrame frame){
+        byte[] bytes = new byte[frame.encodedSize()];
+        frame.encode(bytes, 0);
+        return bytes;
+    }
+}
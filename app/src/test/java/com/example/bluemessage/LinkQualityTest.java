@@ -0,0 +1,83 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the round trip and throughput estimates and the tuning taken from them
+ */
+public class LinkQualityTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void roundTrip_isSmoothedLikeTcp(){
+        LinkQuality quality = new LinkQuality(0);
+        assertEquals(-1, quality.getSmoothedRttUs());
+        assertEquals(LinkQuality.QUALITY_UNKNOWN, quality.getQuality());
+
+        quality.onRoundTrip(80000);
+        assertEquals(80000, quality.getSmoothedRttUs());
+        assertEquals(40000, quality.getRttVarianceUs());
+        //variance moves a quarter and the mean an eighth of the way
+        quality.onRoundTrip(160000);
+        assertEquals(50000, quality.getRttVarianceUs());
+        assertEquals(90000, quality.getSmoothedRttUs());
+        assertEquals(LinkQuality.QUALITY_FAIR, quality.getQuality());
+
+        for(int i = 0; i < 50; i++){
+            quality.onRoundTrip(20000);
+        }
+        assertEquals(LinkQuality.QUALITY_GOOD, quality.getQuality());
+    }
+
+    @Test
+    public void missedProbes_makeTheLinkPoorUntilAPongArrives(){
+        LinkQuality quality = new LinkQuality(0);
+        quality.onRoundTrip(10000);
+        quality.onProbeMissed();
+        assertEquals(LinkQuality.QUALITY_GOOD, quality.getQuality());
+        quality.onProbeMissed();
+        assertEquals(LinkQuality.QUALITY_POOR, quality.getQuality());
+        quality.onRoundTrip(10000);
+        assertEquals(LinkQuality.QUALITY_GOOD, quality.getQuality());
+    }
+
+    @Test
+    public void throughput_isOnlySampledWhileTheLinkIsBusy(){
+        LinkQuality quality = new LinkQuality(0);
+        quality.onBytesWritten(100);
+        quality.endPeriod(SECOND);
+        assertEquals(-1, quality.getThroughput());
+
+        quality.onBytesWritten(100000);
+        quality.endPeriod(2 * SECOND);
+        assertEquals(100000, quality.getThroughput());
+        quality.onBytesWritten(200000);
+        quality.endPeriod(3 * SECOND);
+        assertEquals(125000, quality.getThroughput());
+    }
+
+    @Test
+    public void tuning_followsTheLink(){
+        LinkQuality quality = new LinkQuality(0);
+        assertEquals(32 * 1024, quality.windowBytes(32 * 1024));
+        assertEquals(FileTransfers.CHUNK_SIZE, quality.chunkSize(FileTransfers.CHUNK_SIZE));
+        assertEquals(4, quality.flushDelayMs(4));
+
+        //a slow link: 40 KB/s and 100 ms round trips
+        quality.onRoundTrip(100000);
+        for(int i = 0; i < 20; i++){
+            quality.onRoundTrip(100000);
+        }
+        quality.onBytesWritten(40000);
+        quality.endPeriod(SECOND);
+        int window = quality.windowBytes(256 * 1024);
+        assertTrue("window " + window, window >= LinkQuality.MIN_WINDOW_BYTES && window < 64 * 1024);
+        assertEquals(LinkQuality.MIN_CHUNK_SIZE, quality.chunkSize(FileTransfers.CHUNK_SIZE));
+        assertEquals(6, quality.flushDelayMs(4));
+        //never above what the handshake allows
+        assertEquals(4096, quality.windowBytes(4096));
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for routing, loop suppression and store-and-forward of relayed messages, over fake links
+ */
+public class MeshRelayTest {
+
+    /**
+     * Links that record what the relay sends and delivers
+     */
+    private static class FakeLinks implements MeshRelay.Links {
+        final List<String> peers = new ArrayList<>();
+        //address and packet of every send, one entry per address
+        final List<String> sentTo = new ArrayList<>();
+        final List<byte[]> sent = new ArrayList<>();
+        final List<String> delivered = new ArrayList<>();
+        final List<byte[]> failed = new ArrayList<>();
+
+        @Override
+        public List<String> relayPeers() {
+            return new ArrayList<>(peers);
+        }
+
+        @Override
+        public boolean send(List<String> addresses, byte[] packet, byte[] reportAs) {
+            for(String address : addresses){
+                sentTo.add(address);
+                sent.add(packet);
+            }
+            return !addresses.isEmpty();
+        }
+
+        @Override
+        public void deliver(String from, ChatFrame frame) {
+            delivered.add(from + " " + EngineEvents.text(frame.payload()));
+        }
+
+        @Override
+        public void failed(byte[] reportAs) {
+            failed.add(reportAs);
+        }
+    }
+
+    private static byte[] packet(long messageId, int ttl, long origin, long destination, String text){
+        byte[] payload = EngineEvents.bytes(text);
+        byte[] packet = new byte[MeshRelay.HEADER_SIZE + payload.length];
+        packet[0] = (byte) MeshRelay.MARKER;
+        packet[1] = (byte) ttl;
+        ChatFrame.putLong(packet, 2, messageId);
+        ChatFrame.putLong(packet, 10, origin);
+        ChatFrame.putLong(packet, 18, destination);
+        System.arraycopy(payload, 0, packet, MeshRelay.HEADER_SIZE, payload.length);
+        return packet;
+    }
+
+    @Test
+    public void nodeAddress_roundTripsEveryId(){
+        for(long id : new long[]{1, -1, Long.MIN_VALUE, 0x0123456789abcdefL}){
+            String address = MeshRelay.nodeAddress(id);
+            assertTrue(MeshRelay.isNodeAddress(address));
+            assertEquals(id, MeshRelay.nodeId(address));
+        }
+        assertFalse(MeshRelay.isNodeAddress("00:11:22:33:44:55"));
+        assertEquals(MeshRelay.BROADCAST, MeshRelay.nodeId(MeshRelay.BROADCAST_ADDRESS));
+    }
+
+    @Test
+    public void receive_deliversForThisNodeAndFloodsTheRestWithOneHopLess(){
+        FakeLinks links = new FakeLinks();
+        ChatMetrics metrics = new ChatMetrics();
+        MeshRelay relay = new MeshRelay(links, metrics);
+        relay.setNodeId(5);
+        links.peers.addAll(Arrays.asList("A", "B", "C"));
+
+        relay.receive("A", ChatFrame.data(1, packet(100, 3, 1, 5, "for me")));
+        assertEquals(Arrays.asList(MeshRelay.nodeAddress(1) + " for me"), links.delivered);
+        assertTrue(links.sent.isEmpty());
+
+        //for another node: passed to everyone but the peer it came from, with one hop less
+        relay.receive("A", ChatFrame.data(2, packet(101, 3, 1, 9, "for nine")));
+        assertEquals(Arrays.asList("B", "C"), links.sentTo);
+        assertEquals(2, links.sent.get(0)[1]);
+        assertEquals(1, metrics.get(ChatMetrics.RELAY_FORWARDED));
+
+        //the same message over another path is dropped
+        relay.receive("B", ChatFrame.data(3, packet(101, 3, 1, 9, "for nine")));
+        assertEquals(2, links.sentTo.size());
+        assertEquals(1, metrics.get(ChatMetrics.RELAY_DUPLICATES));
+
+        //the last hop is not passed on
+        relay.receive("B", ChatFrame.data(4, packet(102, 1, 1, 9, "last hop")));
+        assertEquals(2, links.sentTo.size());
+        assertEquals(1, metrics.get(ChatMetrics.RELAY_DROPPED));
+    }
+
+    @Test
+    public void send_followsTheWayTheDestinationWasLastHeardFrom(){
+        FakeLinks links = new FakeLinks();
+        MeshRelay relay = new MeshRelay(links, new ChatMetrics());
+        links.peers.addAll(Arrays.asList("A", "B"));
+
+        //node 7 was heard through B, so the answer only goes to B
+        relay.receive("B", ChatFrame.data(1, packet(100, 2, 7, MeshRelay.BROADCAST, "hello all")));
+        assertEquals(Arrays.asList(MeshRelay.nodeAddress(7) + " hello all"), links.delivered);
+        assertEquals(Arrays.asList("A"), links.sentTo);
+        links.sentTo.clear();
+        links.sent.clear();
+
+        assertTrue(relay.send(7, EngineEvents.bytes("answer")));
+        assertEquals(Arrays.asList("B"), links.sentTo);
+        assertEquals(MeshRelay.DEFAULT_TTL, links.sent.get(0)[1]);
+        assertEquals(relay.getNodeId(), ChatFrame.getLong(links.sent.get(0), 10));
+
+        //once B is gone the way is forgotten and the message floods
+        relay.peerLost("B");
+        links.peers.remove("B");
+        links.sentTo.clear();
+        relay.send(7, EngineEvents.bytes("again"));
+        assertEquals(Arrays.asList("A"), links.sentTo);
+    }
+
+    @Test
+    public void packetsNobodyTakes_areKeptUntilAPeerConnects(){
+        FakeLinks links = new FakeLinks();
+        ChatMetrics metrics = new ChatMetrics();
+        MeshRelay relay = new MeshRelay(links, metrics);
+        byte[] message = EngineEvents.bytes("later");
+
+        assertTrue(relay.send(9, message));
+        assertEquals(1, relay.getStoredCount());
+        assertTrue(links.sent.isEmpty());
+
+        //a packet that came from the only peer waits for another one
+        links.peers.add("A");
+        relay.receive("A", ChatFrame.data(1, packet(100, 3, 1, 9, "via me")));
+        relay.flush(System.currentTimeMillis());
+        assertEquals(Arrays.asList("A"), links.sentTo);
+        assertEquals(1, relay.getStoredCount());
+
+        links.peers.add("B");
+        relay.flush(System.currentTimeMillis());
+        assertEquals(Arrays.asList("A", "B"), links.sentTo);
+        assertEquals(0, relay.getStoredCount());
+
+        //kept too long: given up on and reported
+        links.peers.clear();
+        relay.send(9, message);
+        relay.flush(System.currentTimeMillis() + 24 * 60 * 60 * 1000L);
+        assertEquals(0, relay.getStoredCount());
+        assertSame(message, links.failed.get(0));
+        assertEquals(1, metrics.get(ChatMetrics.RELAY_DROPPED));
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the binary envelope chat messages and reactions are sent in
+ */
+public class MessageEnvelopeTest {
+
+    private final MessageEnvelope envelope = new MessageEnvelope(new TextCodec());
+
+    @Test
+    public void text_roundTrips() throws IOException {
+        String text = "Hi \ud83d\ude00 caf\u00e9 \u4f60\u597d";
+        byte[] bytes = envelope.encodeText(7L << 40, 1700000000000L, "Al\u00edce", text);
+        assertTrue(MessageEnvelope.isEnvelope(bytes, 0, bytes.length));
+
+        MessageEnvelope reader = new MessageEnvelope(new TextCodec());
+        reader.decode(bytes, 0, bytes.length);
+        assertEquals(MessageEnvelope.TYPE_TEXT, reader.getType());
+        assertEquals(7L << 40, reader.getMessageId());
+        assertEquals(1700000000000L, reader.getTimestamp());
+        assertEquals(0, reader.getTargetId());
+        assertEquals("Al\u00edce", reader.getSender());
+        assertEquals(text, reader.getText());
+    }
+
+    @Test
+    public void text_isUtf8OnTheWire() throws IOException {
+        //a lone surrogate is written the way String.getBytes writes it
+        String text = "a\u00e9\u4f60\ud83d\ude00\ud83d!";
+        byte[] bytes = envelope.encodeText(1, 0, "", text);
+        byte[] expected = text.getBytes(TextCodec.UTF_8);
+        byte[] body = new byte[expected.length];
+        System.arraycopy(bytes, bytes.length - body.length, body, 0, body.length);
+        assertArrayEquals(expected, body);
+    }
+
+    @Test
+    public void reaction_carriesItsTargetAndCode() throws IOException {
+        byte[] bytes = envelope.encodeReaction(5, 1700000000000L, "Bob", -3, MessageEnvelope.REACTION_THUMBS_DOWN);
+        //header, timestamp, target, name and one byte for the reaction
+        assertEquals(3 + 8 + 6 + 8 + 1 + 3 + 1, bytes.length);
+
+        envelope.decode(bytes, 0, bytes.length);
+        assertEquals(MessageEnvelope.TYPE_REACTION, envelope.getType());
+        assertEquals(-3, envelope.getTargetId());
+        assertEquals(MessageEnvelope.REACTION_THUMBS_DOWN, envelope.getReaction());
+        assertEquals("Bob", envelope.getSender());
+    }
+
+    @Test
+    public void bareText_isNotAnEnvelope(){
+        byte[] bytes = "hello".getBytes(TextCodec.UTF_8);
+        assertFalse(MessageEnvelope.isEnvelope(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void truncatedEnvelope_isRejected(){
+        byte[] bytes = envelope.encodeText(1, 1700000000000L, "a long sender name", "x");
+        for(int length = 0; length < bytes.length - 2; length++){
+            try{
+                envelope.decode(bytes, 0, length);
+                fail("decoded " + length + " bytes");
+            }catch (IOException expected){
+            }
+        }
+    }
+}
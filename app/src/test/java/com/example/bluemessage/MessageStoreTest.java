@@ -0,0 +1,218 @@
+package com.example.bluemessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the write batching and paging of the MessageStore over an in memory storage
+ */
+public class MessageStoreTest {
+
+    private MessageStore store;
+
+    @After
+    public void tearDown(){
+        if(store != null){
+            store.close();
+        }
+    }
+
+    /**
+     * Keeps the rows in a list in id order and records the size of every batch
+     */
+    private static class MemoryStorage implements MessageStore.Storage {
+        final List<ChatMessage> rows = new ArrayList<>();
+        final List<Integer> batches = new ArrayList<>();
+        final List<Integer> statuses = new ArrayList<>();
+        CountDownLatch firstWrite;
+        private long nextId = 1;
+
+        @Override
+        public void write(List<ChatMessage> inserts, List<ChatMessage> updates, List<ChatMessage> deletes) {
+            if(firstWrite != null){
+                try{
+                    firstWrite.await(5, TimeUnit.SECONDS);
+                }catch (InterruptedException e){
+                    throw new AssertionError(e);
+                }
+                firstWrite = null;
+            }
+            batches.add(inserts.size() + updates.size() + deletes.size());
+            for(ChatMessage message : inserts){
+                message.setId(nextId++);
+                rows.add(message);
+            }
+            for(ChatMessage message : updates){
+                statuses.add(message.getStatus());
+            }
+            rows.removeAll(deletes);
+        }
+
+        @Override
+        public List<ChatMessage> page(String peer, ChatMessage before, int limit) {
+            List<ChatMessage> page = new ArrayList<>();
+            for(int i = rows.size() - 1; i >= 0 && page.size() < limit; i--){
+                ChatMessage message = rows.get(i);
+                if(message.getPeer().equals(peer) && (before == null || message.getId() < before.getId())){
+                    page.add(message);
+                }
+            }
+            return page;
+        }
+
+        @Override
+        public void react(String peer, long uid, boolean local, int reaction) {
+            for(ChatMessage message : rows){
+                if(message.getPeer().equals(peer) && message.getUid() == uid){
+                    if(local){
+                        message.setLocalReaction(reaction);
+                    }else{
+                        message.setRemoteReaction(reaction);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public String lastPeer() {
+            return rows.isEmpty() ? null : rows.get(rows.size() - 1).getPeer();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Hands the pages to the test thread
+     */
+    private static class Pages implements MessageStore.PageCallback {
+        final BlockingQueue<List<ChatMessage>> pages = new LinkedBlockingQueue<>();
+        volatile boolean more;
+        volatile String peer;
+
+        @Override
+        public void onPage(String peer, List<ChatMessage> messages, boolean more) {
+            this.peer = peer;
+            this.more = more;
+            pages.add(messages);
+        }
+
+        List<ChatMessage> next() throws InterruptedException {
+            List<ChatMessage> page = pages.poll(5, TimeUnit.SECONDS);
+            assertNotNull("timed out waiting for page", page);
+            return page;
+        }
+    }
+
+    private static ChatMessage message(String peer, int number){
+        return new ChatMessage(peer, "Bob", "message " + number, false);
+    }
+
+    @Test
+    public void burstOfMessages_isWrittenInOneBatch() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        storage.firstWrite = new CountDownLatch(1);
+        store = new MessageStore(storage);
+
+        //the first batch holds up the store thread while the rest queue up behind it
+        store.add(message("A", 0));
+        for(int i = 1; i <= 100; i++){
+            store.add(message("A", i));
+        }
+        storage.firstWrite.countDown();
+
+        Pages pages = new Pages();
+        store.loadRecent("A", 200, pages);
+        assertEquals(101, pages.next().size());
+        assertTrue("batches " + storage.batches, storage.batches.size() <= 2);
+    }
+
+    @Test
+    public void pages_goBackThroughTheConversation() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        store = new MessageStore(storage);
+        for(int i = 0; i < 120; i++){
+            store.add(message("A", i));
+            if(i % 20 == 0){
+                store.add(message("B", i));
+            }
+        }
+
+        Pages pages = new Pages();
+        store.loadRecent("A", 50, pages);
+        List<ChatMessage> page = pages.next();
+        assertEquals(50, page.size());
+        assertEquals("message 70", page.get(0).getText());
+        assertEquals("message 119", page.get(49).getText());
+        assertTrue(pages.more);
+
+        store.loadBefore("A", page.get(0), 50, pages);
+        page = pages.next();
+        assertEquals("message 20", page.get(0).getText());
+        assertEquals("message 69", page.get(49).getText());
+        assertTrue(pages.more);
+
+        store.loadBefore("A", page.get(0), 50, pages);
+        page = pages.next();
+        assertEquals(20, page.size());
+        assertEquals("message 0", page.get(0).getText());
+        assertFalse(pages.more);
+    }
+
+    @Test
+    public void statusAndDeletes_areWrittenAfterTheInsert() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        store = new MessageStore(storage);
+        ChatMessage sent = new ChatMessage("A", "Me", "hi", true);
+        ChatMessage removed = message("A", 1);
+        store.add(sent);
+        store.add(removed);
+        sent.setStatus(ChatMessage.STATUS_DELIVERED);
+        store.update(sent);
+        store.delete(removed);
+
+        Pages pages = new Pages();
+        store.loadLastConversation(10, pages);
+        List<ChatMessage> page = pages.next();
+        assertEquals("A", pages.peer);
+        assertEquals(1, page.size());
+        assertSame(sent, page.get(0));
+        assertTrue(sent.getId() > 0);
+        assertEquals(Integer.valueOf(ChatMessage.STATUS_DELIVERED), storage.statuses.get(0));
+    }
+
+    @Test
+    public void reaction_findsMessageAddedBeforeIt() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        store = new MessageStore(storage);
+        ChatMessage received = new ChatMessage(42, "A", "Bob", "hi", false);
+        store.add(received);
+        store.react("A", 42, false, MessageEnvelope.REACTION_THUMBS_UP);
+        store.react("B", 42, true, MessageEnvelope.REACTION_LOL);
+
+        Pages pages = new Pages();
+        store.loadRecent("A", 10, pages);
+        assertSame(received, pages.next().get(0));
+        assertEquals(MessageEnvelope.REACTION_THUMBS_UP, received.getRemoteReaction());
+        assertEquals(MessageEnvelope.REACTION_NONE, received.getLocalReaction());
+    }
+
+    @Test
+    public void emptyStore_hasNoLastConversation() throws Exception {
+        store = new MessageStore(new MemoryStorage());
+        Pages pages = new Pages();
+        store.loadLastConversation(10, pages);
+        assertTrue(pages.next().isEmpty());
+        assertNull(pages.peer);
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the order, copies, limit and persistence of the messages waiting for a device
+ */
+public class OutboxTest {
+
+    private static List<String> texts(List<Outbox.Entry> entries){
+        List<String> texts = new ArrayList<>();
+        for(Outbox.Entry entry : entries){
+            texts.add(EngineEvents.text(entry.getPayload()));
+        }
+        return texts;
+    }
+
+    @Test
+    public void take_returnsEveryMessageOfTheDeviceInOrderOnce(){
+        Outbox outbox = new Outbox(3);
+        assertTrue(outbox.add("A", 1, EngineEvents.bytes("one")));
+        assertTrue(outbox.add("B", 2, EngineEvents.bytes("for B")));
+        assertTrue(outbox.add("A", 3, EngineEvents.bytes("two")));
+        //the same message again is not queued twice, a message without an id always is
+        assertTrue(outbox.add("A", 1, EngineEvents.bytes("one")));
+        assertTrue(outbox.add("A", 0, EngineEvents.bytes("three")));
+        assertFalse(outbox.add("A", 4, EngineEvents.bytes("four")));
+        assertEquals(Arrays.asList("A", "B"), outbox.addresses());
+
+        assertEquals(Arrays.asList("one", "two", "three"), texts(outbox.take("A")));
+        assertEquals(0, outbox.size("A"));
+        assertTrue(outbox.take("A").isEmpty());
+        assertEquals(Arrays.asList("B"), outbox.addresses());
+    }
+
+    @Test
+    public void putBack_goesInFrontOfMessagesAddedSince(){
+        Outbox outbox = new Outbox();
+        outbox.add("A", 1, EngineEvents.bytes("one"));
+        outbox.add("A", 2, EngineEvents.bytes("two"));
+        outbox.add("A", 3, EngineEvents.bytes("three"));
+        List<Outbox.Entry> taken = outbox.take("A");
+
+        outbox.add("A", 4, EngineEvents.bytes("four"));
+        outbox.add("A", 3, EngineEvents.bytes("three"));
+        //only the first one was sent
+        outbox.putBack("A", taken.subList(1, taken.size()));
+        assertEquals(Arrays.asList("two", "three", "four"), texts(outbox.take("A")));
+    }
+
+    @Test
+    public void writeAndRead_keepTheOrderAndPutTheSavedMessagesFirst() throws IOException {
+        Outbox outbox = new Outbox();
+        outbox.add("A", 1, EngineEvents.bytes("one"));
+        outbox.add("B", 0, EngineEvents.bytes("for B"));
+        outbox.add("A", 2, EngineEvents.bytes("two"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        outbox.write(out);
+
+        Outbox restored = new Outbox();
+        restored.add("A", 3, EngineEvents.bytes("three"));
+        restored.add("A", 2, EngineEvents.bytes("two"));
+        restored.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Arrays.asList("one", "two", "three"), texts(restored.take("A")));
+        List<Outbox.Entry> forB = restored.take("B");
+        assertEquals(Arrays.asList("for B"), texts(forB));
+        assertEquals(0, forB.get(0).getId());
+
+        //an empty file is an empty outbox
+        restored.read(new ByteArrayInputStream(new byte[0]));
+        assertTrue(restored.addresses().isEmpty());
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the order, capacity and persistence of the recently connected peers
+ */
+public class RecentPeersTest {
+
+    @Test
+    public void addresses_areMostRecentFirstAndOnlyTheLastFewAreKept(){
+        RecentPeers peers = new RecentPeers(3);
+        peers.connected("A", "Alice", 1);
+        peers.connected("B", null, 2);
+        peers.connected("C", "Carol", 3);
+        //connecting again makes a peer the most recent
+        peers.connected("A", "Alice", 4);
+        assertEquals(Arrays.asList("A", "C", "B"), peers.addresses(5));
+        assertEquals(Arrays.asList("A", "C"), peers.addresses(2));
+
+        peers.connected("D", "Dave", 5);
+        assertEquals(Arrays.asList("D", "A", "C"), peers.addresses(5));
+        List<RecentPeers.Peer> recent = peers.recent(1);
+        assertEquals("Dave", recent.get(0).getName());
+        assertEquals(5, recent.get(0).getLastConnected());
+    }
+
+    @Test
+    public void writeAndRead_keepTheOrderAndLetNewerConnectsWin() throws IOException {
+        RecentPeers peers = new RecentPeers(3);
+        peers.connected("A", "Alice", 1);
+        peers.connected("B", null, 2);
+        peers.connected("C", "Carol", 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        peers.write(out);
+
+        RecentPeers restored = new RecentPeers(3);
+        restored.connected("A", "Alice again", 10);
+        restored.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(Arrays.asList("A", "C", "B"), restored.addresses(5));
+        assertEquals("Alice again", restored.recent(1).get(0).getName());
+        assertNull(restored.recent(3).get(2).getName());
+
+        //an empty file is no list
+        new RecentPeers().read(new ByteArrayInputStream(new byte[0]));
+    }
+}
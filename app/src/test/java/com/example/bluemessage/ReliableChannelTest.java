@@ -0,0 +1,161 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the sequence numbers, retransmit buffer, send window and resume logic kept per peer
+ */
+public class ReliableChannelTest {
+
+    private static ReliableChannel channel(long streamId){
+        return new ReliableChannel(streamId, 1024, 4096);
+    }
+
+    /**
+     * marks as sent whatever the window lets through and returns how many frames that was
+     */
+    private static int sendAll(ReliableChannel channel){
+        int sent = 0;
+        ChatFrame frame;
+        while((frame = channel.nextToSend()) != null){
+            channel.markSent(frame);
+            sent++;
+        }
+        return sent;
+    }
+
+    private static ChatFrame resumeFrom(ReliableChannel channel) throws Exception {
+        //goes through the wire format the way the peer would receive it
+        ChatFrame frame = channel.resumeFrame();
+        byte[] bytes = new byte[frame.encodedSize()];
+        frame.encode(bytes, 0);
+        return ChatFrame.decode(bytes);
+    }
+
+    @Test
+    public void acknowledge_releasesFramesUpToTheSequenceNumber(){
+        ReliableChannel channel = channel(1);
+        channel.add(new byte[1]);
+        channel.add(new byte[2]);
+        channel.add(new byte[3]);
+
+        List<ChatFrame> released = channel.acknowledge(2);
+        assertEquals(2, released.size());
+        assertEquals(1, released.get(0).seq);
+        assertEquals(1, channel.getUnackedCount());
+        assertEquals(3, channel.unackedAfter(0).get(0).seq);
+    }
+
+    @Test
+    public void resume_replaysOnlyWhatThePeerIsMissing() throws Exception {
+        ReliableChannel sender = channel(1);
+        ReliableChannel receiver = channel(2);
+        receiver.resume(resumeFrom(sender));
+        sender.resume(resumeFrom(receiver));
+
+        for(int i = 0; i < 4; i++){
+            sender.add(new byte[]{(byte) i});
+        }
+        //the first two arrive but the link drops before any ACK gets back
+        assertTrue(receiver.receive(1));
+        assertTrue(receiver.receive(2));
+
+        sendAll(sender);
+        sender.resume(resumeFrom(receiver));
+        List<ChatFrame> replay = sender.unackedAfter(0);
+        assertEquals(2, replay.size());
+        assertEquals(3, replay.get(0).seq);
+        assertEquals(3, sender.nextToSend().seq);
+        assertEquals(2, sendAll(sender));
+
+        //anything sent twice anyway is dropped on the receiving side
+        assertFalse(receiver.receive(2));
+        assertTrue(receiver.receive(3));
+    }
+
+    @Test
+    public void resume_fromRestartedPeer_startsItsSequenceAgainAndReplaysEverything() throws Exception {
+        ReliableChannel sender = channel(1);
+        ReliableChannel receiver = channel(2);
+        receiver.resume(resumeFrom(sender));
+        sender.add(new byte[1]);
+        sender.add(new byte[1]);
+        assertTrue(receiver.receive(1));
+        assertTrue(receiver.receive(2));
+
+        ReliableChannel restarted = channel(3);
+        receiver.resume(resumeFrom(restarted));
+        assertTrue(receiver.receive(1));
+
+        sender.resume(resumeFrom(restarted));
+        assertEquals(2, sender.unackedAfter(0).size());
+    }
+
+    @Test
+    public void window_capsBytesInFlightUntilAcknowledged(){
+        ReliableChannel channel = new ReliableChannel(1, 100, 1000);
+        for(int i = 0; i < 5; i++){
+            channel.add(new byte[40]);
+        }
+        assertEquals(2, sendAll(channel));
+        assertEquals(80, channel.getInFlightBytes());
+
+        channel.acknowledge(1);
+        assertEquals(1, sendAll(channel));
+        channel.acknowledge(3);
+        assertEquals(2, sendAll(channel));
+        assertEquals(0, sendAll(channel));
+    }
+
+    @Test
+    public void window_alwaysLetsOneOversizedFrameThrough(){
+        ReliableChannel channel = new ReliableChannel(1, 100, 1000);
+        channel.add(new byte[500]);
+        channel.add(new byte[10]);
+        assertEquals(1, sendAll(channel));
+        channel.acknowledge(1);
+        assertEquals(1, sendAll(channel));
+    }
+
+    @Test
+    public void add_refusesMessagesOnceTheBufferIsFull(){
+        ReliableChannel channel = new ReliableChannel(1, 100, 200);
+        assertNotNull(channel.add(new byte[150]));
+        assertNull(channel.add(new byte[100]));
+        sendAll(channel);
+        channel.acknowledge(1);
+        assertNotNull(channel.add(new byte[100]));
+    }
+
+    @Test
+    public void pendingAck_coversEverythingReceivedSinceTheLastOne(){
+        ReliableChannel channel = channel(1);
+        assertNull(channel.pendingAck());
+        channel.receive(1);
+        channel.receive(2);
+        channel.receive(3);
+        assertEquals(3, channel.pendingAck().seq);
+        channel.ackSent();
+        assertNull(channel.pendingAck());
+        //a duplicate is acknowledged again so the peer can let go of it
+        channel.receive(2);
+        assertEquals(3, channel.pendingAck().seq);
+    }
+
+    @Test
+    public void reconnectPolicy_backsOffWithJitterAndGivesUp(){
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 6, new Random(7));
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for(int attempt = 1; attempt <= 6; attempt++){
+            long delay = policy.delayMs(attempt);
+            long ceiling = ceilings[attempt - 1];
+            assertTrue(delay >= ceiling / 2 && delay <= ceiling);
+        }
+        assertEquals(-1, policy.delayMs(7));
+    }
+}
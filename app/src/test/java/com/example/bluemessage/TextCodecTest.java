@@ -0,0 +1,70 @@
+package com.example.bluemessage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the UTF-8 text codec used for chat messages
+ */
+public class TextCodecTest {
+
+    private static final String EMOJI_TEXT = "Hi \ud83d\ude00\ud83d\udc4d caf\u00e9 \u4f60\u597d";
+
+    @Test
+    public void encode_roundTripsMultiByteText(){
+        TextCodec codec = new TextCodec();
+        byte[] bytes = codec.encode(EMOJI_TEXT);
+        assertArrayEquals(EMOJI_TEXT.getBytes(TextCodec.UTF_8), bytes);
+        assertEquals(EMOJI_TEXT, codec.decode(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void encodeIntoArray_writesAtTheOffsetOnly(){
+        TextCodec codec = new TextCodec();
+        byte[] expected = EMOJI_TEXT.getBytes(TextCodec.UTF_8);
+        byte[] dest = new byte[3 + codec.maxEncodedLength(EMOJI_TEXT)];
+        dest[0] = 7;
+        assertEquals(expected.length, codec.encode(EMOJI_TEXT, dest, 3));
+        assertEquals(7, dest[0]);
+        assertEquals(EMOJI_TEXT, codec.decode(dest, 3, expected.length));
+    }
+
+    @Test
+    public void decodeChunk_carriesCharactersCutAcrossChunks(){
+        TextCodec codec = new TextCodec();
+        byte[] bytes = EMOJI_TEXT.getBytes(TextCodec.UTF_8);
+        //every split point, including the ones inside the four byte emoji
+        for(int split = 0; split <= bytes.length; split++){
+            String text = codec.decodeChunk(bytes, 0, split, false)
+                    + codec.decodeChunk(bytes, split, bytes.length - split, true);
+            assertEquals("split at " + split, EMOJI_TEXT, text);
+        }
+    }
+
+    @Test
+    public void decodeChunk_oneByteAtATime(){
+        TextCodec codec = new TextCodec();
+        StringBuilder longText = new StringBuilder();
+        for(int i = 0; i < 200; i++){
+            longText.append(EMOJI_TEXT);
+        }
+        byte[] bytes = codec.encode(longText);
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < bytes.length; i++){
+            text.append(codec.decodeChunk(bytes, i, 1, i == bytes.length - 1));
+        }
+        assertEquals(longText.toString(), text.toString());
+    }
+
+    @Test
+    public void unfinishedCharacter_becomesReplacementAtTheEnd(){
+        TextCodec codec = new TextCodec();
+        byte[] bytes = "ok\ud83d\ude00".getBytes(TextCodec.UTF_8);
+        assertEquals("ok\ufffd", codec.decode(bytes, 0, bytes.length - 1));
+        assertEquals("ok", codec.decodeChunk(bytes, 0, bytes.length - 2, false));
+        assertEquals("\ufffd", codec.decodeChunk(bytes, 0, 0, true));
+        //the codec starts over after the last chunk
+        assertEquals("ok\ud83d\ude00", codec.decodeChunk(bytes, 0, bytes.length, true));
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.bluemessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per message work done on the way to the socket and back:
+ * the envelope the send button builds, the DATA frame the writer puts in a batch,
+ * and the frame the read loop takes out of its pooled receive buffer and the UI reads the text of
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CodecBenchmark {
+
+    @Param({"3", "64", "1024", "16384", "65536"})
+    public int size;
+
+    private String text;
+    private MessageEnvelope envelope;
+    private byte[] payload;
+    private BufferPool pool;
+    private FrameCompressor compressor;
+    private ChatFrame dataFrame;
+    private byte[] batch;
+    private byte[] wire;
+
+    @Setup
+    public void setup(){
+        text = MessageSizes.text(size);
+        envelope = new MessageEnvelope(new TextCodec());
+        payload = MessageSizes.envelope(size);
+        pool = new BufferPool();
+        compressor = new FrameCompressor(pool, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        dataFrame = ChatFrame.data(1, payload);
+        batch = new byte[FrameCodec.varintSize(dataFrame.encodedSize()) + dataFrame.encodedSize()];
+        encodeFrame();
+        wire = batch.clone();
+    }
+
+    @TearDown
+    public void tearDown(){
+        compressor.close();
+    }
+
+    /**
+     * what the send button does before calling write, the text and the sender's name in an envelope
+     */
+    @Benchmark
+    public byte[] encodeEnvelope(){
+        return envelope.encodeText(1, 0, MessageSizes.SENDER, text);
+    }
+
+    /**
+     * what the chat page does with a received message before adding it to the list
+     */
+    @Benchmark
+    public String decodeEnvelope() throws IOException {
+        envelope.decode(payload, 0, payload.length);
+        return envelope.getText();
+    }
+
+    /**
+     * what the writer does with a DATA frame while compression is off, returns the bytes that go on air
+     */
+    @Benchmark
+    public int encodeFrame(){
+        int pos = FrameCodec.writeVarint(batch, 0, dataFrame.encodedSize());
+        return dataFrame.encode(batch, pos);
+    }
+
+    /**
+     * what the read loop does, the frame stays in a pooled receive buffer that is given back afterwards
+     */
+    @Benchmark
+    public int decodeFrame() throws IOException {
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire), FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        codec.nextFrame();
+        int length = ChatFrame.decode(codec).length;
+        codec.release();
+        return length;
+    }
+
+    /**
+     * what the writer does with a DATA frame once compression is negotiated, returns the bytes that go on air
+     */
+    @Benchmark
+    public int encodeFrameCompressed(){
+        return compressor.encode(dataFrame, batch, 0);
+    }
+
+    /**
+     * full path of one message, text to frame on the sender and frame back to text on the receiver
+     */
+    @Benchmark
+    public String sendAndReceive() throws IOException {
+        ChatFrame frame = ChatFrame.data(1, envelope.encodeText(1, 0, MessageSizes.SENDER, text));
+        byte[] bytes = new byte[FrameCodec.varintSize(frame.encodedSize()) + frame.encodedSize()];
+        frame.encode(bytes, FrameCodec.writeVarint(bytes, 0, frame.encodedSize()));
+
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(bytes), FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        codec.nextFrame();
+        ChatFrame received = ChatFrame.decode(codec);
+        envelope.decode(received.body, received.offset, received.length);
+        String decoded = envelope.getText();
+        codec.release();
+        return decoded;
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.bluemessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what encrypting a session costs per frame: sealing a DATA frame on the writer side
+ * and opening it in the pooled receive buffer on the reader side, next to writing the same frame in the clear
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CryptoBenchmark {
+
+    private static final byte[] DIALER_HELLO = {2, 2, 1};
+    private static final byte[] ACCEPTOR_HELLO = {2, 2, 2};
+
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private BufferPool pool;
+    private ChatFrame dataFrame;
+    private FrameCipher sealer;
+    private FrameCipher opener;
+    private byte[] wire;
+
+    @Setup
+    public void setup() throws GeneralSecurityException, IOException {
+        pool = new BufferPool();
+        dataFrame = ChatFrame.data(1, MessageSizes.envelope(size));
+        KeyPair dialer = FrameCipher.generateKeyPair();
+        KeyPair acceptor = FrameCipher.generateKeyPair();
+        sealer = FrameCipher.create(dialer, acceptor.getPublic().getEncoded(), DIALER_HELLO, ACCEPTOR_HELLO, true);
+        opener = FrameCipher.create(acceptor, dialer.getPublic().getEncoded(), DIALER_HELLO, ACCEPTOR_HELLO, false);
+        wire = new byte[FrameCipher.sealedSize(dataFrame)];
+    }
+
+    /**
+     * what the writer does with a frame on a session without encryption
+     */
+    @Benchmark
+    public int encodePlain(){
+        int pos = FrameCodec.writeVarint(wire, 0, dataFrame.encodedSize());
+        return dataFrame.encode(wire, pos);
+    }
+
+    /**
+     * what the writer does with a frame once encryption is negotiated
+     */
+    @Benchmark
+    public int seal() throws IOException {
+        return sealer.seal(dataFrame, null, wire, 0);
+    }
+
+    /**
+     * one frame from the writer of one side to the read loop of the other, decrypted in place
+     */
+    @Benchmark
+    public long sealAndOpen() throws IOException {
+        int length = sealer.seal(dataFrame, null, wire, 0);
+        FrameCodec codec = new FrameCodec(new ByteArrayInputStream(wire, 0, length), FrameCodec.DEFAULT_MAX_FRAME_SIZE, pool);
+        codec.nextFrame();
+        long seq = opener.open(codec).seq;
+        codec.release();
+        return seq;
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.bluemessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands received frames to another thread the way ChatUtils posts MESSAGE_READ to the UI Handler.
+ * android.os.Handler does not exist on the JVM, so a queue drained by a looper thread stands in for it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DispatchBenchmark {
+
+    private static final int BURST = 100;
+
+    @Param({"3", "1024", "65536"})
+    public int size;
+
+    /**
+     * what handler.obtainMessage(MESSAGE_READ, frame.length, -1, frame.retain()) carries
+     */
+    private static final class Message {
+        final int what;
+        final int arg1;
+        final Object obj;
+
+        Message(int what, int arg1, Object obj){
+            this.what = what;
+            this.arg1 = arg1;
+            this.obj = obj;
+        }
+    }
+
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Integer> done = new LinkedBlockingQueue<>();
+    private Thread looper;
+    private ChatFrame frame;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        frame = ChatFrame.data(1, MessageSizes.envelope(size));
+        final MessageEnvelope envelope = new MessageEnvelope(new TextCodec());
+        looper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    int handled = 0;
+                    while(true){
+                        Message message = queue.take();
+                        //the UI reads the text out of the envelope before adding it to the list
+                        ChatFrame received = (ChatFrame) message.obj;
+                        envelope.decode(received.body, received.offset, message.arg1);
+                        envelope.getText();
+                        received.release();
+                        if(++handled == BURST){
+                            done.put(handled);
+                            handled = 0;
+                        }
+                    }
+                }catch (InterruptedException e){
+                    //benchmark finished
+                }catch (IOException e){
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        looper.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        looper.interrupt();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int postBurst() throws InterruptedException {
+        for(int i = 0; i < BURST; i++){
+            queue.put(new Message(1, frame.length, frame.retain()));
+        }
+        return done.take();
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.bluemessage;
+
+import java.util.Random;
+
+/**
+ * Shared payloads for the benchmarks, from a 3 byte reaction up to a 64 KB message
+ */
+final class MessageSizes {
+
+    static final String SENDER = "Pixel 7";
+
+    private MessageSizes(){
+    }
+
+    /**
+     * returns a chat like text of the given length in bytes, mostly ASCII so the length in chars matches
+     */
+    static String text(int size){
+        Random random = new Random(size);
+        String words = "hey lol ok see you at the venue thumbs up ";
+        StringBuilder builder = new StringBuilder(size);
+        while(builder.length() < size){
+            builder.append(words.charAt(random.nextInt(words.length())));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * returns the text of the given length in the envelope the send button writes
+     */
+    static byte[] envelope(int size){
+        return new MessageEnvelope(new TextCodec()).encodeText(1, 0, SENDER, text(size));
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.bluemessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes messages through FrameWriter and FrameCodec over an in memory link,
+ * the same path a DATA frame takes between the writer of one PeerSession and the read loop of the other
+ * minus the radio
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamBenchmark {
+
+    private static final int BURST = 100;
+
+    @Param({"3", "64", "1024", "16384", "65536"})
+    public int size;
+
+    @Param({"0", "4"})
+    public long flushDelayMs;
+
+    private ChatTransport.Server server;
+    private ChatTransport.Link clientLink;
+    private ChatTransport.Link serverLink;
+    private ExecutorService executor;
+    private FrameWriter writer;
+    private FrameCodec reader;
+    private byte[] payload;
+    private final AtomicInteger written = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        LoopbackTransport.Network network = new LoopbackTransport.Network();
+        server = network.transport("server", "server").listen();
+        clientLink = network.transport("client", "client").createLink("server");
+        clientLink.connect();
+        serverLink = server.accept();
+
+        executor = Executors.newCachedThreadPool();
+        writer = new FrameWriter(clientLink.getOutputStream(), new FrameWriter.Listener() {
+            @Override
+            public void onFrameWritten(ChatFrame frame) {
+                written.incrementAndGet();
+            }
+
+            @Override
+            public void onFrameFailed(ChatFrame frame, IOException e) {
+            }
+        }, executor, BURST, flushDelayMs, FrameWriter.DEFAULT_MAX_BATCH_BYTES);
+        reader = new FrameCodec(serverLink.getInputStream());
+        payload = MessageSizes.envelope(size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        writer.cancel();
+        executor.shutdown();
+        clientLink.close();
+        serverLink.close();
+        server.close();
+    }
+
+    /**
+     * sends a burst of messages and waits until the receiving side has decoded all of them
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int burst() throws Exception {
+        int received = 0;
+        for(int i = 0; i < BURST; i++){
+            while(!writer.offer(ChatFrame.data(i + 1, payload))){
+                receive();
+                received++;
+            }
+        }
+        for(; received < BURST; received++){
+            receive();
+        }
+        return received;
+    }
+
+    /**
+     * reads the next frame the way the read loop does, out of the receive buffer without copying it
+     */
+    private void receive() throws IOException {
+        if(!reader.nextFrame()){
+            throw new IOException("Link closed");
+        }
+        ChatFrame.decode(reader);
+    }
+}